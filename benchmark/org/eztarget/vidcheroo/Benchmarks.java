@@ -0,0 +1,767 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Micro-benchmarks of the hot paths of the engine, parser and beat detector.
+ * Runs without VLC and without a display; a stand-in player takes the place of the media frame.
+ * Every benchmark is warmed up first and then measured in several timed iterations.
+ *
+ * Usage: java -cp bin org.eztarget.vidcheroo.Benchmarks [name filter]
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class Benchmarks {
+
+	/**
+	 * Number of iterations that are run before measuring
+	 */
+	private static final int WARMUP_ITERATIONS = 5;
+
+	/**
+	 * Number of measured iterations
+	 */
+	private static final int MEASUREMENT_ITERATIONS = 10;
+
+	/**
+	 * Length of one iteration in ns
+	 */
+	private static final long ITERATION_TIME = 500000000l;
+
+	/**
+	 * Number of operations between two clock reads
+	 */
+	private static final int BATCH_SIZE = 16;
+
+	/**
+	 * Number of switches of the scheduler jitter benchmark
+	 */
+	private static final int JITTER_SWITCHES = 200;
+
+	/**
+	 * Tempo in BPM of the MIDI clock that the software sequencer sends
+	 */
+	private static final float MIDI_CLOCK_TEMPO = 128f;
+
+	/**
+	 * Number of quarter notes of the MIDI clock latency benchmark
+	 */
+	private static final int MIDI_CLOCK_QUARTER_NOTES = 16;
+
+	/**
+	 * Number of measured pings of the OSC round trip benchmark
+	 */
+	private static final int OSC_ROUND_TRIPS = 10000;
+
+	/**
+	 * Command type of every thread that posts commands at the same time in the engine command stress test
+	 */
+	private static final int[] PRODUCER_COMMANDS = {
+			CommandQueue.COMMAND_CUT,
+			CommandQueue.COMMAND_CUT,
+			CommandQueue.COMMAND_TEMPO,
+			CommandQueue.COMMAND_NOTE_LENGTH
+	};
+
+	/**
+	 * Number of commands that every producer posts in the engine command stress test
+	 */
+	private static final int COMMANDS_PER_PRODUCER = 100000;
+
+	/**
+	 * Time in ms that the engine command stress test waits for the engine thread to execute all commands
+	 */
+	private static final long COMMAND_STRESS_TIMEOUT = 60000l;
+
+	/**
+	 * Results are written here, so that the JIT cannot remove the measured code.
+	 */
+	static volatile long sink;
+
+	/**
+	 * Original standard output; benchmarked code prints into a discarding stream.
+	 */
+	private static final PrintStream REPORT = System.out;
+
+	/**
+	 * Discards everything that benchmarked code prints.
+	 */
+	private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+		public void write(int b) {}
+		public void write(byte[] b, int off, int len) {}
+	});
+
+	/**
+	 * A single measured operation with optional preparation
+	 */
+	private static abstract class Benchmark {
+		final String name;
+
+		Benchmark(String name) {
+			this.name = name;
+		}
+
+		void setUp() throws Exception {}
+
+		abstract void operation() throws Exception;
+
+		void tearDown() throws Exception {}
+	}
+
+	/**
+	 * Takes the place of the media frame and only counts play calls.
+	 */
+	private static class StandInPlayer implements OutputPlayer {
+		long playCount = 0l;
+		String mediaPath;
+		long startTime;
+		String preparedMediaPath;
+		long preparedStartTime;
+
+		void playMediaFilePath(String mediaPath, long startTime) {
+			this.mediaPath = mediaPath;
+			this.startTime = startTime;
+			playCount++;
+		}
+
+		public void prepareMediaFilePath(String mediaPath, long startTime) {
+			preparedMediaPath = mediaPath;
+			preparedStartTime = startTime;
+		}
+
+		public boolean playPreparedMedia() {
+			playMediaFilePath(preparedMediaPath, preparedStartTime);
+			return true;
+		}
+
+		public void pause() {}
+
+		public void stop() {}
+	}
+
+	/**
+	 * MAIN METHOD
+	 *
+	 * @param args Optional filter; only benchmarks containing this text in their name are run.
+	 */
+	public static void main(String[] args) throws Exception {
+		String filter = args.length > 0 ? args[0] : "";
+		// Warnings of flooded queues would mix with the report.
+		Log.setLevel(Log.ERROR);
+
+		ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		addRmsBenchmarks(benchmarks);
+		addOnsetBenchmarks(benchmarks);
+		addRandomMediaFileBenchmarks(benchmarks);
+		addMediaIndexBenchmarks(benchmarks);
+		addTempoBenchmarks(benchmarks);
+		addJournalBenchmarks(benchmarks);
+		addLogBenchmarks(benchmarks);
+		addTelemetryBenchmarks(benchmarks);
+		addOscBenchmarks(benchmarks);
+
+		REPORT.println(String.format("%-48s %16s %12s", "Benchmark", "ops/s", "error"));
+		for (Benchmark benchmark : benchmarks) {
+			if (benchmark.name.contains(filter)) runBenchmark(benchmark);
+		}
+
+		if ("BeatScheduler.jitter".contains(filter) || filter.length() == 0) runSchedulerJitter();
+		if ("MidiClock.latency".contains(filter) || filter.length() == 0) runMidiClockLatency();
+		if ("OscServer.roundTrip".contains(filter) || filter.length() == 0) runOscRoundTrip();
+		if ("Engine.commandStress".contains(filter) || filter.length() == 0) runEngineCommandStress();
+	}
+
+	/**
+	 * Runs the warm-up and measurement iterations of one benchmark and prints the result.
+	 * @param benchmark Benchmark to run
+	 */
+	private static void runBenchmark(Benchmark benchmark) throws Exception {
+		System.setOut(DISCARD);
+		double[] results = new double[MEASUREMENT_ITERATIONS];
+		try {
+			benchmark.setUp();
+			for (int i = 0; i < WARMUP_ITERATIONS; i++) runIteration(benchmark);
+			for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) results[i] = runIteration(benchmark);
+			benchmark.tearDown();
+		} finally {
+			System.setOut(REPORT);
+		}
+
+		double mean = 0d;
+		for (double result : results) mean += result;
+		mean /= results.length;
+
+		double variance = 0d;
+		for (double result : results) variance += (result - mean) * (result - mean);
+		double deviation = Math.sqrt(variance / (results.length - 1));
+
+		REPORT.println(String.format("%-48s %16.1f %12.1f", benchmark.name, mean, deviation));
+	}
+
+	/**
+	 * @param benchmark Benchmark to run
+	 * @return Operations per second
+	 */
+	private static double runIteration(Benchmark benchmark) throws Exception {
+		long operations = 0l;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < BATCH_SIZE; i++) benchmark.operation();
+			operations += BATCH_SIZE;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < ITERATION_TIME);
+		return operations * 1e9d / elapsed;
+	}
+
+	/*
+	 * BEAT DETECTOR
+	 */
+
+	/**
+	 * RMS level calculation for different buffer sizes.
+	 * 882 bytes are 20 ms of the detector's 44.1 kHz, 8 bit, mono format.
+	 */
+	private static void addRmsBenchmarks(List<Benchmark> benchmarks) {
+		for (final int bufferSize : new int[] {160, 882, 1600, 8000}) {
+			benchmarks.add(new Benchmark("BeatDetector.calculateRmsLevel/" + bufferSize) {
+				byte[] audioData = new byte[bufferSize];
+
+				void setUp() {
+					new Random(1l).nextBytes(audioData);
+				}
+
+				void operation() {
+					sink += BeatDetector.calculateRmsLevel(audioData);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Onset and tempo detection of 20 ms buffers at 44.1 kHz.
+	 * Real time needs at least 50 ops/s.
+	 */
+	private static void addOnsetBenchmarks(List<Benchmark> benchmarks) {
+		benchmarks.add(new Benchmark("OnsetDetector.process/882") {
+			OnsetDetector onsetDetector = new OnsetDetector(44100f, 60f, 180f);
+			byte[] audioData = new byte[882];
+
+			void setUp() {
+				new Random(1l).nextBytes(audioData);
+			}
+
+			void operation() {
+				if (onsetDetector.process(audioData, audioData.length)) sink++;
+			}
+		});
+	}
+
+	/*
+	 * MEDIA FILE PARSER
+	 */
+
+	/**
+	 * @param count Number of media files
+	 * @return Media files with consecutive IDs and fake paths and lengths
+	 */
+	private static ArrayList<MediaFile> createMediaFiles(int count) {
+		ArrayList<MediaFile> mediaFiles = new ArrayList<MediaFile>(count);
+		Random random = new Random(1l);
+		for (int i = 0; i < count; i++) {
+			MediaFile mediaFile = new MediaFile();
+			mediaFile.id = i;
+			mediaFile.path = "/feed/clip_" + i + ".mp4";
+			mediaFile.length = 1000l + random.nextInt(600000);
+			mediaFile.fileSize = mediaFile.length * 1000l;
+			mediaFile.lastModified = 1400000000000l + i;
+			mediaFiles.add(mediaFile);
+		}
+		return mediaFiles;
+	}
+
+	/**
+	 * Random selection from libraries of 10^3 to 10^6 media files
+	 */
+	private static void addRandomMediaFileBenchmarks(List<Benchmark> benchmarks) {
+		for (final int count : new int[] {1000, 10000, 100000, 1000000}) {
+			benchmarks.add(new Benchmark("MediaFileParser.getRandomMediaFile/" + count) {
+				void setUp() {
+					MediaFileParser.setMediaFiles(createMediaFiles(count));
+				}
+
+				void operation() {
+					sink += MediaFileParser.getRandomMediaFile().id;
+				}
+
+				void tearDown() {
+					MediaFileParser.setMediaFiles(new ArrayList<MediaFile>());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Storing and loading the media index with 10^4 and 10^5 media files
+	 */
+	private static void addMediaIndexBenchmarks(List<Benchmark> benchmarks) {
+		for (final int count : new int[] {10000, 100000}) {
+			benchmarks.add(new Benchmark("MediaIndex.write/" + count) {
+				ArrayList<MediaFile> mediaFiles;
+				File indexFile;
+
+				void setUp() throws IOException {
+					mediaFiles = createMediaFiles(count);
+					indexFile = File.createTempFile("vidcheroo-benchmark", ".vchi");
+				}
+
+				void operation() throws IOException {
+					MediaIndex.write(indexFile, mediaFiles);
+				}
+
+				void tearDown() {
+					MediaIndex.delete(indexFile);
+				}
+			});
+
+			benchmarks.add(new Benchmark("MediaIndex.open/" + count) {
+				File indexFile;
+
+				void setUp() throws IOException {
+					indexFile = File.createTempFile("vidcheroo-benchmark", ".vchi");
+					MediaIndex.write(indexFile, createMediaFiles(count));
+				}
+
+				void operation() throws IOException {
+					sink += MediaIndex.open(indexFile).size();
+				}
+
+				void tearDown() {
+					MediaIndex.delete(indexFile);
+				}
+			});
+
+			benchmarks.add(new Benchmark("MediaIndex.openAndReadAll/" + count) {
+				File indexFile;
+
+				void setUp() throws IOException {
+					indexFile = File.createTempFile("vidcheroo-benchmark", ".vchi");
+					MediaIndex.write(indexFile, createMediaFiles(count));
+				}
+
+				void operation() throws IOException {
+					MediaIndex mediaIndex = MediaIndex.open(indexFile);
+					for (int i = 0; i < mediaIndex.size(); i++) sink += mediaIndex.get(i).length;
+				}
+
+				void tearDown() {
+					MediaIndex.delete(indexFile);
+				}
+			});
+		}
+	}
+
+	/*
+	 * CONFIGURATION HANDLER
+	 */
+
+	/**
+	 * Parsing tempo text field values, including the Engine update
+	 */
+	private static void addTempoBenchmarks(List<Benchmark> benchmarks) {
+		for (final String tempoText : new String[] {"128", "128.5", "128,5"}) {
+			benchmarks.add(new Benchmark("ConfigurationHandler.setTempo/" + tempoText) {
+				void operation() {
+					ConfigurationHandler.setTempo(tempoText);
+				}
+			});
+		}
+	}
+
+	/*
+	 * SESSION JOURNAL
+	 */
+
+	/**
+	 * Recording a cut on the play thread; the writer thread encodes in the background or drops entries.
+	 */
+	private static void addJournalBenchmarks(List<Benchmark> benchmarks) {
+		benchmarks.add(new Benchmark("SessionJournal.recordCut") {
+			File journalFile;
+			long count = 0l;
+
+			void setUp() throws IOException {
+				journalFile = File.createTempFile("vidcheroo", SessionJournal.FILE_EXTENSION);
+				SessionJournal.start(journalFile, 0l);
+			}
+
+			void operation() {
+				long now = System.nanoTime();
+				SessionJournal.recordCut(now, "/media/clip.mp4", count++, now);
+			}
+
+			void tearDown() {
+				SessionJournal.stop();
+				journalFile.delete();
+			}
+		});
+	}
+
+	/**
+	 * Logging a cut as the play loop does: skipped without debugging,
+	 * and putting preformatted records into the ring until the writer thread has written them
+	 */
+	private static void addLogBenchmarks(List<Benchmark> benchmarks) {
+		benchmarks.add(new Benchmark("Log.debug/disabled") {
+			long count = 0l;
+
+			void operation() {
+				if (Log.isDebug()) Log.debug(" /media/clip.mp4 startTime=" + count);
+				count++;
+			}
+		});
+		benchmarks.add(new Benchmark("Log.info+write/1024") {
+			void setUp() {
+				Log.setLevel(Log.INFO);
+			}
+
+			void operation() {
+				for (int i = 0; i < 1024; i++) Log.info(" /media/clip.mp4");
+				Log.flush();
+			}
+
+			void tearDown() {
+				Log.setLevel(Log.ERROR);
+			}
+		});
+	}
+
+	/**
+	 * Counting a file probe and a detector frame without a Flight Recorder recording
+	 */
+	private static void addTelemetryBenchmarks(List<Benchmark> benchmarks) {
+		final MediaFile mediaFile = createMediaFiles(1).get(0);
+		benchmarks.add(new Benchmark("Telemetry.fileProbe") {
+			void operation() {
+				Telemetry.endFileProbe(Telemetry.beginFileProbe(), mediaFile);
+			}
+		});
+		benchmarks.add(new Benchmark("Telemetry.detectorFrame") {
+			void operation() {
+				Telemetry.endDetectorFrame(Telemetry.beginDetectorFrame(), 882, 12, false, 128f);
+			}
+		});
+	}
+
+	/*
+	 * SCHEDULER
+	 */
+
+	/**
+	 * Lets a stand-in player switch on a fast beat grid and prints the wake-up jitter.
+	 * 180 BPM with 1/64th notes: one switch every 20.8 ms.
+	 */
+	private static void runSchedulerJitter() {
+		MediaFileParser.setMediaFiles(createMediaFiles(1000));
+		StandInPlayer player = new StandInPlayer();
+		LatencyHistogram jitter = new LatencyHistogram("BeatScheduler.jitter/" + JITTER_SWITCHES);
+
+		BeatScheduler scheduler = new BeatScheduler(180f, 16f);
+		for (int i = 0; i < JITTER_SWITCHES; i++) {
+			long deadline = scheduler.getNextSwitchDeadline();
+			scheduler.awaitDeadline(deadline);
+			jitter.record(System.nanoTime() - deadline);
+
+			MediaFile mediaFile = MediaFileParser.getRandomMediaFile();
+			player.playMediaFilePath(mediaFile.path, 0l);
+		}
+
+		MediaFileParser.setMediaFiles(new ArrayList<MediaFile>());
+		sink += player.playCount;
+		REPORT.println(jitter.getSummary());
+	}
+
+	/**
+	 * Plays a MIDI clock with the software sequencer into a MidiClock and lets a stand-in play thread switch on its ticks.
+	 * Prints the latency from the arrival of a switch tick to the play call and the measured tempo.
+	 * 128 BPM with 1/32nd notes: one switch every 3 ticks, 58.6 ms.
+	 */
+	private static void runMidiClockLatency() throws Exception {
+		MediaFileParser.setMediaFiles(createMediaFiles(1000));
+		final StandInPlayer player = new StandInPlayer();
+		final LatencyHistogram latency = new LatencyHistogram("MidiClock.latency/" + MIDI_CLOCK_QUARTER_NOTES * 8);
+		final BeatScheduler scheduler = new BeatScheduler(MIDI_CLOCK_TEMPO, 8f);
+		final AtomicBoolean isDone = new AtomicBoolean();
+
+		// Stand-in of the Engine's play thread: only switches when triggered by a tick.
+		Thread playThread = new Thread() {
+			public void run() {
+				while (!isDone.get()) {
+					int result = scheduler.awaitDeadline(System.nanoTime() + 1000000000l);
+					if (result != BeatScheduler.TRIGGERED) continue;
+					latency.record(System.nanoTime() - scheduler.getTriggerNanos());
+
+					MediaFile mediaFile = MediaFileParser.getRandomMediaFile();
+					player.playMediaFilePath(mediaFile.path, 0l);
+				}
+			}
+		};
+		playThread.start();
+
+		// Start, one clock tick every 1/24th quarter note and Stop.
+		Sequence sequence = new Sequence(Sequence.PPQ, MidiClock.TICKS_PER_QUARTER_NOTE);
+		Track track = sequence.createTrack();
+		track.add(new MidiEvent(new ShortMessage(ShortMessage.START), 0l));
+		long lastTick = (long) MIDI_CLOCK_QUARTER_NOTES * MidiClock.TICKS_PER_QUARTER_NOTE;
+		for (long tick = 0l; tick <= lastTick; tick++) {
+			track.add(new MidiEvent(new ShortMessage(ShortMessage.TIMING_CLOCK), tick));
+		}
+		track.add(new MidiEvent(new ShortMessage(ShortMessage.STOP), lastTick));
+
+		MidiClock clock = new MidiClock(scheduler, 8f);
+		Sequencer sequencer = MidiSystem.getSequencer(false);
+		sequencer.open();
+		try {
+			sequencer.getTransmitter().setReceiver(clock);
+			sequencer.setSequence(sequence);
+			sequencer.setTempoInBPM(MIDI_CLOCK_TEMPO);
+			sequencer.start();
+			while (sequencer.isRunning()) Thread.sleep(10l);
+		} finally {
+			sequencer.close();
+		}
+
+		isDone.set(true);
+		scheduler.wake();
+		playThread.join();
+
+		MediaFileParser.setMediaFiles(new ArrayList<MediaFile>());
+		sink += player.playCount;
+		REPORT.println(latency.getSummary());
+		REPORT.println(String.format("MidiClock.tempo: %.2f BPM (sent %.2f BPM)", clock.getTempo(), MIDI_CLOCK_TEMPO));
+	}
+
+	/*
+	 * OSC SERVER
+	 */
+
+	/**
+	 * @param address OSC address
+	 * @param value Float argument
+	 * @return Encoded message, ready to be read
+	 */
+	private static ByteBuffer createOscMessage(String address, float value) {
+		int addressLength = (address.length() + 4) & ~3;
+		ByteBuffer message = ByteBuffer.allocate(addressLength + 8);
+		message.put(address.getBytes());
+		message.position(addressLength);
+		message.put((byte) ',').put((byte) 'f').put((byte) 0).put((byte) 0);
+		message.putFloat(value);
+		message.flip();
+		return message;
+	}
+
+	/**
+	 * Decoding a tempo message and a bundle of three messages
+	 */
+	private static void addOscBenchmarks(List<Benchmark> benchmarks) {
+		final OscServer server = new OscServer(false);
+
+		final ByteBuffer tempoMessage = createOscMessage("/vidcheroo/tempo", 128f);
+		benchmarks.add(new Benchmark("OscServer.decode/message") {
+			void operation() {
+				if (server.decode(tempoMessage, 0, tempoMessage.limit(), 0)) sink++;
+			}
+		});
+
+		ByteBuffer[] messages = {
+				createOscMessage("/vidcheroo/length", 3f),
+				createOscMessage("/vidcheroo/tempo", 128f),
+				createOscMessage("/vidcheroo/cut", 1f)
+		};
+		final ByteBuffer bundle = ByteBuffer.allocate(16 + 3 * (4 + messages[0].limit()) + 8);
+		bundle.put("#bundle".getBytes()).put((byte) 0).putLong(1l);
+		for (ByteBuffer message : messages) bundle.putInt(message.limit()).put(message);
+		bundle.flip();
+		benchmarks.add(new Benchmark("OscServer.decode/bundle") {
+			void operation() {
+				if (server.decode(bundle, 0, bundle.limit(), 0)) sink++;
+			}
+		});
+	}
+
+	/**
+	 * Sends pings over localhost to an OSC server and prints the round trip time until the answer arrives.
+	 * Every ping is decoded and answered on the selector thread.
+	 */
+	private static void runOscRoundTrip() throws Exception {
+		OscServer server = new OscServer(false);
+		server.open(new InetSocketAddress("127.0.0.1", 0));
+		DatagramChannel client = DatagramChannel.open();
+		LatencyHistogram roundTrip = new LatencyHistogram("OscServer.roundTrip/" + OSC_ROUND_TRIPS);
+		try {
+			client.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+			ByteBuffer ping = createOscMessage("/vidcheroo/ping", 0f);
+			ByteBuffer pong = ByteBuffer.allocate(64);
+
+			for (int i = -OSC_ROUND_TRIPS / 10; i < OSC_ROUND_TRIPS; i++) {
+				ping.putFloat(ping.limit() - 4, i);
+				ping.rewind();
+				long sendNanos = System.nanoTime();
+				client.write(ping);
+				pong.clear();
+				client.read(pong);
+				if (i >= 0) roundTrip.record(System.nanoTime() - sendNanos);
+				if (pong.getFloat(pong.position() - 4) != i) throw new IllegalStateException("Unexpected OSC answer.");
+			}
+		} finally {
+			client.close();
+			server.close();
+		}
+		REPORT.println(roundTrip.getSummary());
+	}
+
+	/*
+	 * ENGINE
+	 */
+
+	/**
+	 * Lets several threads post cuts, tempo and note length changes to the Engine while it plays on a stand-in output.
+	 * Every command goes through Engine.post() and is executed by the engine thread inside its play loop.
+	 * Producers retry when the queue is full. Fails separately if commands are lost, executed twice
+	 * or executed as another type, and if the number of manual switches differs from the number of cuts,
+	 * because cuts are not merged.
+	 */
+	private static void runEngineCommandStress() throws Exception {
+		MediaFileParser.setMediaFiles(createMediaFiles(1000));
+		StandInPlayer player = new StandInPlayer();
+		MediaOutput output = new MediaOutput(1, player, null, new Random(1l), MediaOutput.FOLLOW_NOTE_LENGTH);
+		Engine.setOutputs(new MediaOutput[] {output});
+		Engine.setStatus(Status.READY);
+		Engine.play();
+		while (output.getCutCount() == 0l) Thread.sleep(1l);
+
+		// Only commands of the producers are counted.
+		int typeCount = CommandQueue.COMMAND_SHUTDOWN + 1;
+		long[] executedBefore = new long[typeCount];
+		for (int type = 0; type < typeCount; type++) executedBefore[type] = Engine.getExecutedCount(type);
+		long manualCutsBefore = output.getManualCutCount();
+
+		Thread[] producers = new Thread[PRODUCER_COMMANDS.length];
+		final long[] accepted = new long[PRODUCER_COMMANDS.length];
+		final long[] rejected = new long[PRODUCER_COMMANDS.length];
+		for (int p = 0; p < producers.length; p++) {
+			final int producer = p;
+			producers[p] = new Thread() {
+				public void run() {
+					int command = PRODUCER_COMMANDS[producer];
+					for (int i = 0; i < COMMANDS_PER_PRODUCER; i++) {
+						float value = command == CommandQueue.COMMAND_NOTE_LENGTH ? i % NoteLength.tempoMultipliers.length : 0f;
+						// A full queue is retried after the engine thread caught up.
+						while (!Engine.post(command, value)) {
+							rejected[producer]++;
+							Thread.yield();
+						}
+						accepted[producer]++;
+					}
+				}
+			};
+		}
+		long startNanos = System.nanoTime();
+		for (Thread producer : producers) producer.start();
+		for (Thread producer : producers) producer.join();
+
+		long[] acceptedByType = new long[typeCount];
+		long acceptedCount = 0l;
+		long rejectedCount = 0l;
+		for (int p = 0; p < producers.length; p++) {
+			acceptedByType[PRODUCER_COMMANDS[p]] += accepted[p];
+			acceptedCount += accepted[p];
+			rejectedCount += rejected[p];
+		}
+
+		// Wait until every command has been executed and every cut has been shown.
+		long[] executed = new long[typeCount];
+		long executedCount;
+		long manualCuts;
+		long timeout = System.currentTimeMillis() + COMMAND_STRESS_TIMEOUT;
+		do {
+			Thread.sleep(10l);
+			executedCount = 0l;
+			for (int type = 0; type < typeCount; type++) {
+				executed[type] = Engine.getExecutedCount(type) - executedBefore[type];
+				executedCount += executed[type];
+			}
+			manualCuts = output.getManualCutCount() - manualCutsBefore;
+		} while ((executedCount < acceptedCount || manualCuts < acceptedByType[CommandQueue.COMMAND_CUT])
+				&& System.currentTimeMillis() < timeout);
+		long elapsedMillis = (System.nanoTime() - startNanos) / 1000000l;
+
+		Engine.pause();
+		while (Engine.getStatus() == Status.PLAYING) Thread.sleep(1l);
+		Engine.setOutputs(new MediaOutput[0]);
+		MediaFileParser.setMediaFiles(new ArrayList<MediaFile>());
+
+		long lostCount = 0l;
+		long doubledCount = 0l;
+		long wrongTypeCount = 0l;
+		for (int type = 0; type < typeCount; type++) {
+			if (acceptedByType[type] == 0l) {
+				wrongTypeCount += executed[type];
+			} else {
+				lostCount += Math.max(0l, acceptedByType[type] - executed[type]);
+				doubledCount += Math.max(0l, executed[type] - acceptedByType[type]);
+			}
+		}
+
+		REPORT.println(
+				"Engine.commandStress: " + acceptedCount + " accepted, " + rejectedCount + " rejected, "
+				+ executedCount + " executed in " + elapsedMillis + " ms, " + lostCount + " lost, "
+				+ doubledCount + " executed twice, " + wrongTypeCount + " executed as another type, "
+				+ manualCuts + " switches for " + acceptedByType[CommandQueue.COMMAND_CUT] + " cuts"
+				);
+		if (acceptedCount != PRODUCER_COMMANDS.length * COMMANDS_PER_PRODUCER) {
+			throw new IllegalStateException("Engine commands have not been accepted.");
+		}
+		if (lostCount != 0l) throw new IllegalStateException("Engine commands have been lost.");
+		if (doubledCount != 0l) throw new IllegalStateException("Engine commands have been executed twice.");
+		if (wrongTypeCount != 0l) throw new IllegalStateException("Engine commands have been executed as another type.");
+		if (manualCuts != acceptedByType[CommandQueue.COMMAND_CUT]) {
+			throw new IllegalStateException("Engine cuts have been merged or shown twice.");
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring of preallocated audio blocks between exactly one capture (producer) thread
+ * and exactly one analysis (consumer) thread.
+ * The producer never blocks: if all blocks are full, the captured audio is dropped and counted as an overrun.
+ * The consumer parks while the ring is empty; if no block arrives within one block period while it waits,
+ * i.e. the capture fell behind real time, this counts as an underrun.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class AudioBlockRing {
+
+	/**
+	 * Longest time in ns that the consumer parks before checking the ring again
+	 */
+	private static final long MAX_PARK_TIME = 10000000l;
+
+	/**
+	 * Duration in ns of the audio in one full block
+	 */
+	private final long blockNanos;
+
+	/**
+	 * Preallocated sample blocks
+	 */
+	private final byte[][] blocks;
+
+	/**
+	 * Number of valid bytes per block
+	 */
+	private final int[] lengths;
+
+	/**
+	 * Number of blocks minus 1, used as index mask
+	 */
+	private final int mask;
+
+	/**
+	 * Number of blocks ever published; only written by the producer
+	 */
+	private final AtomicLong writeSequence = new AtomicLong();
+
+	/**
+	 * Number of blocks ever released; only written by the consumer
+	 */
+	private final AtomicLong readSequence = new AtomicLong();
+
+	/**
+	 * Producer's last known read sequence, to avoid reading the consumer's counter for every block
+	 */
+	private long cachedReadSequence = 0l;
+
+	/**
+	 * Consumer's last known write sequence
+	 */
+	private long cachedWriteSequence = 0l;
+
+	/**
+	 * Block that the producer writes into while the ring is full
+	 */
+	private final byte[] overrunBlock;
+
+	/**
+	 * Consumer thread while it is parked
+	 */
+	private volatile Thread parkedConsumer = null;
+
+	/**
+	 * Number of blocks that were dropped because the ring was full
+	 */
+	private final AtomicLong overrunCount = new AtomicLong();
+
+	/**
+	 * Number of waits in which no block arrived within one block period
+	 */
+	private final AtomicLong underrunCount = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param blockCount Number of blocks; rounded up to a power of two
+	 * @param blockSize Size of every block in bytes
+	 * @param blockNanos Duration in ns of the audio in one full block
+	 */
+	public AudioBlockRing(int blockCount, int blockSize, long blockNanos) {
+		this.blockNanos = blockNanos;
+		int capacity = Integer.highestOneBit(Math.max(2, blockCount) - 1) << 1;
+		mask = capacity - 1;
+		blocks = new byte[capacity][blockSize];
+		lengths = new int[capacity];
+		overrunBlock = new byte[blockSize];
+	}
+
+	/*
+	 * PRODUCER
+	 */
+
+	/**
+	 * Returns the block that the next captured audio has to be written into.
+	 * If the ring is full, a block is returned whose content will be dropped.
+	 * @return Block of blockSize bytes
+	 */
+	public byte[] claimWriteBlock() {
+		long sequence = writeSequence.get();
+		if (sequence - cachedReadSequence > mask) {
+			cachedReadSequence = readSequence.get();
+			if (sequence - cachedReadSequence > mask) return overrunBlock;
+		}
+		return blocks[(int) sequence & mask];
+	}
+
+	/**
+	 * Hands the claimed block to the consumer.
+	 * @param block Block that was returned by claimWriteBlock()
+	 * @param length Number of valid bytes in the block
+	 */
+	public void publishWriteBlock(byte[] block, int length) {
+		if (block == overrunBlock) {
+			overrunCount.incrementAndGet();
+			return;
+		}
+
+		long sequence = writeSequence.get();
+		lengths[(int) sequence & mask] = length;
+		// Volatile store: the block content is visible before the new sequence,
+		// and a consumer that is about to park reads the new sequence or is unparked below.
+		writeSequence.set(sequence + 1);
+
+		Thread consumer = parkedConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/*
+	 * CONSUMER
+	 */
+
+	/**
+	 * Waits until a block is available.
+	 * Waiting for the next block is normal, as long as it arrives within one block period;
+	 * a longer wait after the first block counts as one underrun.
+	 * @return False, if the calling thread has been interrupted
+	 */
+	public boolean awaitReadBlock() {
+		long sequence = readSequence.get();
+		if (sequence < cachedWriteSequence) return true;
+
+		cachedWriteSequence = writeSequence.get();
+		if (sequence < cachedWriteSequence) return true;
+
+		long underrunTime = System.nanoTime() + blockNanos;
+		boolean isUnderrun = sequence == 0l;
+		parkedConsumer = Thread.currentThread();
+		try {
+			while (sequence >= (cachedWriteSequence = writeSequence.get())) {
+				if (Thread.currentThread().isInterrupted()) return false;
+				if (!isUnderrun && System.nanoTime() - underrunTime > 0l) {
+					underrunCount.incrementAndGet();
+					isUnderrun = true;
+				}
+				LockSupport.parkNanos(this, MAX_PARK_TIME);
+			}
+		} finally {
+			parkedConsumer = null;
+		}
+		return true;
+	}
+
+	/**
+	 * @return True, if a block is available without waiting
+	 */
+	public boolean hasReadBlock() {
+		return readSequence.get() < writeSequence.get();
+	}
+
+	/**
+	 * Only valid after awaitReadBlock() returned true.
+	 * @return Oldest published block
+	 */
+	public byte[] getReadBlock() {
+		return blocks[(int) readSequence.get() & mask];
+	}
+
+	/**
+	 * @return Number of valid bytes in the oldest published block
+	 */
+	public int getReadLength() {
+		return lengths[(int) readSequence.get() & mask];
+	}
+
+	/**
+	 * Returns the oldest published block to the producer.
+	 */
+	public void releaseReadBlock() {
+		readSequence.lazySet(readSequence.get() + 1);
+	}
+
+	/**
+	 * Lets a parked consumer check the ring right away, e.g. to stop.
+	 */
+	public void wakeConsumer() {
+		Thread consumer = parkedConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/*
+	 * COUNTERS
+	 */
+
+	/**
+	 * @return Number of blocks that were dropped because the analysis fell behind
+	 */
+	public long getOverrunCount() {
+		return overrunCount.get();
+	}
+
+	/**
+	 * @return Number of times the capture delivered no audio for longer than a block period
+	 */
+	public long getUnderrunCount() {
+		return underrunCount.get();
+	}
+
+	/**
+	 * @return Number of blocks that are waiting for the consumer
+	 */
+	public int getFillLevel() {
+		return (int) (writeSequence.get() - readSequence.get());
+	}
+
+	/**
+	 * @return Number of blocks in the ring
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+}
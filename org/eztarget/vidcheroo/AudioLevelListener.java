@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+/**
+ * Receives the input level of every audio buffer that the beat detector captures.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public interface AudioLevelListener {
+
+	/**
+	 * Called on the audio analysis thread after every captured buffer.
+	 * Implementations have to return quickly and should not allocate, otherwise the analysis falls behind.
+	 * @param rmsLevel Root mean square of the signal, between 0 and 128
+	 */
+	void levelChanged(int rmsLevel);
+}
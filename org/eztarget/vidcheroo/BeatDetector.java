@@ -16,6 +16,8 @@
 
 package org.eztarget.vidcheroo;
 
+import java.util.Arrays;
+
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
@@ -23,7 +25,8 @@ import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.TargetDataLine;
 
 /**
- * Experimental beat detector
+ * Captures the audio input, meters its level and detects its tempo.
+ * Confirmed tempo changes are applied to the configuration while tempo detection is enabled.
  * 
  * @author michel@easy-target.org
  *
@@ -36,27 +39,42 @@ public class BeatDetector {
 	private static BeatDetector instance = null;
 	
 	/**
-	 * 
+	 * Set while the capture and analysis threads are running
 	 */
-	private static boolean isRunning = false;
+	private static volatile boolean isRunning = false;
 	
 	/**
-	 *
+	 * Opened audio input line
 	 */
 	private static TargetDataLine line;
 	
+	/**
+	 * Sample rate of the audio input in Hz
+	 */
+	private static final float SAMPLE_RATE = 44100f;
+	
+	/**
+	 * Smallest difference in BPM between a detected and the current tempo that changes the configuration
+	 */
+	private static final float TEMPO_TOLERANCE = 1f;
+	
+	/**
+	 * Onset and tempo detector of the analysis thread
+	 */
+	private static OnsetDetector onsetDetector;
+	
 	/**
 	 * Constructor
-	 * Starts the key event dispatcher.
+	 * Opens the audio input line.
 	 */
 	protected BeatDetector() {
-		AudioFormat format = new AudioFormat(8000, 8, 1, true, true);
-	    System.out.println("Starting beat detector with audio format " + format.toString() + ".");
+		AudioFormat format = new AudioFormat(SAMPLE_RATE, 8, 1, true, true);
+	    Log.info("Starting beat detector with audio format " + format.toString() + ".");
 	    
 		DataLine.Info info = new DataLine.Info(TargetDataLine.class, 
 				format); // format is an AudioFormat object
 		if (!AudioSystem.isLineSupported(info)) {
-			System.err.println("ERROR: " + info + " is not supported.");
+			Log.error(info + " is not supported.");
 			//TODO: Make sure nothing in this class is started.
 			return;
 		}
@@ -65,9 +83,9 @@ public class BeatDetector {
 		try {
 			line = (TargetDataLine) AudioSystem.getLine(info);
 			line.open(format);
-			System.out.println("Opened target data line " + line.toString() + ".");
+			Log.info("Opened target data line " + line.toString() + ".");
 		} catch (LineUnavailableException ex) {
-			ex.printStackTrace();
+			Log.error("Could not open the audio input line.", ex);
 			return;
 		}
 	}
@@ -88,95 +106,258 @@ public class BeatDetector {
 	 */
 
 	/**
-	 * Value in ms during which the capture thread will sleep.
+	 * Length in ms of audio that is read and measured at once.
+	 * The capture thread blocks until this much audio is available, so nothing is dropped.
+	 */
+	private static final int READ_LENGTH = 20;
+	
+	/**
+	 * Number of audio blocks that the analysis may fall behind the capture, i.e. about 1.3 s
+	 */
+	private static final int RING_BLOCKS = 64;
+	
+	/**
+	 * Blocks that are passed from the capture thread to the analysis thread
+	 */
+	private static volatile AudioBlockRing audioRing;
+	
+	/**
+	 * Thread that reads the audio input into the ring
+	 */
+	private static Thread captureThread;
+	
+	/**
+	 * Thread that measures the captured audio
 	 */
-	private static final int SLEEP_TIME = 20;
+	private static Thread analysisThread;
 	
 	/**
-	 * 
+	 * Starts the capture thread, which only reads the audio input into a lock-free ring,
+	 * and the analysis thread, which measures every block, notifies the level listeners
+	 * and passes confirmed tempo changes to the configuration.
 	 */
-	public static void start() {
+	public static synchronized void start() {
 		if (line == null) {
-			System.err.println("ERROR: Target data line is null. Cannot start audio monitoring.");
+			Log.error("Target data line is null. Cannot start audio monitoring.");
 			return;
 		}
+		if (isRunning) return;
+		
+		// Threads of a previous start must not see the new isRunning and read the line at the same time.
+		joinThreads();
 
+		if (DEBUG_DISPLAY_RMS) addLevelListener(DEBUG_LEVEL_DISPLAY);
+		
+		final AudioFormat format = line.getFormat();
+		final int readLength = (int) (format.getFrameRate() * READ_LENGTH / 1000) * format.getFrameSize();
+		final int blockSize = Math.min(readLength, line.getBufferSize());
+		final AudioBlockRing ring = new AudioBlockRing(
+				RING_BLOCKS,
+				blockSize,
+				(long) (blockSize / format.getFrameSize() * 1000000000d / format.getFrameRate())
+				);
+		audioRing = ring;
+		onsetDetector = new OnsetDetector(
+				format.getSampleRate(),
+				ConfigurationHandler.MIN_TEMPO,
+				ConfigurationHandler.MAX_TEMPO
+				);
 		
-		Thread audioThread = new Thread() {
+		captureThread = new Thread() {
 			public void run() {	
-				
-				// Assume that the TargetDataLine, line, has already
-				// been obtained and opened.
-				//int numBytesRead;
-				byte[] data = new byte[line.getBufferSize() / 5];
-
-				// Begin audio capture.
-				line.start();
-				
-				isRunning = true;
-				
 				while (isRunning) {
-				   // Read the next chunk of data from the TargetDataLine.
-				   //numBytesRead = line.read(data, 0, data.length);
-				   line.read(data, 0, data.length);
-				   // Save this chunk of data.
-				   //out.write(data, 0, numBytesRead);
-				   calculateRmsLevel(data);
-				   
-				   try {
-					Thread.sleep(SLEEP_TIME);
-				   } catch (InterruptedException e) {
-					   e.printStackTrace();
-				   }
+					// Blocks until the block is full or the line is stopped.
+					byte[] block = ring.claimWriteBlock();
+					int numBytesRead = line.read(block, 0, block.length);
+					if (numBytesRead > 0) ring.publishWriteBlock(block, numBytesRead);
 				}
 			}
 		};
+		captureThread.setName("Vidcheroo Audio Capture");
+		captureThread.setDaemon(true);
+		captureThread.setPriority(Thread.MAX_PRIORITY);
+		
+		analysisThread = new Thread() {
+			public void run() {
+				while (isRunning && ring.awaitReadBlock()) {
+					byte[] block = ring.getReadBlock();
+					int length = ring.getReadLength();
+					Object frameEvent = Telemetry.beginDetectorFrame();
+					
+					int rmsLevel = calculateRmsLevel(block, length);
+					AudioLevelListener[] currentListeners = levelListeners;
+					for (int i = 0; i < currentListeners.length; i++) {
+						currentListeners[i].levelChanged(rmsLevel);
+					}
+					
+					boolean didConfirmTempo = onsetDetector.process(block, length);
+					ring.releaseReadBlock();
+					Telemetry.endDetectorFrame(frameEvent, length, rmsLevel, didConfirmTempo, onsetDetector.getTempo());
+					
+					if (didConfirmTempo) {
+						float detectedTempo = onsetDetector.getTempo();
+						if (Math.abs(detectedTempo - ConfigurationHandler.getTempo()) >= TEMPO_TOLERANCE) {
+							if (Log.isDebug()) Log.debug("Detected tempo " + detectedTempo + ".");
+							Engine.setTempo(detectedTempo);
+						}
+					}
+				}
+			}
+		};
+		analysisThread.setName("Vidcheroo Audio Analysis");
+		analysisThread.setDaemon(true);
+		
+		isRunning = true;
+		// Begin audio capture before stop() can stop the line again.
+		line.start();
 		// Call-back to run().
-		audioThread.start();
+		analysisThread.start();
+		captureThread.start();
 	}
 	
 	/**
-	 * 
+	 * Stops both threads and unblocks a pending read.
 	 */
-	public void stop() {
+	public static synchronized void stop() {
+		if (!isRunning) return;
+		
 		isRunning = false;
+		if (line != null) {
+			line.stop();
+			line.flush();
+		}
+		if (analysisThread != null) analysisThread.interrupt();
+		removeLevelListener(DEBUG_LEVEL_DISPLAY);
+		
+		Log.info(
+				"Stopped beat detector. Overruns: " + getOverrunCount() + ", underruns: " + getUnderrunCount() + "."
+				);
 	}
 	
 	/**
-	 * 
+	 * Waits until the threads of the previous start have ended; they end soon after stop().
 	 */
-	private static boolean DEBUG_DISPLAY_RMS = true;
+	private static void joinThreads() {
+		boolean isInterrupted = false;
+		Thread[] threads = {captureThread, analysisThread};
+		for (Thread thread : threads) {
+			while (thread != null && thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					isInterrupted = true;
+				}
+			}
+		}
+		if (isInterrupted) Thread.currentThread().interrupt();
+	}
 	
 	/**
-	 * 
-	 * @param audioData
-	 * @return
+	 * @return Number of audio blocks that were dropped because the analysis fell behind
 	 */
-	private static int calculateRmsLevel(byte[] audioData) {
-		long lSum = 0;
-		for (int i=0; i<audioData.length; i++) lSum = lSum + audioData[i];
-
-		double average = lSum / audioData.length;
-
-		double sumMeanSquare = 0f;
-		for (int j=0; j < audioData.length; j++) {
-			sumMeanSquare = sumMeanSquare + Math.pow(audioData[j] - average, 2d);
+	public static long getOverrunCount() {
+		AudioBlockRing ring = audioRing;
+		return ring == null ? 0l : ring.getOverrunCount();
+	}
+	
+	/**
+	 * @return Number of times the analysis had to wait for captured audio
+	 */
+	public static long getUnderrunCount() {
+		AudioBlockRing ring = audioRing;
+		return ring == null ? 0l : ring.getUnderrunCount();
+	}
+	
+	/*
+	 * LEVEL LISTENERS
+	 */
+	
+	/**
+	 * Registered level listeners;
+	 * replaced instead of modified, so that the analysis thread iterates without locking or allocating.
+	 */
+	private static volatile AudioLevelListener[] levelListeners = new AudioLevelListener[0];
+	
+	/**
+	 * @param listener Listener that is called after every captured buffer
+	 */
+	public static synchronized void addLevelListener(AudioLevelListener listener) {
+		for (AudioLevelListener levelListener : levelListeners) {
+			if (levelListener == listener) return;
 		}
-
-		double averageMeanSquare = sumMeanSquare / audioData.length;
-		int rmsLevel = (int) (Math.pow(averageMeanSquare,0.5d) + 0.5);
-
-		if (DEBUG_DISPLAY_RMS) {
-			String levelDisplay = "Input level: ";
-			if (rmsLevel < 10) levelDisplay += '0';
-			levelDisplay += rmsLevel + " ";
-
-			for (int i = 0; i < rmsLevel; i ++) {
-				levelDisplay += '|';
-			}
-			System.out.println(levelDisplay);
+		AudioLevelListener[] newListeners = Arrays.copyOf(levelListeners, levelListeners.length + 1);
+		newListeners[levelListeners.length] = listener;
+		levelListeners = newListeners;
+	}
+	
+	/**
+	 * @param listener Previously added listener
+	 */
+	public static synchronized void removeLevelListener(AudioLevelListener listener) {
+		for (int i = 0; i < levelListeners.length; i++) {
+			if (levelListeners[i] != listener) continue;
+			
+			AudioLevelListener[] newListeners = new AudioLevelListener[levelListeners.length - 1];
+			System.arraycopy(levelListeners, 0, newListeners, 0, i);
+			System.arraycopy(levelListeners, i + 1, newListeners, i, newListeners.length - i);
+			levelListeners = newListeners;
+			return;
+		}
+	}
+	
+	/*
+	 * LEVEL METERING
+	 */
+	
+	/**
+	 * Prints the input level as a bar to the console.
+	 */
+	static boolean DEBUG_DISPLAY_RMS = false;
+	
+	/**
+	 * Console level display that is added while DEBUG_DISPLAY_RMS is set
+	 */
+	private static final AudioLevelListener DEBUG_LEVEL_DISPLAY = new AudioLevelListener() {
+		private final StringBuilder levelDisplay = new StringBuilder(160);
+		
+		public void levelChanged(int rmsLevel) {
+			levelDisplay.setLength(0);
+			levelDisplay.append("Input level: ");
+			if (rmsLevel < 10) levelDisplay.append('0');
+			levelDisplay.append(rmsLevel).append(' ');
+			for (int i = 0; i < rmsLevel; i++) levelDisplay.append('|');
+			Log.info(levelDisplay.toString());
 		}
-		return rmsLevel;
+	};
+	
+	/**
+	 * @param audioData Signed 8 bit samples
+	 * @return Root mean square of the signal without its DC offset, between 0 and 128
+	 */
+	static int calculateRmsLevel(byte[] audioData) {
+		return calculateRmsLevel(audioData, audioData.length);
+	}
+	
+	/**
+	 * Calculates sum and sum of squares in a single pass without allocating.
+	 * @param audioData Signed 8 bit samples
+	 * @param length Number of valid samples at the start of audioData
+	 * @return Root mean square of the signal without its DC offset, between 0 and 128
+	 */
+	static int calculateRmsLevel(byte[] audioData, int length) {
+		if (length <= 0) return 0;
+		
+		long sum = 0l;
+		long sumOfSquares = 0l;
+		for (int i = 0; i < length; i++) {
+			int sample = audioData[i];
+			sum += sample;
+			sumOfSquares += sample * sample;
+		}
+
+		// Variance = E[x^2] - E[x]^2, scaled by length^2 to stay in integers.
+		long scaledVariance = length * sumOfSquares - sum * sum;
+		return (int) (Math.sqrt((double) scaledVariance) / length + 0.5d);
 	}
 
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Precomputed beat times of a recording and the position of its downbeats.
+ * Positions on the grid are counted in beats since the first downbeat;
+ * between two beats the position is interpolated, before the first and after the last beat it is extrapolated.
+ *
+ * Cue file layout (big-endian):
+ * magic, version, beats per bar, index of the first downbeat, beat count (ints),
+ * time of the first beat in microseconds (long), distance to every following beat in microseconds (ints),
+ * CRC32 of everything before it (int).
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class BeatGrid {
+
+	/**
+	 * Extension that is appended to the name of the analysed recording
+	 */
+	public static final String FILE_EXTENSION = ".vcbg";
+
+	/**
+	 * "VCBG"
+	 */
+	private static final int MAGIC = 0x56434247;
+
+	/**
+	 * Version of the cue file layout
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Time of every beat in microseconds since the start of the recording, ascending
+	 */
+	private final long[] beatTimes;
+
+	/**
+	 * Number of beats in one bar
+	 */
+	private final int beatsPerBar;
+
+	/**
+	 * Index of the first beat that starts a bar
+	 */
+	private final int downbeatOffset;
+
+	/**
+	 * Constructor
+	 * @param beatTimes Time of every beat in microseconds since the start of the recording, strictly ascending; at least 2 beats
+	 * @param beatsPerBar Number of beats in one bar
+	 * @param downbeatOffset Index of the first beat that starts a bar
+	 */
+	public BeatGrid(long[] beatTimes, int beatsPerBar, int downbeatOffset) {
+		if (beatTimes.length < 2) throw new IllegalArgumentException("A beat grid needs at least 2 beats.");
+		this.beatTimes = beatTimes;
+		this.beatsPerBar = beatsPerBar;
+		this.downbeatOffset = downbeatOffset;
+	}
+
+	/**
+	 * @param time Time in microseconds since the start of the recording
+	 * @return Position in beats since the first downbeat
+	 */
+	public double getPosition(long time) {
+		int index = Arrays.binarySearch(beatTimes, time);
+		if (index < 0) index = -index - 2;
+		index = Math.max(0, Math.min(index, beatTimes.length - 2));
+
+		double beat = index + (double) (time - beatTimes[index]) / (beatTimes[index + 1] - beatTimes[index]);
+		return beat - downbeatOffset;
+	}
+
+	/**
+	 * @param position Position in beats since the first downbeat
+	 * @return Time in microseconds since the start of the recording
+	 */
+	public long getTime(double position) {
+		double beat = position + downbeatOffset;
+		int index = (int) Math.floor(beat);
+		index = Math.max(0, Math.min(index, beatTimes.length - 2));
+
+		return beatTimes[index] + Math.round((beat - index) * (beatTimes[index + 1] - beatTimes[index]));
+	}
+
+	/**
+	 * @return Number of beats
+	 */
+	public int getBeatCount() {
+		return beatTimes.length;
+	}
+
+	/**
+	 * @param index Beat index
+	 * @return Time in microseconds since the start of the recording
+	 */
+	public long getBeatTime(int index) {
+		return beatTimes[index];
+	}
+
+	/**
+	 * @param index Beat index
+	 * @return True, if the beat starts a bar
+	 */
+	public boolean isDownbeat(int index) {
+		return index >= downbeatOffset && (index - downbeatOffset) % beatsPerBar == 0;
+	}
+
+	/**
+	 * @return Number of beats in one bar
+	 */
+	public int getBeatsPerBar() {
+		return beatsPerBar;
+	}
+
+	/**
+	 * @return Average tempo in BPM
+	 */
+	public float getAverageTempo() {
+		long duration = beatTimes[beatTimes.length - 1] - beatTimes[0];
+		return (float) (60e6d * (beatTimes.length - 1) / duration);
+	}
+
+	/*
+	 * CUE FILE
+	 */
+
+	/**
+	 * @param cueFile File that will be replaced
+	 * @throws IOException
+	 */
+	public void write(File cueFile) throws IOException {
+		CRC32 checksum = new CRC32();
+		DataOutputStream output = new DataOutputStream(
+				new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(cueFile)), checksum)
+				);
+		try {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(beatsPerBar);
+			output.writeInt(downbeatOffset);
+			output.writeInt(beatTimes.length);
+			output.writeLong(beatTimes[0]);
+			for (int i = 1; i < beatTimes.length; i++) {
+				output.writeInt((int) (beatTimes[i] - beatTimes[i - 1]));
+			}
+			output.flush();
+			output.writeInt((int) checksum.getValue());
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * @param cueFile Previously written cue file
+	 * @return Restored beat grid
+	 * @throws IOException if the file cannot be read or is damaged
+	 */
+	public static BeatGrid read(File cueFile) throws IOException {
+		CRC32 checksum = new CRC32();
+		CheckedInputStream checkedInput = new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(cueFile)), checksum
+				);
+		DataInputStream input = new DataInputStream(checkedInput);
+		try {
+			if (input.readInt() != MAGIC) throw new IOException(cueFile + " is not a beat grid file.");
+			if (input.readInt() != VERSION) throw new IOException("Unsupported beat grid version in " + cueFile + ".");
+
+			int beatsPerBar = input.readInt();
+			int downbeatOffset = input.readInt();
+			int beatCount = input.readInt();
+			if (beatsPerBar < 1 || downbeatOffset < 0 || beatCount < 2) {
+				throw new IOException("Invalid beat grid header in " + cueFile + ".");
+			}
+
+			// Header (five ints), first beat (long), one int per further beat and the checksum (int):
+			// the file length bounds the beat count before anything is allocated.
+			if (cueFile.length() != 28l + 4l * beatCount) {
+				throw new IOException("Beat count does not match the length of " + cueFile + ".");
+			}
+
+			long[] beatTimes = new long[beatCount];
+			beatTimes[0] = input.readLong();
+			for (int i = 1; i < beatCount; i++) {
+				int distance = input.readInt();
+				if (distance <= 0) throw new IOException("Invalid beat distance in " + cueFile + ".");
+				beatTimes[i] = beatTimes[i - 1] + distance;
+			}
+
+			int expectedChecksum = (int) checksum.getValue();
+			if (input.readInt() != expectedChecksum) throw new IOException("Checksum mismatch in " + cueFile + ".");
+
+			return new BeatGrid(beatTimes, beatsPerBar, downbeatOffset);
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Offline analysis of a complete recording, e.g. a prepared DJ set, into a beat grid.
+ * The onset strength of all frames is calculated in parallel chunks,
+ * the average tempo is taken from its autocorrelation
+ * and the beats are tracked by dynamic programming, so that they follow tempo drifts.
+ * The recording is held in memory as 16 bit mono samples, i.e. about 5.3 MB per minute at 44.1 kHz,
+ * so that quiet passages keep their dynamics in the spectral flux.
+ *
+ * Usage: java -cp bin org.eztarget.vidcheroo.BeatGridAnalyser set.wav
+ * writes set.wav.vcbg, which can be used as beat_grid_file in the configuration.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class BeatGridAnalyser {
+
+	/**
+	 * Number of frames below which a chunk is not split any further
+	 */
+	private static final int CHUNK_FRAMES = 4096;
+
+	/**
+	 * Number of beats in one bar
+	 */
+	private static final int BEATS_PER_BAR = 4;
+
+	/**
+	 * Weight of the penalty for beat distances that differ from the average beat length
+	 */
+	private static final double TIGHTNESS = 100d;
+
+	/**
+	 * Tempo in BPM that is preferred if several tempi are equally likely
+	 */
+	private static final double PREFERRED_TEMPO = 120d;
+
+	/**
+	 * Size of the read buffer in bytes
+	 */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * MAIN METHOD
+	 *
+	 * @param args Path of the WAV or AIFF file
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: BeatGridAnalyser <WAV or AIFF file>");
+			return;
+		}
+
+		File audioFile = new File(args[0]);
+		File cueFile = new File(audioFile.getPath() + BeatGrid.FILE_EXTENSION);
+		try {
+			long startTime = System.currentTimeMillis();
+			BeatGrid beatGrid = analyse(audioFile);
+			beatGrid.write(cueFile);
+			System.out.println(
+					"Found " + beatGrid.getBeatCount() + " beats at " + beatGrid.getAverageTempo() + " BPM in "
+					+ (System.currentTimeMillis() - startTime) + " ms. Wrote " + cueFile + "."
+					);
+		} catch (UnsupportedAudioFileException e) {
+			System.err.println("ERROR: Unsupported audio file " + audioFile + ".");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param audioFile WAV or AIFF file that javax.sound.sampled can decode
+	 * @return Beat grid of the entire recording
+	 * @throws IOException if the file cannot be read or contains no beats
+	 * @throws UnsupportedAudioFileException if the file format is not supported
+	 */
+	public static BeatGrid analyse(File audioFile) throws IOException, UnsupportedAudioFileException {
+		float[] sampleRate = new float[1];
+		short[] samples = decode(audioFile, sampleRate);
+
+		int frameCount = OnsetDetector.getFrameCount(samples.length);
+		double[] strengths = new double[frameCount];
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new OnsetStrengthTask(samples, sampleRate[0], 0, frameCount, strengths));
+		} finally {
+			pool.shutdown();
+		}
+
+		double frameRate = sampleRate[0] / OnsetDetector.getHopSize();
+		double beatLength = estimateBeatLength(strengths, frameRate);
+		if (beatLength <= 0d) throw new IOException("Could not find a tempo in " + audioFile + ".");
+
+		int[] beatFrames = trackBeats(strengths, beatLength);
+		if (beatFrames.length < 2) throw new IOException("Could not find beats in " + audioFile + ".");
+
+		long[] beatTimes = new long[beatFrames.length];
+		for (int i = 0; i < beatFrames.length; i++) {
+			// The onset is in the newest hop of its frame.
+			beatTimes[i] = Math.round((beatFrames[i] + 0.5d) * 1e6d / frameRate);
+		}
+
+		return new BeatGrid(beatTimes, BEATS_PER_BAR, findDownbeatOffset(strengths, beatFrames));
+	}
+
+	/**
+	 * Decodes the entire file into signed 16 bit mono samples.
+	 * @param audioFile WAV or AIFF file
+	 * @param sampleRate Receives the sample rate at index 0
+	 * @return Samples
+	 */
+	private static short[] decode(File audioFile, float[] sampleRate) throws IOException, UnsupportedAudioFileException {
+		AudioInputStream sourceStream = AudioSystem.getAudioInputStream(audioFile);
+		AudioFormat sourceFormat = sourceStream.getFormat();
+		int channels = sourceFormat.getChannels();
+		AudioFormat pcmFormat = new AudioFormat(
+				AudioFormat.Encoding.PCM_SIGNED,
+				sourceFormat.getSampleRate(),
+				16,
+				channels,
+				channels * 2,
+				sourceFormat.getSampleRate(),
+				false
+				);
+		sampleRate[0] = pcmFormat.getSampleRate();
+
+		AudioInputStream pcmStream = AudioSystem.getAudioInputStream(pcmFormat, sourceStream);
+		try {
+			long frameLength = pcmStream.getFrameLength();
+			short[] output = new short[frameLength > 0 && frameLength < Integer.MAX_VALUE ? (int) frameLength : READ_BUFFER_SIZE];
+			int sampleCount = 0;
+
+			byte[] buffer = new byte[READ_BUFFER_SIZE - READ_BUFFER_SIZE % pcmFormat.getFrameSize()];
+			int bytesRead;
+			// AudioInputStream only returns complete frames.
+			while ((bytesRead = pcmStream.read(buffer)) > 0) {
+				int frameCount = bytesRead / pcmFormat.getFrameSize();
+				if (output.length - sampleCount < frameCount) {
+					output = Arrays.copyOf(output, Math.max(sampleCount + frameCount, output.length * 2));
+				}
+				for (int frame = 0; frame < bytesRead; frame += pcmFormat.getFrameSize()) {
+					int sum = 0;
+					for (int channel = 0; channel < channels; channel++) {
+						int offset = frame + channel * 2;
+						sum += (short) ((buffer[offset] & 0xFF) | (buffer[offset + 1] << 8));
+					}
+					output[sampleCount++] = (short) (sum / channels);
+				}
+			}
+			return sampleCount == output.length ? output : Arrays.copyOf(output, sampleCount);
+		} finally {
+			pcmStream.close();
+		}
+	}
+
+	/**
+	 * Calculates the onset strength of a range of frames; splits ranges that are longer than CHUNK_FRAMES.
+	 */
+	private static class OnsetStrengthTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final short[] samples;
+		private final float sampleRate;
+		private final int firstFrame, endFrame;
+		private final double[] strengths;
+
+		OnsetStrengthTask(short[] samples, float sampleRate, int firstFrame, int endFrame, double[] strengths) {
+			this.samples = samples;
+			this.sampleRate = sampleRate;
+			this.firstFrame = firstFrame;
+			this.endFrame = endFrame;
+			this.strengths = strengths;
+		}
+
+		@Override
+		protected void compute() {
+			if (endFrame - firstFrame <= CHUNK_FRAMES) {
+				OnsetDetector onsetDetector = new OnsetDetector(
+						sampleRate,
+						ConfigurationHandler.MIN_TEMPO,
+						ConfigurationHandler.MAX_TEMPO
+						);
+				onsetDetector.computeOnsetStrengths(samples, firstFrame, endFrame, strengths);
+				return;
+			}
+
+			int middleFrame = (firstFrame + endFrame) >>> 1;
+			invokeAll(
+					new OnsetStrengthTask(samples, sampleRate, firstFrame, middleFrame, strengths),
+					new OnsetStrengthTask(samples, sampleRate, middleFrame, endFrame, strengths)
+					);
+		}
+	}
+
+	/**
+	 * Finds the average beat length in the autocorrelation of the onset strength,
+	 * weighted towards PREFERRED_TEMPO and reinforced by the autocorrelation at twice the lag.
+	 * @param strengths Onset strength of all frames
+	 * @param frameRate Frames per second
+	 * @return Beat length in frames; 0 if no tempo was found
+	 */
+	private static double estimateBeatLength(double[] strengths, double frameRate) {
+		int minLag = (int) Math.floor(60d * frameRate / ConfigurationHandler.MAX_TEMPO);
+		int maxLag = (int) Math.ceil(60d * frameRate / ConfigurationHandler.MIN_TEMPO);
+		if (strengths.length <= 2 * maxLag + 3) return 0d;
+
+		double[] autocorrelation = new double[2 * maxLag + 3];
+		for (int lag = minLag; lag < autocorrelation.length; lag++) {
+			double sum = 0d;
+			for (int i = lag; i < strengths.length; i++) sum += strengths[i] * strengths[i - lag];
+			autocorrelation[lag] = sum / (strengths.length - lag);
+		}
+
+		double preferredLag = 60d * frameRate / PREFERRED_TEMPO;
+		double[] scores = new double[maxLag + 2];
+		int bestLag = 0;
+		for (int lag = minLag; lag <= maxLag + 1; lag++) {
+			double octaves = Math.log(lag / preferredLag) / Math.log(2d);
+			scores[lag] = Math.exp(-0.5d * octaves * octaves) * (autocorrelation[lag] + 0.5d * autocorrelation[2 * lag]);
+			if (lag <= maxLag && (bestLag == 0 || scores[lag] > scores[bestLag])) bestLag = lag;
+		}
+		if (scores[bestLag] <= 0d) return 0d;
+
+		// Parabolic interpolation between the neighbouring lags.
+		double beatLength = bestLag;
+		if (bestLag > minLag) {
+			double curvature = scores[bestLag - 1] - 2d * scores[bestLag] + scores[bestLag + 1];
+			if (curvature < 0d) beatLength += 0.5d * (scores[bestLag - 1] - scores[bestLag + 1]) / curvature;
+		}
+		return beatLength;
+	}
+
+	/**
+	 * Finds the sequence of frames that has the strongest onsets
+	 * while its distances stay close to the average beat length.
+	 * @param strengths Onset strength of all frames
+	 * @param beatLength Average beat length in frames
+	 * @return Frame index of every beat, ascending
+	 */
+	private static int[] trackBeats(double[] strengths, double beatLength) {
+		int frameCount = strengths.length;
+
+		// Normalise, so that the tightness penalty has the same weight for every recording.
+		double sumOfSquares = 0d;
+		for (double strength : strengths) sumOfSquares += strength * strength;
+		double deviation = Math.sqrt(sumOfSquares / frameCount);
+		if (deviation <= 0d) return new int[0];
+
+		int minDistance = Math.max(1, (int) Math.round(beatLength / 2d));
+		int maxDistance = (int) Math.round(beatLength * 2d);
+		double[] penalties = new double[maxDistance + 1];
+		for (int distance = minDistance; distance <= maxDistance; distance++) {
+			double logRatio = Math.log(distance / beatLength);
+			penalties[distance] = TIGHTNESS * logRatio * logRatio;
+		}
+
+		double[] scores = new double[frameCount];
+		int[] previousBeats = new int[frameCount];
+		for (int frame = 0; frame < frameCount; frame++) {
+			double bestPrevious = 0d;
+			int bestPreviousFrame = -1;
+			for (int distance = minDistance; distance <= maxDistance && distance <= frame; distance++) {
+				double score = scores[frame - distance] - penalties[distance];
+				if (bestPreviousFrame < 0 || score > bestPrevious) {
+					bestPrevious = score;
+					bestPreviousFrame = frame - distance;
+				}
+			}
+
+			double localScore = strengths[frame] / deviation;
+			if (bestPreviousFrame >= 0 && bestPrevious > 0d) {
+				scores[frame] = localScore + bestPrevious;
+				previousBeats[frame] = bestPreviousFrame;
+			} else {
+				scores[frame] = localScore;
+				previousBeats[frame] = -1;
+			}
+		}
+
+		// The last beat is the best one within the last beat length.
+		int lastBeat = frameCount - 1;
+		for (int frame = Math.max(0, frameCount - (int) Math.ceil(beatLength)); frame < frameCount; frame++) {
+			if (scores[frame] > scores[lastBeat]) lastBeat = frame;
+		}
+
+		int beatCount = 0;
+		for (int frame = lastBeat; frame >= 0; frame = previousBeats[frame]) beatCount++;
+		int[] beatFrames = new int[beatCount];
+		for (int frame = lastBeat, i = beatCount - 1; frame >= 0; frame = previousBeats[frame], i--) {
+			beatFrames[i] = frame;
+		}
+		return beatFrames;
+	}
+
+	/**
+	 * Assumes that the strongest onsets are on the first beat of a bar.
+	 * @param strengths Onset strength of all frames
+	 * @param beatFrames Frame index of every beat
+	 * @return Index of the first beat that starts a bar
+	 */
+	private static int findDownbeatOffset(double[] strengths, int[] beatFrames) {
+		double[] sums = new double[BEATS_PER_BAR];
+		for (int i = 0; i < beatFrames.length; i++) sums[i % BEATS_PER_BAR] += strengths[beatFrames[i]];
+
+		int downbeatOffset = 0;
+		for (int i = 1; i < BEATS_PER_BAR; i++) {
+			if (sums[i] > sums[downbeatOffset]) downbeatOffset = i;
+		}
+		return downbeatOffset;
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Calculates switch deadlines on a beat grid that starts at a fixed session origin.
+ * Deadlines are absolute nanosecond values, so oversleeping never adds up to drift.
+ * The beat phase is kept as a fractional number of quarter notes;
+ * tempo and note length changes continue from the current phase instead of restarting the grid.
+ * If a precomputed beat grid is given, the phase is read from it instead and tempo changes are ignored;
+ * the origin is then the start of the analysed recording.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class BeatScheduler {
+
+	/**
+	 * Result of awaitDeadline(): The deadline has been reached.
+	 */
+	public static final int DEADLINE_REACHED = 0;
+
+	/**
+	 * Result of awaitDeadline(): The waiting thread has been woken up before the deadline.
+	 */
+	public static final int WOKEN = 1;
+
+	/**
+	 * Result of awaitDeadline(): Tempo or note length changed, the deadline has to be calculated again.
+	 */
+	public static final int RESCHEDULED = 2;
+
+	/**
+	 * Result of awaitDeadline(): An external clock triggered a switch before the deadline, see MidiClock class.
+	 */
+	public static final int TRIGGERED = 3;
+
+	/**
+	 * Result of awaitDeadline(): A command has been posted to the command queue of the waiting thread.
+	 */
+	public static final int COMMAND = 4;
+
+	/**
+	 * Time in ns before a deadline at which parking ends and the thread yields until the deadline.
+	 * Parking usually oversleeps by more than this.
+	 */
+	private static final long SPIN_THRESHOLD = 1000000l;
+
+	/**
+	 * Fraction of a switch by which a phase may lie below a switch and still count as being on it.
+	 * Keeps rounding errors from returning a switch at the given time again.
+	 */
+	private static final double PHASE_TOLERANCE = 1e-6d;
+
+	/**
+	 * Time stamp in ns of the beat grid origin
+	 */
+	private final long originNanos;
+
+	/**
+	 * Time stamp in ns of the last tempo change
+	 */
+	private long rebaseNanos;
+
+	/**
+	 * Beat phase in quarter notes at rebaseNanos
+	 */
+	private double rebasePhase = 0d;
+
+	/**
+	 * Quarter notes per ns
+	 */
+	private double beatsPerNano;
+
+	/**
+	 * Length of one switch in quarter notes, e.g. 0.25 for 1/16th notes
+	 */
+	private double switchBeats;
+	
+	/**
+	 * Precomputed beats that are followed instead of the tempo; null for a fixed tempo
+	 */
+	private final BeatGrid beatGrid;
+
+	/**
+	 * Thread that is currently waiting for a deadline
+	 */
+	private volatile Thread waitingThread = null;
+
+	/**
+	 * Set to let the waiting thread return early
+	 */
+	private volatile boolean isWoken = false;
+
+	/**
+	 * Set to let the waiting thread calculate its deadline again
+	 */
+	private volatile boolean isRescheduled = false;
+
+	/**
+	 * Set to let the waiting thread switch on an external clock tick
+	 */
+	private volatile boolean isTriggered = false;
+
+	/**
+	 * Arrival time in ns of the last external clock tick that triggered a switch
+	 */
+	private volatile long triggerNanos = 0l;
+
+	/**
+	 * Commands of the waiting thread; waiting ends when one is posted. Null if the thread has no queue.
+	 */
+	private volatile CommandQueue commandQueue = null;
+
+	/**
+	 * Difference in ns between the last reached deadline and the actual wake-up time
+	 */
+	private volatile long lastJitterNanos = 0l;
+
+	/**
+	 * Highest jitter value in ns of this session
+	 */
+	private volatile long maxJitterNanos = 0l;
+
+	/**
+	 * Number of reached deadlines
+	 */
+	private volatile long deadlineCount = 0l;
+
+	/**
+	 * Sum of all jitter values in ns
+	 */
+	private long jitterSumNanos = 0l;
+
+	/**
+	 * Constructor
+	 * The beat grid starts now.
+	 * @param tempo Quarter notes per minute
+	 * @param tempoMultiplier Note length multiplier, see NoteLength class
+	 */
+	public BeatScheduler(float tempo, float tempoMultiplier) {
+		this(tempo, tempoMultiplier, null);
+	}
+	
+	/**
+	 * Constructor
+	 * The beat grid starts now.
+	 * @param tempo Quarter notes per minute; only used without a beat grid
+	 * @param tempoMultiplier Note length multiplier, see NoteLength class
+	 * @param beatGrid Precomputed beats of a recording that starts now; null for a fixed tempo
+	 */
+	public BeatScheduler(float tempo, float tempoMultiplier, BeatGrid beatGrid) {
+		this(tempo, tempoMultiplier, beatGrid, System.nanoTime());
+	}
+	
+	/**
+	 * Constructor
+	 * Used with a virtual clock, e.g. for rendering faster than real time.
+	 * Tempo changes are then based on System.nanoTime() and should not be used.
+	 * @param tempo Quarter notes per minute; only used without a beat grid
+	 * @param tempoMultiplier Note length multiplier, see NoteLength class
+	 * @param beatGrid Precomputed beats of a recording that starts at the origin; null for a fixed tempo
+	 * @param originNanos Time stamp in ns at which the beat grid starts
+	 */
+	public BeatScheduler(float tempo, float tempoMultiplier, BeatGrid beatGrid, long originNanos) {
+		this.beatGrid = beatGrid;
+		this.originNanos = originNanos;
+		rebaseNanos = originNanos;
+		beatsPerNano = tempo / 60e9d;
+		switchBeats = 1d / tempoMultiplier;
+	}
+
+	/**
+	 * @param nanos Time stamp in ns
+	 * @return Beat phase in quarter notes since the origin
+	 */
+	private double getPhase(long nanos) {
+		if (beatGrid != null) return beatGrid.getPosition((nanos - originNanos) / 1000l);
+		return rebasePhase + (nanos - rebaseNanos) * beatsPerNano;
+	}
+
+	/**
+	 * Changes the tempo; the beat phase continues at the current value.
+	 * Ignored while following a beat grid.
+	 * @param tempo Quarter notes per minute
+	 */
+	public synchronized void setTempo(float tempo) {
+		if (beatGrid != null) return;
+		
+		long now = System.nanoTime();
+		rebasePhase = getPhase(now);
+		rebaseNanos = now;
+		beatsPerNano = tempo / 60e9d;
+		reschedule();
+	}
+
+	/**
+	 * Changes the note length; the next switch is on the next multiple of this length since the origin.
+	 * @param tempoMultiplier Note length multiplier, see NoteLength class
+	 */
+	public synchronized void setTempoMultiplier(float tempoMultiplier) {
+		switchBeats = 1d / tempoMultiplier;
+		reschedule();
+	}
+
+	/**
+	 * @return Absolute time stamp in ns (System.nanoTime()) of the next switch on the beat grid
+	 */
+	public long getNextSwitchDeadline() {
+		return getSwitchDeadlineAfter(System.nanoTime());
+	}
+
+	/**
+	 * @param nanos Time stamp in ns on the clock of the origin
+	 * @return Time stamp in ns of the first switch on the beat grid after the given time
+	 */
+	public synchronized long getSwitchDeadlineAfter(long nanos) {
+		return getSwitchDeadlineAfter(nanos, switchBeats);
+	}
+
+	/**
+	 * Used by outputs with their own note length; their switches are on the same grid.
+	 * @param nanos Time stamp in ns on the clock of the origin
+	 * @param tempoMultiplier Note length multiplier, see NoteLength class
+	 * @return Time stamp in ns of the first switch of the given note length after the given time
+	 */
+	public synchronized long getSwitchDeadlineAfter(long nanos, float tempoMultiplier) {
+		return getSwitchDeadlineAfter(nanos, 1d / tempoMultiplier);
+	}
+
+	/**
+	 * @param nanos Time stamp in ns on the clock of the origin
+	 * @param switchBeats Length of one switch in quarter notes
+	 * @return Time stamp in ns of the first switch after the given time
+	 */
+	private long getSwitchDeadlineAfter(long nanos, double switchBeats) {
+		double nextPhase = (Math.floor(getPhase(nanos) / switchBeats + PHASE_TOLERANCE) + 1d) * switchBeats;
+		if (beatGrid != null) return originNanos + beatGrid.getTime(nextPhase) * 1000l;
+		return rebaseNanos + (long) ((nextPhase - rebasePhase) / beatsPerNano);
+	}
+
+	/**
+	 * Parks the calling thread until the given deadline.
+	 * The last part of the wait yields instead of parking, so that the deadline is not overslept.
+	 * @param deadlineNanos Absolute time stamp in ns (System.nanoTime())
+	 * @return DEADLINE_REACHED, WOKEN, RESCHEDULED, TRIGGERED or COMMAND
+	 */
+	public int awaitDeadline(long deadlineNanos) {
+		waitingThread = Thread.currentThread();
+		try {
+			while (true) {
+				if (isTriggered) {
+					isTriggered = false;
+					isRescheduled = false;
+					return TRIGGERED;
+				}
+				if (isWoken) {
+					isWoken = false;
+					isRescheduled = false;
+					return WOKEN;
+				}
+				if (isRescheduled) {
+					isRescheduled = false;
+					return RESCHEDULED;
+				}
+				CommandQueue queue = commandQueue;
+				if (queue != null && !queue.isEmpty()) return COMMAND;
+
+				long remaining = deadlineNanos - System.nanoTime();
+				if (remaining <= 0l) break;
+
+				if (remaining > SPIN_THRESHOLD) LockSupport.parkNanos(remaining - SPIN_THRESHOLD);
+				else Thread.yield();
+			}
+		} finally {
+			waitingThread = null;
+		}
+
+		long jitter = System.nanoTime() - deadlineNanos;
+		recordJitter(jitter);
+		return DEADLINE_REACHED;
+	}
+
+	/**
+	 * Lets a waiting thread return right away, e.g. for a manual switch or to stop playing.
+	 */
+	public void wake() {
+		isWoken = true;
+		Thread thread = waitingThread;
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Lets awaitDeadline() return as soon as a command is waiting in the given queue.
+	 * Only the consumer of the queue may wait; producers have to unpark it after posting.
+	 * @param commandQueue Commands of the waiting thread; null to ignore commands
+	 */
+	public void setCommandQueue(CommandQueue commandQueue) {
+		this.commandQueue = commandQueue;
+	}
+
+	/**
+	 * Lets a waiting thread switch right away on the tick of an external clock.
+	 * @param nanos Arrival time of the tick in ns (System.nanoTime())
+	 */
+	public void trigger(long nanos) {
+		triggerNanos = nanos;
+		isTriggered = true;
+		Thread thread = waitingThread;
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+	/**
+	 * @return Arrival time in ns of the last external clock tick that triggered a switch
+	 */
+	public long getTriggerNanos() {
+		return triggerNanos;
+	}
+
+	/**
+	 * Lets a waiting thread calculate its deadline again.
+	 */
+	private void reschedule() {
+		isRescheduled = true;
+		Thread thread = waitingThread;
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+	/**
+	 * @param jitterNanos Measured lateness of a wake-up in ns
+	 */
+	private synchronized void recordJitter(long jitterNanos) {
+		lastJitterNanos = jitterNanos;
+		if (jitterNanos > maxJitterNanos) maxJitterNanos = jitterNanos;
+		jitterSumNanos += jitterNanos;
+		deadlineCount++;
+	}
+
+	/**
+	 * @return Lateness of the last wake-up in ns
+	 */
+	public long getLastJitterNanos() {
+		return lastJitterNanos;
+	}
+
+	/**
+	 * @return Highest lateness of a wake-up in ns
+	 */
+	public long getMaxJitterNanos() {
+		return maxJitterNanos;
+	}
+
+	/**
+	 * @return Average lateness of all wake-ups in ns
+	 */
+	public synchronized long getAverageJitterNanos() {
+		if (deadlineCount == 0l) return 0l;
+		return jitterSumNanos / deadlineCount;
+	}
+
+	/**
+	 * @return Number of reached deadlines
+	 */
+	public long getDeadlineCount() {
+		return deadlineCount;
+	}
+
+	/**
+	 * @return Time stamp in ns at which the beat grid started
+	 */
+	public long getOriginNanos() {
+		return originNanos;
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.eztarget.vidcheroo;
+
+/**
+ * Lock-free queue of control commands from any number of input threads to a single consumer thread.
+ * A command is a type and one numeric value; offering and polling never block or allocate.
+ * If the ring is full, commands are dropped and counted.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class CommandQueue {
+
+	/**
+	 * Command: Start playing; ignored while playing
+	 */
+	public static final int COMMAND_PLAY = 1;
+
+	/**
+	 * Command: Stop playing
+	 */
+	public static final int COMMAND_PAUSE = 2;
+
+	/**
+	 * Command: Change the tempo; value: BPM, or 0 if the configured tempo has changed
+	 */
+	public static final int COMMAND_TEMPO = 3;
+
+	/**
+	 * Command: Change the note length; value: NoteLength index
+	 */
+	public static final int COMMAND_NOTE_LENGTH = 4;
+
+	/**
+	 * Command: Switch to the next media file right away; ignored while not playing
+	 */
+	public static final int COMMAND_CUT = 5;
+
+	/**
+	 * Command: Compare the media directory with the library and analyse new or changed files
+	 */
+	public static final int COMMAND_RELOAD = 6;
+
+	/**
+	 * Command: Answer the sender, used to measure the round trip; value: sequence number
+	 */
+	public static final int COMMAND_PING = 7;
+
+	/**
+	 * Command: Start playing or, while playing, switch to the next media file right away
+	 */
+	public static final int COMMAND_PLAY_OR_CUT = 8;
+
+	/**
+	 * Command: Switch the media frames between window and full screen; playing is paused meanwhile
+	 */
+	public static final int COMMAND_FULLSCREEN = 9;
+
+	/**
+	 * Command: Change the Engine status, optionally only from an expected status; value: encoded by the Engine
+	 */
+	public static final int COMMAND_STATUS = 10;
+
+	/**
+	 * Command: Stop playing, store the settings and exit
+	 */
+	public static final int COMMAND_SHUTDOWN = 11;
+
+	/**
+	 * Result of poll(): No command is waiting.
+	 */
+	public static final int NONE = 0;
+
+	/**
+	 * Sequence numbers of the ring slots
+	 */
+	private final SlotRing ring;
+
+	/**
+	 * Ring slots: command type
+	 */
+	private final int[] commands;
+
+	/**
+	 * Ring slots: command value
+	 */
+	private final float[] values;
+
+	/**
+	 * Ring slots: System.nanoTime() at which the command was offered
+	 */
+	private final long[] times;
+
+	/**
+	 * Value of the last polled command; only used by the consumer
+	 */
+	private float polledValue = 0f;
+
+	/**
+	 * Offer time of the last polled command; only used by the consumer
+	 */
+	private long polledNanos = 0l;
+
+	/**
+	 * Constructor
+	 * @param capacity Number of commands that can wait for the consumer; rounded up to a power of 2
+	 */
+	public CommandQueue(int capacity) {
+		ring = new SlotRing(capacity);
+		commands = new int[ring.getCapacity()];
+		values = new float[ring.getCapacity()];
+		times = new long[ring.getCapacity()];
+	}
+
+	/**
+	 * Claims a ring slot, fills it and publishes it to the consumer.
+	 * Any number of threads may offer at the same time.
+	 * @param command Command type, see COMMAND constants
+	 * @param value Command value
+	 * @return False, if the ring was full and the command has been dropped
+	 */
+	public boolean offer(int command, float value) {
+		int slot = ring.claim();
+		if (slot < 0) return false;
+
+		commands[slot] = command;
+		values[slot] = value;
+		times[slot] = System.nanoTime();
+		ring.publish(slot);
+		return true;
+	}
+
+	/**
+	 * Takes the oldest published command. Only one thread may poll.
+	 * Its value and offer time are available through getPolledValue() and getPolledNanos() until the next poll.
+	 * @return Command type; NONE if no command is waiting
+	 */
+	public int poll() {
+		int slot = ring.peek();
+		if (slot < 0) return NONE;
+
+		int command = commands[slot];
+		polledValue = values[slot];
+		polledNanos = times[slot];
+		ring.release();
+		return command;
+	}
+
+	/**
+	 * Only the polling thread may call this.
+	 * @return True, if no published command is waiting
+	 */
+	public boolean isEmpty() {
+		return ring.isEmpty();
+	}
+
+	/**
+	 * @return Value of the last polled command
+	 */
+	public float getPolledValue() {
+		return polledValue;
+	}
+
+	/**
+	 * @return System.nanoTime() at which the last polled command was offered
+	 */
+	public long getPolledNanos() {
+		return polledNanos;
+	}
+
+	/**
+	 * @return Number of commands that were dropped because the ring was full
+	 */
+	public long getDroppedCount() {
+		return ring.getDroppedCount();
+	}
+}
@@ -16,6 +16,8 @@
 
 package org.eztarget.vidcheroo;
 
+import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -23,6 +25,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.Properties;
 
 import uk.co.caprica.vlcj.binding.LibVlc;
@@ -75,7 +80,99 @@ public class ConfigurationHandler {
 	/**
 	 * The current musical tempo value, i.e. beats or quarter notes per minute.
 	 */
-	private static float tempo = 120f;
+	private static volatile float tempo = 120f;
+	
+	/**
+	 * Number of parallel, headless analysers used when parsing the media path.
+	 * A value of 1 analyses all files one after another in a visible frame.
+	 */
+	private static int analyserThreads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Number of analysed files after which playback may start while the analysis continues.
+	 * A value of 0 waits for the entire analysis.
+	 */
+	private static int streamingMinFiles = 8;
+	
+	/**
+	 * If true, the media path is watched and changed files are analysed during playback.
+	 */
+	private static boolean watchMediaPath = false;
+	
+	/**
+	 * If true, the tempo is detected from the audio input while playing.
+	 */
+	private static boolean detectTempo = false;
+	
+	/**
+	 * Absolute path to a cue file whose precomputed beats are followed while playing; null for a fixed tempo.
+	 */
+	private static String beatGridPath;
+	
+	/**
+	 * Part of the name of a MIDI input device whose clock is followed while playing; null for the own tempo.
+	 */
+	private static String midiClockInput;
+	
+	/**
+	 * UDP port of the OSC control server; 0 if no server is started.
+	 */
+	private static int oscPort = 0;
+	
+	/**
+	 * Local interface of the OSC control server; 127.0.0.1 only accepts messages from this computer.
+	 */
+	private static String oscHost = "127.0.0.1";
+	
+	/**
+	 * If true, every screen gets its own media output; otherwise only the main output is used.
+	 */
+	private static boolean screenOutputs = false;
+	
+	/**
+	 * Comma-separated NoteLength indices per output, "-" or nothing to follow the selected note length.
+	 */
+	private static String outputNoteLengths = "";
+	
+	/**
+	 * How the next media file is chosen, see MediaSelector modes.
+	 */
+	private static String selectionMode = MediaSelector.MODE_SHUFFLE;
+	
+	/**
+	 * Number of recently played media files that are not chosen again.
+	 */
+	private static int recentWindow = 4;
+	
+	/**
+	 * Number of media file choices that are made ahead of time.
+	 */
+	private static int lookahead = 2;
+	
+	/**
+	 * Seed of the media selection and start time choices; a configured seed makes a session reproducible.
+	 */
+	private static long randomSeed = System.nanoTime();
+	
+	/**
+	 * If true, randomSeed has been read from the configuration and is stored again.
+	 */
+	private static boolean isRandomSeedConfigured = false;
+	
+	/**
+	 * If true, every session is recorded into a journal in journalPath.
+	 */
+	private static boolean recordJournal = false;
+	
+	/**
+	 * Directory of the session journals; null for a "journals" directory in the launch directory.
+	 */
+	private static String journalPath = null;
+	
+	/**
+	 * Number of session journals that are kept; older ones are deleted when a new session starts. 0 keeps all.
+	 */
+	private static int journalLimit = 20;
 	
 	/*
 	 * Singleton Constructor Methods
@@ -114,7 +211,7 @@ public class ConfigurationHandler {
 			}
 		}
 		
-		System.out.println("Using feed path: " + mediaPath);
+		Log.info("Using feed path: " + mediaPath);
 	}
 
 	/**
@@ -157,13 +254,103 @@ public class ConfigurationHandler {
 	 * Key of the tempo attribute in the configuration properties file.
 	 */
 	private static final String CONFIG_KEY_TEMPO = "tempo";
+	
+	/**
+	 * Key of the number of analyser threads in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_ANALYSER_THREADS = "analyser_threads";
+	
+	/**
+	 * Key of the minimum number of streamed files in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_STREAMING_MIN_FILES = "streaming_min_files";
+	
+	/**
+	 * Key of the media path watching flag in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_WATCH_MEDIA_PATH = "watch_media_path";
+	
+	/**
+	 * Key of the tempo detection flag in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_DETECT_TEMPO = "detect_tempo";
+	
+	/**
+	 * Key of the beat grid cue file path in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_BEAT_GRID_FILE = "beat_grid_file";
+	
+	/**
+	 * Key of the MIDI clock input device name in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_MIDI_CLOCK_INPUT = "midi_clock_input";
+	
+	/**
+	 * Key of the OSC control server port in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_OSC_PORT = "osc_port";
+	
+	/**
+	 * Key of the OSC control server interface in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_OSC_HOST = "osc_host";
+	
+	/**
+	 * Key of the screen outputs flag in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_SCREEN_OUTPUTS = "screen_outputs";
+	
+	/**
+	 * Key of the note lengths per output in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_OUTPUT_NOTE_LENGTHS = "output_note_lengths";
+	
+	/**
+	 * Key of the media selection mode in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_SELECTION_MODE = "selection_mode";
+	
+	/**
+	 * Key of the number of excluded recent media files in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_RECENT_WINDOW = "recent_window";
+	
+	/**
+	 * Key of the number of media file choices ahead of time in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_LOOKAHEAD = "lookahead";
+	
+	/**
+	 * Key of the random seed in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_RANDOM_SEED = "random_seed";
+	
+	/**
+	 * Key of the session journal flag in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_RECORD_JOURNAL = "record_journal";
+	
+	/**
+	 * Key of the session journal directory in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_JOURNAL_PATH = "journal_path";
+	
+	/**
+	 * Key of the number of kept session journals in the configuration properties file.
+	 */
+	private static final String CONFIG_KEY_JOURNAL_LIMIT = "journal_limit";
+	
+	/**
+	 * Key of the lowest logged level in the configuration properties file: debug, info, warning or error.
+	 */
+	private static final String CONFIG_KEY_LOG_LEVEL = "log_level";
 
 	/**
 	 * Looks for the properties file in the directory that the application was launched for.
 	 * If the file was found, the properties are read and stored in the attributes.
 	 */
 	private static void restoreConfigProperties() {
-		System.out.println("Searching for configuration at " + CONFIG_PROPERTIES_FILE + ".");
+		Log.info("Searching for configuration at " + CONFIG_PROPERTIES_FILE + ".");
 				
 		InputStream input = null;
 		 
@@ -176,6 +363,52 @@ public class ConfigurationHandler {
 			prop.load(input);
 	 
 			// Get the predefined properties values and apply them to the config attributes.
+			// Analyser threads, before the media path triggers the parser:
+			String analyserThreadsProperty = prop.getProperty(CONFIG_KEY_ANALYSER_THREADS);
+			if (analyserThreadsProperty != null) setAnalyserThreads(analyserThreadsProperty);
+			String streamingMinFilesProperty = prop.getProperty(CONFIG_KEY_STREAMING_MIN_FILES);
+			if (streamingMinFilesProperty != null) setStreamingMinFiles(streamingMinFilesProperty);
+			String watchMediaPathProperty = prop.getProperty(CONFIG_KEY_WATCH_MEDIA_PATH);
+			if (watchMediaPathProperty != null) watchMediaPath = Boolean.parseBoolean(watchMediaPathProperty.trim());
+			String detectTempoProperty = prop.getProperty(CONFIG_KEY_DETECT_TEMPO);
+			if (detectTempoProperty != null) detectTempo = Boolean.parseBoolean(detectTempoProperty.trim());
+			String beatGridProperty = prop.getProperty(CONFIG_KEY_BEAT_GRID_FILE);
+			if (beatGridProperty != null && beatGridProperty.trim().length() > 0) beatGridPath = beatGridProperty.trim();
+			String midiClockInputProperty = prop.getProperty(CONFIG_KEY_MIDI_CLOCK_INPUT);
+			if (midiClockInputProperty != null && midiClockInputProperty.trim().length() > 0) {
+				midiClockInput = midiClockInputProperty.trim();
+			}
+			String oscPortProperty = prop.getProperty(CONFIG_KEY_OSC_PORT);
+			if (oscPortProperty != null) oscPort = parseNonNegative(oscPortProperty, oscPort);
+			String oscHostProperty = prop.getProperty(CONFIG_KEY_OSC_HOST);
+			if (oscHostProperty != null && oscHostProperty.trim().length() > 0) oscHost = oscHostProperty.trim();
+			String screenOutputsProperty = prop.getProperty(CONFIG_KEY_SCREEN_OUTPUTS);
+			if (screenOutputsProperty != null) screenOutputs = Boolean.parseBoolean(screenOutputsProperty.trim());
+			String outputNoteLengthsProperty = prop.getProperty(CONFIG_KEY_OUTPUT_NOTE_LENGTHS);
+			if (outputNoteLengthsProperty != null) outputNoteLengths = outputNoteLengthsProperty.trim();
+			String selectionModeProperty = prop.getProperty(CONFIG_KEY_SELECTION_MODE);
+			if (selectionModeProperty != null) selectionMode = selectionModeProperty.trim();
+			String recentWindowProperty = prop.getProperty(CONFIG_KEY_RECENT_WINDOW);
+			if (recentWindowProperty != null) recentWindow = parseNonNegative(recentWindowProperty, recentWindow);
+			String lookaheadProperty = prop.getProperty(CONFIG_KEY_LOOKAHEAD);
+			if (lookaheadProperty != null) lookahead = parseNonNegative(lookaheadProperty, lookahead);
+			String recordJournalProperty = prop.getProperty(CONFIG_KEY_RECORD_JOURNAL);
+			if (recordJournalProperty != null) recordJournal = Boolean.parseBoolean(recordJournalProperty.trim());
+			String journalPathProperty = prop.getProperty(CONFIG_KEY_JOURNAL_PATH);
+			if (journalPathProperty != null && journalPathProperty.trim().length() > 0) journalPath = journalPathProperty.trim();
+			String journalLimitProperty = prop.getProperty(CONFIG_KEY_JOURNAL_LIMIT);
+			if (journalLimitProperty != null) journalLimit = parseNonNegative(journalLimitProperty, journalLimit);
+			String logLevelProperty = prop.getProperty(CONFIG_KEY_LOG_LEVEL);
+			if (logLevelProperty != null) Log.setLevel(Log.parseLevel(logLevelProperty, Log.getLevel()));
+			String randomSeedProperty = prop.getProperty(CONFIG_KEY_RANDOM_SEED);
+			if (randomSeedProperty != null && randomSeedProperty.trim().length() > 0) {
+				try {
+					randomSeed = Long.parseLong(randomSeedProperty.trim());
+					isRandomSeedConfigured = true;
+				} catch (NumberFormatException e) {
+					Log.warning("Ignoring invalid random seed " + randomSeedProperty + ".");
+				}
+			}
 			// VLC libs path:
 			String vlcPathProperty = prop.getProperty(CONFIG_KEY_VLC_PATH);
 			setVlcPath(vlcPathProperty);
@@ -186,16 +419,16 @@ public class ConfigurationHandler {
 			String tempoProperty = prop.getProperty(CONFIG_KEY_TEMPO);
 			setTempo(tempoProperty);
 		} catch (FileNotFoundException fileEx) {
-			System.err.println("WARNING: Could not find configuration properties file.");
+			Log.warning("Could not find configuration properties file.");
 		} catch (IOException ex) {
-			ex.printStackTrace();
+			Log.error("Could not read " + CONFIG_PROPERTIES_FILE + ".", ex);
 		} finally {
 			if (input != null) {
 				try {
 					input.close();
-					System.out.println("Closed " + CONFIG_PROPERTIES_FILE  + ".");
+					Log.info("Closed " + CONFIG_PROPERTIES_FILE  + ".");
 				} catch (IOException e) {
-					e.printStackTrace();
+					Log.error("Could not close " + CONFIG_PROPERTIES_FILE + ".", e);
 				}
 			}
 		}
@@ -207,11 +440,11 @@ public class ConfigurationHandler {
 	 */
 	public static void storeConfigProperties() {
 		if (mediaPath == null || vlcPath == null) {
-			System.err.println("ERROR: Missing attributes to store config properties.");
+			Log.error("Missing attributes to store config properties.");
 			return;
 		}
 		
-		System.out.println("Storing configuration in " + CONFIG_PROPERTIES_FILE + ".");
+		Log.info("Storing configuration in " + CONFIG_PROPERTIES_FILE + ".");
 				
 		OutputStream output = null;
 		try {
@@ -222,18 +455,36 @@ public class ConfigurationHandler {
 			prop.setProperty(CONFIG_KEY_MEDIA_PATH, mediaPath);
 			prop.setProperty(CONFIG_KEY_VLC_PATH, vlcPath);
 			prop.setProperty(CONFIG_KEY_TEMPO, tempo + "");
+			prop.setProperty(CONFIG_KEY_ANALYSER_THREADS, analyserThreads + "");
+			prop.setProperty(CONFIG_KEY_STREAMING_MIN_FILES, streamingMinFiles + "");
+			prop.setProperty(CONFIG_KEY_WATCH_MEDIA_PATH, watchMediaPath + "");
+			prop.setProperty(CONFIG_KEY_DETECT_TEMPO, detectTempo + "");
+			if (beatGridPath != null) prop.setProperty(CONFIG_KEY_BEAT_GRID_FILE, beatGridPath);
+			if (midiClockInput != null) prop.setProperty(CONFIG_KEY_MIDI_CLOCK_INPUT, midiClockInput);
+			prop.setProperty(CONFIG_KEY_OSC_PORT, oscPort + "");
+			prop.setProperty(CONFIG_KEY_OSC_HOST, oscHost);
+			prop.setProperty(CONFIG_KEY_SCREEN_OUTPUTS, screenOutputs + "");
+			prop.setProperty(CONFIG_KEY_OUTPUT_NOTE_LENGTHS, outputNoteLengths);
+			prop.setProperty(CONFIG_KEY_SELECTION_MODE, selectionMode);
+			prop.setProperty(CONFIG_KEY_RECENT_WINDOW, recentWindow + "");
+			prop.setProperty(CONFIG_KEY_LOOKAHEAD, lookahead + "");
+			prop.setProperty(CONFIG_KEY_RECORD_JOURNAL, recordJournal + "");
+			if (journalPath != null) prop.setProperty(CONFIG_KEY_JOURNAL_PATH, journalPath);
+			prop.setProperty(CONFIG_KEY_JOURNAL_LIMIT, journalLimit + "");
+			prop.setProperty(CONFIG_KEY_LOG_LEVEL, Log.getLevelName(Log.getLevel()));
+			if (isRandomSeedConfigured) prop.setProperty(CONFIG_KEY_RANDOM_SEED, randomSeed + "");
 	 
 			// Save properties to project root folder.
 			prop.store(output, null);
-			System.out.println(prop.toString());
+			Log.info(prop.toString());
 		} catch (IOException io) {
-			io.printStackTrace();
+			Log.error("Could not store " + CONFIG_PROPERTIES_FILE + ".", io);
 		} finally {
 			if (output != null) {
 				try {
 					output.close();
 				} catch (IOException e) {
-					e.printStackTrace();
+					Log.error("Could not close " + CONFIG_PROPERTIES_FILE + ".", e);
 				}
 			}
 		}
@@ -270,12 +521,12 @@ public class ConfigurationHandler {
 	/**
 	 * Lowest musical tempo that is allowed.
 	 */
-	private static final float MIN_TEMPO = 60.0f;
+	static final float MIN_TEMPO = 60.0f;
 	
 	/**
 	 * Highest musical tempo that is allowed.
 	 */
-	private static final float MAX_TEMPO = 180.0f;
+	static final float MAX_TEMPO = 180.0f;
 
 	/**
 	 * First in chain of tempo changes.
@@ -286,7 +537,7 @@ public class ConfigurationHandler {
 	 * @param tempoText String that can be parsed into a numeric value between MIN_TEMPO & MAX_TEMPO
 	 */
 	public static void setTempo(String tempoText) {
-		System.out.println("Attempting to set tempo " + tempoText + ".");
+		Log.info("Attempting to set tempo " + tempoText + ".");
 		float newTempo = 0.0f;
 		
 		String tempoTextDotted = "";
@@ -301,17 +552,225 @@ public class ConfigurationHandler {
 		try {
 			newTempo = Float.parseFloat(tempoTextDotted);
 		} catch(Exception ex) {
-			System.err.println(ex.toString());
+			Log.warning(ex.toString());
 		}
 		
+		setTempo(newTempo);
+	}
+	
+	/**
+	 * Changes the tempo if it is in the allowed range and notifies the engine.
+	 * @param newTempo Numeric value between MIN_TEMPO & MAX_TEMPO
+	 */
+	public static void setTempo(float newTempo) {
+		storeTempo(newTempo);
+		Engine.updateTempo();
+	}
+	
+	/**
+	 * Changes the tempo if it is in the allowed range, without notifying the engine.
+	 * Used by the engine thread for tempo commands, e.g. of the beat detector or the MIDI clock.
+	 * @param newTempo Numeric value between MIN_TEMPO & MAX_TEMPO
+	 */
+	static void storeTempo(float newTempo) {
 		// Only replace the tempo if a valid BPM value was given.
 		if(newTempo >= MIN_TEMPO && newTempo <= MAX_TEMPO) {
 			tempo = newTempo;
+			SessionJournal.recordTempo(newTempo);
 		} else {
 			Engine.blinkStatusText(MIN_TEMPO + " < Tempo < " + MAX_TEMPO + "!");
 		}
+	}
+	
+	/**
+	 * @return Number of parallel media analysers
+	 */
+	public static int getAnalyserThreads() {
+		return analyserThreads;
+	}
+	
+	/**
+	 * Attempts to parse the number of parallel media analysers.
+	 * Values below 1 are ignored.
+	 * @param analyserThreadsText String containing a positive integer value
+	 */
+	public static void setAnalyserThreads(String analyserThreadsText) {
+		try {
+			int newAnalyserThreads = Integer.parseInt(analyserThreadsText.trim());
+			if (newAnalyserThreads > 0) analyserThreads = newAnalyserThreads;
+		} catch (Exception ex) {
+			Log.warning("Invalid number of analyser threads: " + analyserThreadsText);
+		}
+	}
+	
+	/**
+	 * @return Number of analysed files after which playback may start
+	 */
+	public static int getStreamingMinFiles() {
+		return streamingMinFiles;
+	}
+	
+	/**
+	 * Attempts to parse the number of analysed files after which playback may start.
+	 * Negative values are ignored.
+	 * @param streamingMinFilesText String containing a non-negative integer value
+	 */
+	public static void setStreamingMinFiles(String streamingMinFilesText) {
+		try {
+			int newStreamingMinFiles = Integer.parseInt(streamingMinFilesText.trim());
+			if (newStreamingMinFiles >= 0) streamingMinFiles = newStreamingMinFiles;
+		} catch (Exception ex) {
+			Log.warning("Invalid minimum number of streamed files: " + streamingMinFilesText);
+		}
+	}
+	
+	/**
+	 * @return True, if the media path is watched for changed files
+	 */
+	public static boolean isWatchingMediaPath() {
+		return watchMediaPath;
+	}
+	
+	/**
+	 * @return True, if the tempo is detected from the audio input while playing
+	 */
+	public static boolean isDetectingTempo() {
+		return detectTempo;
+	}
+	
+	/**
+	 * @return Absolute path to the beat grid cue file; null for a fixed tempo
+	 */
+	public static String getBeatGridPath() {
+		return beatGridPath;
+	}
+	
+	/**
+	 * @return Part of the name of the MIDI input device whose clock is followed; null for the own tempo
+	 */
+	public static String getMidiClockInput() {
+		return midiClockInput;
+	}
+	
+	/**
+	 * @return UDP port of the OSC control server; 0 if no server is started
+	 */
+	public static int getOscPort() {
+		return oscPort;
+	}
+	
+	/**
+	 * @return Local interface of the OSC control server
+	 */
+	public static String getOscHost() {
+		return oscHost;
+	}
+	
+	/**
+	 * @return True, if every screen gets its own media output
+	 */
+	public static boolean isUsingScreenOutputs() {
+		return screenOutputs;
+	}
+	
+	/**
+	 * @param outputIndex Index of the output, starting with 0 for the main output
+	 * @return NoteLength index of the output; MediaOutput.FOLLOW_NOTE_LENGTH if none or an invalid one is configured
+	 */
+	public static int getOutputNoteLength(int outputIndex) {
+		String[] values = outputNoteLengths.split(",");
+		if (outputIndex >= values.length) return MediaOutput.FOLLOW_NOTE_LENGTH;
 		
-		Engine.updateTempo();
+		String value = values[outputIndex].trim();
+		if (value.length() == 0 || value.equals("-")) return MediaOutput.FOLLOW_NOTE_LENGTH;
+		try {
+			int noteLengthIndex = Integer.parseInt(value);
+			if (noteLengthIndex >= 0 && noteLengthIndex < NoteLength.tempoMultipliers.length) return noteLengthIndex;
+		} catch (NumberFormatException e) {
+			// Handled below.
+		}
+		Log.warning("Invalid note length " + value + " of output " + (outputIndex + 1) + ".");
+		return MediaOutput.FOLLOW_NOTE_LENGTH;
+	}
+	
+	/**
+	 * @return How the next media file is chosen, see MediaSelector modes
+	 */
+	public static String getSelectionMode() {
+		return selectionMode;
+	}
+	
+	/**
+	 * @return Number of recently played media files that are not chosen again
+	 */
+	public static int getRecentWindow() {
+		return recentWindow;
+	}
+	
+	/**
+	 * @return Number of media file choices that are made ahead of time
+	 */
+	public static int getLookahead() {
+		return lookahead;
+	}
+	
+	/**
+	 * @return Seed of the media selection and start time choices of this session
+	 */
+	public static long getRandomSeed() {
+		return randomSeed;
+	}
+	
+	/**
+	 * @return True, if sessions are recorded into a journal
+	 */
+	public static boolean isRecordingJournal() {
+		return recordJournal;
+	}
+	
+	/**
+	 * Creates the journal directory if needed and deletes the oldest journals,
+	 * so that at most journalLimit journals exist together with the new one.
+	 * @return New journal file in the journal directory, named after the current time
+	 */
+	public static File newJournalFile() {
+		File directory = new File(journalPath != null ? journalPath : fClassPath + "journals");
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			Log.warning("Could not create journal directory " + directory + ".");
+		}
+
+		File[] journals = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().startsWith("session-")
+						&& file.getName().endsWith(SessionJournal.FILE_EXTENSION);
+			}
+		});
+		if (journals != null && journalLimit > 0 && journals.length >= journalLimit) {
+			// The time stamp in the names sorts them from old to new.
+			Arrays.sort(journals);
+			for (int i = 0; i <= journals.length - journalLimit; i++) {
+				if (!journals[i].delete()) Log.warning("Could not delete old journal " + journals[i] + ".");
+			}
+		}
+
+		String timeStamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		return new File(directory, "session-" + timeStamp + SessionJournal.FILE_EXTENSION);
+	}
+	
+	/**
+	 * @param text String containing a non-negative integer value
+	 * @param defaultValue Value that is returned if the text is invalid
+	 * @return Parsed value or defaultValue
+	 */
+	private static int parseNonNegative(String text, int defaultValue) {
+		try {
+			int value = Integer.parseInt(text.trim());
+			if (value >= 0) return value;
+		} catch (Exception ex) {
+			// Handled below.
+		}
+		Log.warning("Invalid non-negative number: " + text);
+		return defaultValue;
 	}
 	
 	/**
@@ -329,17 +788,17 @@ public class ConfigurationHandler {
 	 */
 	public static void setVlcPath(String vlcPath) {
 		
-		System.out.println("Searching for VLC libraries at " + vlcPath + ".");
+		Log.info("Searching for VLC libraries at " + vlcPath + ".");
 		NativeLibrary.addSearchPath(RuntimeUtil.getLibVlcLibraryName(), vlcPath);
 		try {
 	        Native.loadLibrary(RuntimeUtil.getLibVlcLibraryName(), LibVlc.class);
 			ConfigurationHandler.vlcPath = vlcPath;
 			Engine.setDidFindVlc(true);
-			System.out.println("Found VLC libraries.");
+			Log.info("Found VLC libraries.");
 		} catch (UnsatisfiedLinkError unsatisfied) {
-			System.err.println("ERROR: Could not find VLC libraries at " + vlcPath + ".");
+			Log.error("Could not find VLC libraries at " + vlcPath + ".");
 		} catch (Exception ex) {
-			ex.printStackTrace();
+			Log.error("Could not load VLC libraries from " + vlcPath + ".", ex);
 		}
 		
 		if (vlcPath == null) Engine.setDidFindVlc(false);
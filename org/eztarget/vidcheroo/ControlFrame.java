@@ -25,6 +25,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
@@ -32,6 +33,7 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.Timer;
 import javax.swing.WindowConstants;
 
 /**
@@ -104,6 +106,70 @@ public class ControlFrame extends JFrame {
 	 */
 	private JLabel statusLabel = new JLabel("Waiting for engine...");
 	
+	/**
+	 * Label above the bottom panel that shows the switch latency percentiles
+	 */
+	private JLabel latencyLabel = new JLabel();
+	
+	/**
+	 * Interval in ms at which the latency label is updated
+	 */
+	private static final int LATENCY_UPDATE_INTERVAL = 1000;
+	
+	/**
+	 * Interval in ms at which published status snapshots are shown, about one repaint at 60 Hz
+	 */
+	private static final int STATUS_UPDATE_INTERVAL = 16;
+	
+	/**
+	 * Length in ms during which the blinking text is visible
+	 */
+	private static final int BLINK_TIME_SHOW = 600;
+	
+	/**
+	 * Length in ms during which the blinking text is not visible
+	 */
+	private static final int BLINK_TIME_HIDE = 200;
+	
+	/**
+	 * Number of status text blinks
+	 */
+	private static final int BLINK_REPEATS = 5;
+	
+	/**
+	 * Latest published snapshot that has not been shown yet; null if there is none
+	 */
+	private final AtomicReference<StatusSnapshot> pendingSnapshot = new AtomicReference<StatusSnapshot>();
+	
+	/**
+	 * Latest requested blink text that has not been started yet; null if there is none
+	 */
+	private final AtomicReference<String> pendingBlinkText = new AtomicReference<String>();
+	
+	/**
+	 * Snapshot that is currently shown; only used on the EDT
+	 */
+	private StatusSnapshot shownSnapshot = null;
+	
+	/**
+	 * Text that is currently blinking; null if none. Only used on the EDT.
+	 */
+	private String blinkText = null;
+	
+	/**
+	 * Time in ms at which the current blinking started; only used on the EDT
+	 */
+	private long blinkStartTime = 0l;
+	
+	/**
+	 * Shows pending snapshots and drives the blinking; only runs while there is something to show
+	 */
+	private final Timer statusTimer = new Timer(STATUS_UPDATE_INTERVAL, new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+			updateStatus();
+		}
+	});
+	
 	/**
 	 * Text field that displays and changes the current tempo/BPM
 	 */
@@ -123,7 +189,7 @@ public class ControlFrame extends JFrame {
 	 *	Constructor containing entire GUI setup.
 	 */
 	public ControlFrame() {
-		System.out.println("Initialising Control Frame.");
+		Log.info("Initialising Control Frame.");
 		
 		setLocation(FRAME_INITIAL_X, FRAME_INITIAL_Y);
 		//setPreferredSize(new Dimension(FRAME_WIDTH, FRAME_HEIGHT));
@@ -157,8 +223,7 @@ public class ControlFrame extends JFrame {
 				//Application application = Application.getApplication();
 				//application.setDockIconImage(image);
 			} catch (Exception e) {
-				System.err.println("ERROR: Cannot load application icon.");
-				e.printStackTrace();
+				Log.error("Cannot load application icon.", e);
 			}
 		}
 		
@@ -310,7 +375,7 @@ public class ControlFrame extends JFrame {
 		updateMediaButton = new JButton("\u27f2");
 		updateMediaButton.addActionListener(refreshMediaListener);
 		updateMediaButton.setBounds(FRAME_WIDTH - MARGIN * 2 - ELEMENT_HEIGHT, MARGIN, ELEMENT_HEIGHT, ELEMENT_HEIGHT);
-		updateMediaButton.setToolTipText("Reanalyse all files in the currently selected media path.");
+		updateMediaButton.setToolTipText("Analyse new and changed files in the currently selected media path.");
 		bottomPanel.add(updateMediaButton);
 		
 		final int fBottomRow2Y = MARGIN + ELEMENT_HEIGHT + MARGIN;
@@ -331,6 +396,25 @@ public class ControlFrame extends JFrame {
 				);
 		bottomPanel.add(statusLabel);
 		
+		// LATENCY Label:
+		final int fLatencyLabelHeight = ELEMENT_HEIGHT * 2;
+		latencyLabel.setBounds(
+				MARGIN,
+				FRAME_HEIGHT - bottomPanelHeight - fLatencyLabelHeight,
+				ELEMENT_WIDTH,
+				fLatencyLabelHeight
+				);
+		latencyLabel.setFont(latencyLabel.getFont().deriveFont(9f));
+		latencyLabel.setToolTipText("Switch latency: beat to call, call to playing, playing to first frame");
+		contentPane.add(latencyLabel);
+		
+		// The histograms are lock-free, so reading them on the EDT does not block the play thread.
+		new Timer(LATENCY_UPDATE_INTERVAL, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				setLatencyText(LatencyMonitor.getSummary());
+			}
+		}).start();
+		
 		// Disable play/pause control for now.
 		setPlayControlEnabled(false);
 		
@@ -347,7 +431,7 @@ public class ControlFrame extends JFrame {
 	ActionListener noteLengthChanged = new ActionListener() {
 		public void actionPerformed(ActionEvent e) {
 			String actionCommand = e.getActionCommand();
-			System.out.println("Changing beat length: " + actionCommand);
+			Log.info("Changing beat length: " + actionCommand);
 			
 			boolean selectionIsValid = false;
 			
@@ -376,14 +460,14 @@ public class ControlFrame extends JFrame {
 			// Initialise a JFileChooser acting as "directories only".
 			String chosenDir = chooseDir();
 			if (chosenDir == null) return;
-			System.out.println("Chosen Directory: " + chosenDir);
+			Log.info("Chosen Directory: " + chosenDir);
 			
 			if (e.getSource().equals(mediaPathButton)) {
 				ConfigurationHandler.setMediaPath(chosenDir);
 			} else if (e.getSource().equals(vlcPathButton)){
 				ConfigurationHandler.setVlcPath(chosenDir);
 			} else {
-				System.err.println("Unknown action event source: " + e.getSource());
+				Log.warning("Unknown action event source: " + e.getSource());
 			}
 		}
 		
@@ -404,11 +488,103 @@ public class ControlFrame extends JFrame {
 		public void actionPerformed(ActionEvent e) {
 			if (Engine.getStatus() == Status.PLAYING) return;
 			
-			System.out.println("Ignoring existing properties files and parsing current media path once more.");
-			MediaFileParser.parseMediaPath(null, true);
+			Log.info("Comparing existing properties file with current media path.");
+			Engine.reloadMediaFiles();
 		}
 	};
 	
+	/*
+	 * STATUS UPDATES
+	 */
+	
+	/**
+	 * Shows the given snapshot with the next status update on the EDT.
+	 * May be called from any thread; never blocks. Snapshots published before that update are skipped.
+	 * @param snapshot New state of the controls
+	 */
+	public void publish(StatusSnapshot snapshot) {
+		if (pendingSnapshot.getAndSet(snapshot) == null) statusTimer.start();
+	}
+	
+	/**
+	 * Lets a given status text blink by hiding it shortly, showing it longer and repeating this.
+	 * Afterwards the latest snapshot is shown again. May be called from any thread; never blocks.
+	 * @param statusText Text to temporarily put into status label and blink.
+	 */
+	public void blinkStatusText(String statusText) {
+		pendingBlinkText.set(statusText);
+		statusTimer.start();
+	}
+	
+	/**
+	 * Called by the status timer on the EDT.
+	 * Shows the latest pending snapshot, advances the blinking and stops the timer when both are done.
+	 */
+	private void updateStatus() {
+		StatusSnapshot snapshot = pendingSnapshot.getAndSet(null);
+		if (snapshot != null) showSnapshot(snapshot);
+		
+		String newBlinkText = pendingBlinkText.getAndSet(null);
+		if (newBlinkText != null) {
+			blinkText = newBlinkText;
+			blinkStartTime = System.currentTimeMillis();
+		}
+		if (blinkText != null) updateBlink();
+		
+		if (snapshot == null && blinkText == null) {
+			statusTimer.stop();
+			// Something may have been published after the check; it would not start the running timer.
+			if (pendingSnapshot.get() != null || pendingBlinkText.get() != null) statusTimer.start();
+		}
+	}
+	
+	/**
+	 * Applies the parts of a snapshot that differ from the shown one.
+	 * @param snapshot New state of the controls
+	 */
+	private void showSnapshot(StatusSnapshot snapshot) {
+		StatusSnapshot shown = shownSnapshot;
+		shownSnapshot = snapshot;
+		
+		if (shown == null || shown.isOutputVisible != snapshot.isOutputVisible) {
+			Engine.setOutputsVisible(snapshot.isOutputVisible);
+		}
+		if (blinkText == null && !snapshot.statusText.equals(statusLabel.getText())) {
+			setStatusText(snapshot.statusText);
+		}
+		if (shown == null || shown.isPlayControlEnabled != snapshot.isPlayControlEnabled) {
+			setPlayControlEnabled(snapshot.isPlayControlEnabled);
+		}
+		if (shown == null || shown.isPathControlEnabled != snapshot.isPathControlEnabled) {
+			setPathControlEnabled(snapshot.isPathControlEnabled);
+		}
+		if (shown == null || shown.isFrameEnabled != snapshot.isFrameEnabled) {
+			setEnabled(snapshot.isFrameEnabled);
+		}
+		if (shown == null || shown.tempoRevision != snapshot.tempoRevision) {
+			setTempoText(snapshot.tempo);
+		}
+		if (snapshot.noteLengthIndex >= 0 && (shown == null || shown.noteLengthIndex != snapshot.noteLengthIndex)) {
+			setLengthButtonHighlighted(snapshot.noteLengthIndex);
+		}
+	}
+	
+	/**
+	 * Hides or shows the blinking text depending on the time since it started
+	 * and shows the status text of the latest snapshot again after the last blink.
+	 */
+	private void updateBlink() {
+		long elapsed = System.currentTimeMillis() - blinkStartTime;
+		String text;
+		if (elapsed >= BLINK_REPEATS * (BLINK_TIME_HIDE + BLINK_TIME_SHOW)) {
+			blinkText = null;
+			text = shownSnapshot == null ? "" : shownSnapshot.statusText;
+		} else {
+			text = elapsed % (BLINK_TIME_HIDE + BLINK_TIME_SHOW) < BLINK_TIME_HIDE ? "" : blinkText;
+		}
+		if (!text.equals(statusLabel.getText())) setStatusText(text);
+	}
+	
 	/*
 	 * GUI ENABLING & DISABLING
 	 */
@@ -442,7 +618,7 @@ public class ControlFrame extends JFrame {
 	 */
 	public void setLengthButtonHighlighted(int lengthIndex) {
 		if (lengthButtons == null) {
-			System.err.println("ERROR: Note length buttons have not been initialised yet.");
+			Log.error("Note length buttons have not been initialised yet.");
 			return;
 		}
 		
@@ -465,12 +641,20 @@ public class ControlFrame extends JFrame {
 	}
 
 	/**
+	 * Only called on the EDT; other threads publish a StatusSnapshot instead.
 	 * @param status The text that should be displayed in the bottom status label.
 	 */
 	public void setStatusText(String status) {
 		statusLabel.setText(status);
 	}
 	
+	/**
+	 * @param latencyText Lines of text that will be displayed in the latency label.
+	 */
+	public void setLatencyText(String latencyText) {
+		latencyLabel.setText("<html>" + latencyText.replace("\n", "<br>") + "</html>");
+	}
+	
 	/**
 	 * @param tempo The float value that will be displayed in the tempo text field.
 	 */
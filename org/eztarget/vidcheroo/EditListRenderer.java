@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Headless render mode that prepares a set offline instead of performing it live.
+ * The cuts are chosen with the same media selection, start times and beat grid as the Engine,
+ * but on a virtual clock, so a set of any length is written in a fraction of a second.
+ * A session that was played live with a seed is rendered to the same sequence of files with that seed.
+ *
+ * The output is an ffmpeg concat list with one entry per cut: file, in-point and duration.
+ * Usage: java -cp bin org.eztarget.vidcheroo.EditListRenderer
+ * 		media_dir set.ffconcat duration_s [tempo_bpm | beat_grid.vcbg] [note_length_pattern] [seed]
+ * The note length pattern is a comma-separated list of NoteLength indices that is repeated, e.g. 2,2,1,1,3.
+ * The result can be rendered with: ffmpeg -f concat -safe 0 -i set.ffconcat set.mp4
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class EditListRenderer {
+
+	/**
+	 * Default tempo in BPM
+	 */
+	private static final float DEFAULT_TEMPO = 120f;
+
+	/**
+	 * Default note length pattern: quarter notes
+	 */
+	private static final String DEFAULT_PATTERN = "2";
+
+	/**
+	 * Encoding of the concat list
+	 */
+	private static final Charset LIST_CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * Size of the output buffer in bytes
+	 */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Media files that are cut together
+	 */
+	private final List<MediaFile> mediaFiles;
+
+	/**
+	 * Quarter notes per minute; the average tempo if a beat grid is followed
+	 */
+	private final float tempo;
+
+	/**
+	 * Precomputed beats that are followed instead of the tempo; null for a fixed tempo
+	 */
+	private final BeatGrid beatGrid;
+
+	/**
+	 * NoteLength indices of consecutive cuts, repeated
+	 */
+	private final int[] pattern;
+
+	/**
+	 * Seed of the media selection and start times
+	 */
+	private final long seed;
+
+	/**
+	 * Number of cuts of the last rendering
+	 */
+	private long cutCount = 0l;
+
+	/**
+	 * Constructor
+	 * @param mediaFiles Analysed media files; at least one
+	 * @param tempo Quarter notes per minute; only used without a beat grid
+	 * @param beatGrid Precomputed beats of a recording that starts with the set; null for a fixed tempo
+	 * @param pattern NoteLength indices of consecutive cuts, repeated
+	 * @param seed Seed of the media selection and start times
+	 */
+	public EditListRenderer(List<MediaFile> mediaFiles, float tempo, BeatGrid beatGrid, int[] pattern, long seed) {
+		if (mediaFiles.isEmpty()) throw new IllegalArgumentException("No media files to render.");
+		if (pattern.length == 0) throw new IllegalArgumentException("Empty note length pattern.");
+		for (int noteLengthIndex : pattern) {
+			if (noteLengthIndex < 0 || noteLengthIndex >= NoteLength.tempoMultipliers.length) {
+				throw new IllegalArgumentException("Cannot find note length for index " + noteLengthIndex + ".");
+			}
+		}
+		this.mediaFiles = mediaFiles;
+		this.tempo = beatGrid == null ? tempo : beatGrid.getAverageTempo();
+		this.beatGrid = beatGrid;
+		this.pattern = pattern;
+		this.seed = seed;
+	}
+
+	/**
+	 * MAIN METHOD
+	 *
+	 * @param args Media directory, output file, duration in s, optional tempo or beat grid, pattern and seed
+	 */
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.err.println(
+					"Usage: EditListRenderer <media directory> <output file> <duration in s>"
+					+ " [tempo or beat grid file] [note length pattern] [seed]"
+					);
+			return;
+		}
+
+		// The seed, selection mode, recent window and lookahead are configured like for a live session.
+		ConfigurationHandler.getInstance();
+
+		try {
+			long duration = (long) (Double.parseDouble(args[2]) * 1000d);
+
+			float tempo = DEFAULT_TEMPO;
+			BeatGrid beatGrid = null;
+			if (args.length > 3) {
+				if (args[3].endsWith(BeatGrid.FILE_EXTENSION)) beatGrid = BeatGrid.read(new File(args[3]));
+				else tempo = Float.parseFloat(args[3]);
+			}
+
+			String[] patternValues = (args.length > 4 ? args[4] : DEFAULT_PATTERN).split(",");
+			int[] pattern = new int[patternValues.length];
+			for (int i = 0; i < pattern.length; i++) pattern[i] = Integer.parseInt(patternValues[i].trim());
+
+			long seed = args.length > 5 ? Long.parseLong(args[5]) : ConfigurationHandler.getRandomSeed();
+
+			List<MediaFile> mediaFiles = MediaFileParser.readMediaFiles(args[0]);
+			if (mediaFiles.isEmpty()) {
+				System.err.println("ERROR: No media files found in " + args[0] + ".");
+				return;
+			}
+
+			long startTime = System.nanoTime();
+			EditListRenderer renderer = new EditListRenderer(mediaFiles, tempo, beatGrid, pattern, seed);
+			renderer.render(new File(args[1]), duration);
+			long elapsedNanos = System.nanoTime() - startTime;
+
+			System.out.println(
+					"Rendered " + renderer.getCutCount() + " cuts of " + mediaFiles.size() + " files in "
+					+ elapsedNanos / 1000000l + " ms (" + (long) (renderer.getCutCount() * 1e9d / elapsedNanos)
+					+ " cuts/s). Random seed: " + seed + ". Wrote " + args[1] + "."
+					);
+		} catch (NumberFormatException e) {
+			System.err.println("ERROR: Invalid number: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.err.println("ERROR: " + e.getMessage());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the cuts of a set into a concat list file.
+	 * @param listFile File that will be replaced
+	 * @param duration Length of the set in ms
+	 * @throws IOException
+	 */
+	public void render(File listFile, long duration) throws IOException {
+		Writer writer = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(listFile), LIST_CHARSET), WRITE_BUFFER_SIZE
+				);
+		try {
+			render(writer, duration);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Runs the Engine's selection and timing on a virtual clock and writes one concat list entry per cut.
+	 * @param writer Output of the concat list
+	 * @param duration Length of the set in ms
+	 * @throws IOException
+	 */
+	public void render(Writer writer, long duration) throws IOException {
+		MediaSelector selector = new MediaSelector(
+				ConfigurationHandler.getSelectionMode(),
+				ConfigurationHandler.getRecentWindow(),
+				ConfigurationHandler.getLookahead(),
+				seed
+				);
+		Random rand = Engine.createStartTimeRandom(seed);
+
+		// The virtual clock is in ns since the start of the set.
+		BeatScheduler scheduler = new BeatScheduler(tempo, NoteLength.tempoMultipliers[pattern[0]], beatGrid, 0l);
+		long moduloLength = Engine.getModuloLength(tempo);
+		long endNanos = duration * 1000000l;
+
+		StringBuilder entry = new StringBuilder(256);
+		writer.write("ffconcat version 1.0\n");
+
+		cutCount = 0l;
+		long switchNanos = 0l;
+		while (switchNanos < endNanos) {
+			float tempoMultiplier = NoteLength.tempoMultipliers[pattern[(int) (cutCount % pattern.length)]];
+			scheduler.setTempoMultiplier(tempoMultiplier);
+
+			MediaFile mediaFile = selector.next(mediaFiles, mediaFiles);
+			long startTime = Engine.getStartTime(mediaFile, rand, Engine.getSwitchLength(tempo, tempoMultiplier));
+			long repeatTime = Engine.getRepeatTime(mediaFile.length, startTime, moduloLength);
+
+			// As in the Engine: switch on the grid or when the file is ending, whatever comes first.
+			long nextSwitchNanos = Math.min(scheduler.getSwitchDeadlineAfter(switchNanos), switchNanos + repeatTime * 1000000l);
+			nextSwitchNanos = Math.min(nextSwitchNanos, endNanos);
+
+			entry.setLength(0);
+			entry.append("file '");
+			appendQuoted(entry, mediaFile.path);
+			entry.append("'\ninpoint ");
+			appendSeconds(entry, startTime * 1000l);
+			entry.append("\nduration ");
+			appendSeconds(entry, (nextSwitchNanos - switchNanos) / 1000l);
+			entry.append('\n');
+			writer.append(entry);
+
+			switchNanos = nextSwitchNanos;
+			cutCount++;
+		}
+	}
+
+	/**
+	 * @return Number of cuts of the last rendering
+	 */
+	public long getCutCount() {
+		return cutCount;
+	}
+
+	/**
+	 * Escapes single quotes for the concat list.
+	 * @param builder Target
+	 * @param path File path
+	 */
+	private static void appendQuoted(StringBuilder builder, String path) {
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c == '\'') builder.append("'\\''");
+			else builder.append(c);
+		}
+	}
+
+	/**
+	 * Appends a time as seconds with six decimals, without formatting objects.
+	 * @param builder Target
+	 * @param micros Non-negative time in microseconds
+	 */
+	private static void appendSeconds(StringBuilder builder, long micros) {
+		builder.append(micros / 1000000l).append('.');
+		long fraction = micros % 1000000l;
+		for (long digit = 100000l; digit > 1l && fraction < digit; digit /= 10l) builder.append('0');
+		builder.append(fraction);
+	}
+}
@@ -16,14 +16,25 @@
 
 package org.eztarget.vidcheroo;
 
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
 import java.awt.KeyEventDispatcher;
 import java.awt.KeyboardFocusManager;
 import java.awt.Window;
 import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.LockSupport;
 
+import javax.swing.SwingUtilities;
+
 /**
  * Singleton class that handles the play-back flow and Object communication of a Vidcheroo session.
  * 
@@ -49,9 +60,9 @@ public class Engine {
 	private static boolean didFindVlc = false;
 	
 	/**
-	 * General engine status
+	 * General engine status; Playing is only entered and left on the engine thread
 	 */
-	private static Status status = Status.NOTREADY;
+	private static volatile Status status = Status.NOTREADY;
 	
 	/**
 	 * Operating system that this instance is running on.
@@ -61,34 +72,51 @@ public class Engine {
 	/**
 	 * Control frame with buttons and the status label
 	 */
-	private static ControlFrame controlFrame;
+	private static volatile ControlFrame controlFrame;
 	
 	/**
 	 * Media frame that contains the VLC player.
 	 */
 	private static MediaFrame mediaFrame;
 	
+	/**
+	 * All outputs that are switched by the play loop, starting with the one of the main media frame
+	 */
+	private static volatile MediaOutput[] outputs = new MediaOutput[0];
+	
 	/**
 	 * The engine knows if the media frame is in full-screen mode,
 	 * so that it can behave accordingly when the toggle key is pressed.
+	 * Only changed by the engine thread.
 	 */
-	private static boolean isFullScreen = false;
+	private static volatile boolean isFullScreen = false;
 	
 	/**
 	 * Tempo multiplier to speed up or slow down switch times.
 	 * 1.0 for quarter notes, 4.0 for 1/16th notes, 0.25 for full notes.
 	 * Should only have values that are available in NoteLength class.
+	 * Only written by the engine thread.
 	 */
-	private static float tempoMultiplier = 1.0f;
+	private static volatile float tempoMultiplier = 1.0f;
 	
 	/**
-	 * Duration in ms to let the play thread sleep
+	 * Index of the current note length in NoteLength class; -1 until one has been selected
+	 */
+	private static volatile int noteLengthIndex = -1;
+	
+	/**
+	 * Number of tempo updates, so that the control frame rewrites its tempo text field; only written by the engine thread
+	 */
+	private static volatile long tempoRevision = 0l;
+	
+	/**
+	 * Length in ms of one switch at the current tempo and note length; only used by the engine thread
 	 */
 	private static long noteSleepLength = 500l;
 	
 	/**
 	 * Time value in ms that is used for rhythmically looping short videos
-	 * Typically the length of a 1/8th note
+	 * Typically the length of a 1/8th note; only used by the engine thread
 	 */
 	private static long noteModuloLength = 250l;
 	
@@ -101,7 +129,7 @@ public class Engine {
 	 * Starts the key event dispatcher.
 	 */
 	protected Engine() {
-		System.out.println("Constructing Engine.");
+		Log.info("Constructing Engine.");
 		
 		// Add key event dispatcher.
 		KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(
@@ -115,7 +143,7 @@ public class Engine {
 				});
 		
 		// Refresh status on controller frame.
-		setStatus(status);
+		updateStatus();
 	}
 
 	/**
@@ -134,7 +162,8 @@ public class Engine {
 	 * @param keyCode Numeric value of the pressed key
 	 */
 	private static void handleKeyPress(int keyCode) {
-		System.out.println("Key pressed: " + keyCode);
+		Log.info("Key pressed: " + keyCode);
+		SessionJournal.recordKey(keyCode);
 		
 		switch (keyCode) {
 			case 27:	// ESC
@@ -163,8 +192,8 @@ public class Engine {
 				setTempoMultiplier(5);
 				break;
 			case 79:
-				System.err.println("---MANUAL MARKER---");
-				System.out.println();
+				Log.info("---MANUAL MARKER---");
+				Log.info("");
 				break;
 			default:
 				break;
@@ -207,10 +236,10 @@ public class Engine {
 	 * @param didFindVlc New value of didFindVlc
 	 */
 	public static void setDidFindVlc(boolean didFindVlc) {
-		if (!didFindVlc) blinkStatusText();
-		
 		Engine.didFindVlc = didFindVlc;
 		updateStatus();
+		
+		if (!didFindVlc) blinkStatusText();
 	}
 	
 	/**
@@ -233,8 +262,7 @@ public class Engine {
 				//FullScreenUtilities.setWindowCanFullScreen(Engine.mediaFrame, true);
 				setWindowCanFullScreen.invoke(Engine.mediaFrame, true);
 			} catch (Exception e) {
-				System.err.println("WARNING: Problem enabling OSX full-screen mode.");
-				e.printStackTrace();
+				Log.warning("Problem enabling OSX full-screen mode.", e);
 			}
 		}
 	}
@@ -244,15 +272,32 @@ public class Engine {
 	 * @param noteLengthIndex Index of the note length multiplier in NoteLength class
 	 */
 	public static void setTempoMultiplier(int noteLengthIndex) {
-		if (NoteLength.tempoMultipliers.length < noteLengthIndex) {
-			System.err.println("ERROR: Cannot find note length for index " + noteLengthIndex + ".");
+		post(CommandQueue.COMMAND_NOTE_LENGTH, noteLengthIndex);
+	}
+	
+	/**
+	 * Changes the current note length on the engine thread.
+	 * @param noteLengthIndex Index of the note length multiplier in NoteLength class
+	 */
+	private static void applyTempoMultiplier(int noteLengthIndex) {
+		if (noteLengthIndex < 0 || noteLengthIndex >= NoteLength.tempoMultipliers.length) {
+			Log.error("Cannot find note length for index " + noteLengthIndex + ".");
 		} else {
 			tempoMultiplier = NoteLength.tempoMultipliers[noteLengthIndex];
+			Engine.noteLengthIndex = noteLengthIndex;
+			SessionJournal.recordNoteLength(noteLengthIndex);
 			updateSleepLength();
-			controlFrame.setLengthButtonHighlighted(noteLengthIndex);
+			updateStatus();
 		}
 	}
 
+	/**
+	 * @return Index of the current note length in NoteLength class; -1 until one has been selected
+	 */
+	public static int getNoteLengthIndex() {
+		return noteLengthIndex;
+	}
+
 	/**
 	 * Attribute setter method
 	 * Updates the tempo text field.
@@ -260,7 +305,7 @@ public class Engine {
 	 */
 	public static void setControlFrame(ControlFrame controlFrame) {
 		Engine.controlFrame = controlFrame;
-		Engine.controlFrame.setTempoText(ConfigurationHandler.getTempo());
+		updateStatus();
 	}
 	
 	/**
@@ -272,60 +317,112 @@ public class Engine {
 	
 	/**
 	 * Changes the engine state and displays a message in the control frame.
+	 * Other threads pass the change to the engine thread, which owns the status.
+	 * Playing state is only entered through play().
 	 * @param newStatus		Status to change to
 	 */
 	public static void setStatus(Status newStatus) {
+		compareAndSetStatus(null, newStatus);
+	}
+	
+	/**
+	 * Changes the engine state only if it still is in an expected state when the engine thread gets to it,
+	 * so that the check cannot be overtaken by another change.
+	 * @param expectedStatus	Status that is replaced; null for any
+	 * @param newStatus		Status to change to
+	 */
+	public static void compareAndSetStatus(Status expectedStatus, Status newStatus) {
+		if (Thread.currentThread() == engineThread) {
+			applyStatusChange(expectedStatus, newStatus);
+		} else {
+			int expectedValue = expectedStatus == null ? 0 : expectedStatus.ordinal() + 1;
+			post(CommandQueue.COMMAND_STATUS, expectedValue * STATUS_VALUE_BASE + newStatus.ordinal());
+		}
+	}
+	
+	/**
+	 * Changes the engine state on the engine thread; leaving Playing state pauses the players.
+	 * @param expectedStatus	Status that is replaced; null for any
+	 * @param newStatus		Status to change to
+	 */
+	private static void applyStatusChange(Status expectedStatus, Status newStatus) {
+		if (expectedStatus != null && status != expectedStatus) return;
+		if (newStatus == Status.PLAYING) {
+			Log.warning("Playing state can only be entered through play().");
+			return;
+		}
+		stopPlaying();
+		applyStatus(newStatus);
+	}
+	
+	/**
+	 * Sets the engine state; only called by the engine thread.
+	 * @param newStatus		Status to change to
+	 */
+	private static void applyStatus(Status newStatus) {
 		Engine.status = newStatus;
-		System.out.println("New Status: " + newStatus.toString());
+		Log.info("New Status: " + newStatus.toString());
 		updateStatus();
 	}
 	
 	/**
-	 * Looks at flags and the Status object to determine "readable" status.
-	 * The control frame GUI will be updated accordingly.
+	 * Looks at flags and the Status object to determine "readable" status
+	 * and publishes it to the control frame, which shows it with its next update on the EDT.
+	 * Never blocks, so it may be called from the engine, parse and input threads.
 	 */
 	private static void updateStatus() {
-		if (controlFrame == null) return;
+		ControlFrame frame = controlFrame;
+		if (frame == null) return;
+		frame.publish(createStatusSnapshot());
+	}
+	
+	/**
+	 * @return Current state of the controls
+	 */
+	private static StatusSnapshot createStatusSnapshot() {
+		float tempo = ConfigurationHandler.getTempo();
+		long revision = tempoRevision;
+		int lengthIndex = noteLengthIndex;
 		
 		// Go through statuses from "worst to best".
 		if (!didFindVlc) {
-			controlFrame.setStatusText("VLC not found.");
-			controlFrame.setEnabled(true);
+			return new StatusSnapshot("VLC not found.", false, true, true, false, tempo, revision, lengthIndex);
 		} else if (!didFindFeed) {
-			controlFrame.setStatusText("No media files found.");
-			controlFrame.setEnabled(true);
-		} else {
-			switch (Engine.status) {
-			case READY:
-				if (mediaFrame == null) mediaFrame = new MediaFrame();
-				mediaFrame.setVisible(true);
-				controlFrame.setStatusText("Ready.");
-				controlFrame.setPlayControlEnabled(true);
-				controlFrame.setPathControlEnabled(true);
-				controlFrame.setEnabled(true);
-				break;
-			case PLAYING:
-				controlFrame.setStatusText("Playing.");
-				controlFrame.setPathControlEnabled(false);
-				controlFrame.setEnabled(true);
-				break;
-			case PARSING:
-				controlFrame.setStatusText("Analysing files.");
-				controlFrame.setPlayControlEnabled(false);
-				controlFrame.setPathControlEnabled(false);
-				controlFrame.setEnabled(false);
-				if (mediaFrame != null) {
-					mediaFrame.setVisible(false);
-				}
-				break;
-			default:
-				controlFrame.setStatusText("Status unknown.");
-				controlFrame.setEnabled(false);
-				break;
-			}
+			return new StatusSnapshot("No media files found.", false, true, true, false, tempo, revision, lengthIndex);
+		}
+		
+		switch (Engine.status) {
+		case READY:
+			boolean isAnalysing = MediaFileParser.isAnalysing();
+			return new StatusSnapshot(
+					isAnalysing ? "Ready. Analysing files." : "Ready.",
+					true,
+					!isAnalysing,
+					true,
+					true,
+					tempo,
+					revision,
+					lengthIndex
+					);
+		case PLAYING:
+			return new StatusSnapshot("Playing.", true, false, true, true, tempo, revision, lengthIndex);
+		case PARSING:
+			return new StatusSnapshot("Analysing files.", false, false, false, false, tempo, revision, lengthIndex);
+		default:
+			return new StatusSnapshot("Status unknown.", false, false, false, false, tempo, revision, lengthIndex);
 		}
 	}
 	
+	/**
+	 * Shows or hides the media frames; they are created when they are shown first.
+	 * Only called on the EDT, by the control frame.
+	 * @param isVisible True, if the media frames should be visible
+	 */
+	static void setOutputsVisible(boolean isVisible) {
+		if (isVisible && mediaFrame == null) createOutputs();
+		for (MediaOutput output : outputs) output.getMediaFrame().setVisible(isVisible);
+	}
+	
 	/**
 	 * @return Current OS attribute
 	 */
@@ -348,248 +445,889 @@ public class Engine {
 	 * FLOW CONTROL
 	 */
 	
-	//TODO: Tweak sleep length settings.
+	/**
+	 * Videos that are longer than this might not start playing at 0 sec.
+	 */
+	private static final float SKIP_MIN_LENGTH = 6000l;
+	
+	/**
+	 * Creates the main media frame and, if configured, an additional output on every other screen.
+	 * Only called on the EDT.
+	 * Every additional output chooses its media files and start times with its own seed.
+	 */
+	private static void createOutputs() {
+		mediaFrame = new MediaFrame();
+		ArrayList<MediaOutput> newOutputs = new ArrayList<MediaOutput>();
+		newOutputs.add(new MediaOutput(1, mediaFrame, null, getStartTimeRandom(), ConfigurationHandler.getOutputNoteLength(0)));
+		
+		if (ConfigurationHandler.isUsingScreenOutputs()) {
+			String mainDeviceId = mediaFrame.getGraphicsConfiguration().getDevice().getIDstring();
+			for (GraphicsDevice device : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()) {
+				if (device.getIDstring().equals(mainDeviceId)) continue;
+				
+				int number = newOutputs.size() + 1;
+				long seed = ConfigurationHandler.getRandomSeed() + number - 1;
+				MediaSelector selector = new MediaSelector(
+						ConfigurationHandler.getSelectionMode(),
+						ConfigurationHandler.getRecentWindow(),
+						ConfigurationHandler.getLookahead(),
+						seed
+						);
+				newOutputs.add(new MediaOutput(
+						number,
+						new MediaFrame(device, "Vidcheroo " + number),
+						selector,
+						createStartTimeRandom(seed),
+						ConfigurationHandler.getOutputNoteLength(number - 1)
+						));
+			}
+			Log.info("Using " + newOutputs.size() + " screen outputs.");
+		}
+		
+		outputs = newOutputs.toArray(new MediaOutput[newOutputs.size()]);
+	}
 	
 	/**
-	 * Length of sleep steps in ms
+	 * Beat grid of the current play thread; null if not playing
 	 */
-	private static final long SLEEP_INTERVAL = 4l;
+	private static volatile BeatScheduler beatScheduler = null;
 	
 	/**
-	 * Videos that are longer than this might not start playing at 0 sec.
+	 * Precomputed beats of the configured cue file; null for a fixed tempo
 	 */
-	private static final float SKIP_MIN_LENGTH = 6000l;
+	private static BeatGrid beatGrid = null;
+	
+	/**
+	 * Path from which beatGrid has been read
+	 */
+	private static String beatGridPath = null;
 	
 	/**
-	 * Counts the sleep steps. Values in ms.
+	 * Reads the configured beat grid cue file if it has changed.
+	 * @return Precomputed beats; null if no or no valid cue file is configured
 	 */
-	private static long sleepCounter = 0l;
+	private static synchronized BeatGrid getBeatGrid() {
+		String configuredPath = ConfigurationHandler.getBeatGridPath();
+		if (configuredPath == null) {
+			beatGrid = null;
+		} else if (!configuredPath.equals(beatGridPath)) {
+			try {
+				beatGrid = BeatGrid.read(new File(configuredPath));
+				Log.info(
+						"Following beat grid of " + beatGrid.getBeatCount() + " beats at "
+						+ beatGrid.getAverageTempo() + " BPM from " + configuredPath + "."
+						);
+			} catch (IOException e) {
+				Log.error("Could not read beat grid " + configuredPath + ". Using the tempo instead.", e);
+				beatGrid = null;
+			}
+		}
+		beatGridPath = configuredPath;
+		return beatGrid;
+	}
 		
 	/**
-	 * Puts the Engine into Playing state and creates a thread that loops forever until this state is left.
-	 * The thread loads a media file into the player, sleeps and then loads another one.
-	 * The length of the sleep depends on the current tempo and "note" length
+	 * Puts the Engine into Playing state.
+	 * If the Engine is already playing, the next file is shown right away.
 	 */
 	public static void play() {
+		post(CommandQueue.COMMAND_PLAY_OR_CUT, 0f);
+	}
+	
+	/**
+	 * Shows the next file right away; ignored if the Engine is not playing.
+	 * Cuts are not merged: several cuts before the next switch show as many files, one after another.
+	 */
+	public static void cut() {
+		post(CommandQueue.COMMAND_CUT, 0f);
+	}
+	
+	/**
+	 * Compares the media directory with the library and analyses new or changed files; ignored while playing.
+	 */
+	public static void reloadMediaFiles() {
+		post(CommandQueue.COMMAND_RELOAD, 0f);
+	}
+	
+	/*
+	 * ENGINE THREAD
+	 */
+	
+	/**
+	 * Number of commands that can wait for the engine thread
+	 */
+	private static final int COMMAND_QUEUE_CAPACITY = 1024;
+	
+	/**
+	 * Controls from all input threads to the engine thread
+	 */
+	private static final CommandQueue commands = new CommandQueue(COMMAND_QUEUE_CAPACITY);
+	
+	/**
+	 * A status command value is the ordinal of the new status plus this base times (1 + ordinal of the expected status).
+	 */
+	private static final int STATUS_VALUE_BASE = 16;
+	
+	/**
+	 * Thread that executes all commands and switches the media files; started with the first command
+	 */
+	private static volatile Thread engineThread = null;
+	
+	/**
+	 * Guards the start of the engine thread; not the Engine class, which is held during file I/O
+	 */
+	private static final Object ENGINE_THREAD_LOCK = new Object();
+	
+	/**
+	 * Number of cuts that have been requested while playing and not shown yet; only used by the engine thread.
+	 * Every cut is shown, even if several arrive between two switches.
+	 */
+	private static int pendingCutCount = 0;
+	
+	/**
+	 * Set by a full-screen command while playing; the idle engine thread toggles and plays again
+	 */
+	private static boolean isFullscreenToggleDeferred = false;
+	
+	/**
+	 * Number of executed commands by command type; unknown types are counted as NONE. Only written by the engine thread.
+	 */
+	private static final AtomicLongArray executedCounts = new AtomicLongArray(CommandQueue.COMMAND_SHUTDOWN + 1);
+	
+	/**
+	 * Passes a control to the engine thread. May be called from any thread; never blocks.
+	 * Commands are executed one after another in the order in which they were posted.
+	 * @param command Command type, see CommandQueue
+	 * @param value Command value
+	 * @return False, if the queue was full and the command has been dropped
+	 */
+	static boolean post(int command, float value) {
+		boolean isAccepted = commands.offer(command, value);
+		if (!isAccepted) {
+			Log.warning("Engine command queue is full. Dropped command " + command + ".");
+		}
+		LockSupport.unpark(getEngineThread());
+		return isAccepted;
+	}
+	
+	/**
+	 * @param command Command type, see CommandQueue; NONE for unknown types
+	 * @return Number of commands of this type that the engine thread has executed
+	 */
+	static long getExecutedCount(int command) {
+		return executedCounts.get(command);
+	}
+	
+	/**
+	 * Replaces the outputs by outputs without media frames, e.g. with stand-in players; only while not playing.
+	 * Used where there is no control frame, which would create the media frames.
+	 * @param newOutputs Outputs to switch
+	 */
+	static void setOutputs(MediaOutput[] newOutputs) {
+		outputs = newOutputs;
+	}
+	
+	/**
+	 * Only the first call takes a lock, so that posting never waits for another thread.
+	 * @return Engine thread; started if it is not running yet
+	 */
+	private static Thread getEngineThread() {
+		Thread thread = engineThread;
+		if (thread != null) return thread;
+		
+		synchronized (ENGINE_THREAD_LOCK) {
+			if (engineThread == null) {
+				thread = new Thread("Vidcheroo Engine") {
+					public void run() {
+						while (true) {
+							int command = commands.poll();
+							if (command == CommandQueue.NONE) {
+								LockSupport.park(this);
+							} else {
+								// This is the only engine thread; a failing command must not end it.
+								try {
+									execute(command, commands.getPolledValue());
+									if (isFullscreenToggleDeferred) {
+										isFullscreenToggleDeferred = false;
+										for (MediaOutput output : outputs) output.stop();
+										applyFullscreenToggle();
+										startPlaying();
+									}
+								} catch (RuntimeException e) {
+									recover(command, e);
+								}
+							}
+						}
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+				engineThread = thread;
+			}
+			return engineThread;
+		}
+	}
+	
+	/**
+	 * Stops the outputs after a command failed on the engine thread and returns to Ready state,
+	 * so that the thread can go on executing commands.
+	 * @param command Command type that failed, see CommandQueue
+	 * @param exception Cause of the failure
+	 */
+	private static void recover(int command, RuntimeException exception) {
+		Log.error("Engine command " + command + " failed. Stopping the outputs.", exception);
+		isFullscreenToggleDeferred = false;
+		pendingCutCount = 0;
+		beatScheduler = null;
+		for (MediaOutput output : outputs) {
+			try {
+				output.stop();
+			} catch (RuntimeException e) {
+				Log.error("Could not stop output " + output.getNumber() + ".", e);
+			}
+		}
 		if (status == Status.PLAYING) {
-			sleepCounter = noteSleepLength;
+			SessionJournal.recordPlayback(false);
+			applyStatus(Status.READY);
 		}
+	}
+	
+	/**
+	 * Executes a command on the engine thread.
+	 * While playing, this is called from inside the play loop, so that playing never starts twice.
+	 * @param command Command type, see CommandQueue
+	 * @param value Command value
+	 */
+	private static void execute(int command, float value) {
+		int countIndex = command > 0 && command < executedCounts.length() ? command : CommandQueue.NONE;
+		executedCounts.lazySet(countIndex, executedCounts.get(countIndex) + 1l);
 		
-		if (status == Status.READY) {
+		switch (command) {
+		case CommandQueue.COMMAND_PLAY_OR_CUT:
+			if (status == Status.PLAYING) pendingCutCount++;
+			else startPlaying();
+			break;
+		case CommandQueue.COMMAND_PLAY:
+			if (status != Status.PLAYING) startPlaying();
+			break;
+		case CommandQueue.COMMAND_CUT:
+			if (status == Status.PLAYING) pendingCutCount++;
+			break;
+		case CommandQueue.COMMAND_PAUSE:
+			stopPlaying();
+			break;
+		case CommandQueue.COMMAND_TEMPO:
+			if (value != 0f) ConfigurationHandler.storeTempo(value);
+			applyTempo();
+			break;
+		case CommandQueue.COMMAND_NOTE_LENGTH:
+			applyTempoMultiplier((int) value);
+			break;
+		case CommandQueue.COMMAND_RELOAD:
+			if (status == Status.READY) MediaFileParser.parseMediaPath(null, true);
+			break;
+		case CommandQueue.COMMAND_FULLSCREEN:
+			if (status == Status.PLAYING) {
+				// Leave the play loop first, so that no player is in use while the frames change.
+				stopPlaying();
+				isFullscreenToggleDeferred = true;
+			} else {
+				applyFullscreenToggle();
+			}
+			break;
+		case CommandQueue.COMMAND_STATUS:
+			int expectedValue = (int) value / STATUS_VALUE_BASE;
+			applyStatusChange(
+					expectedValue == 0 ? null : Status.values()[expectedValue - 1],
+					Status.values()[(int) value % STATUS_VALUE_BASE]
+					);
+			break;
+		case CommandQueue.COMMAND_SHUTDOWN:
+			exit();
+			break;
+		default:
+			Log.warning("Unknown Engine command " + command + ".");
+			break;
+		}
+	}
+	
+	/**
+	 * Executes the commands that were posted while the play loop was waiting, until one of them stops playing.
+	 * Later commands are then executed by the idle engine thread, e.g. starting to play again.
+	 */
+	private static void executeCommands() {
+		while (status == Status.PLAYING) {
+			int command = commands.poll();
+			if (command == CommandQueue.NONE) return;
+			execute(command, commands.getPolledValue());
+		}
+	}
+	
+	/**
+	 * Waits for a deadline in the play loop and executes the commands that are posted meanwhile.
+	 * @param scheduler Beat grid of the play loop
+	 * @param deadline Absolute time stamp in ns (System.nanoTime())
+	 * Cuts that are still pending end the wait right away, one at a time.
+	 * @return DEADLINE_REACHED, TRIGGERED, RESCHEDULED if the deadline has to be calculated again,
+	 * or WOKEN if a cut is pending or playing stopped
+	 */
+	private static int awaitSwitch(BeatScheduler scheduler, long deadline) {
+		if (pendingCutCount == 0) {
+			int result = scheduler.awaitDeadline(deadline);
+			if (result != BeatScheduler.COMMAND) return result;
 			
-			/*
-			 * BEAT DETECTOR TESTING
-			 */
+			executeCommands();
+		}
+		if (status != Status.PLAYING) return BeatScheduler.WOKEN;
+		if (pendingCutCount > 0) {
+			pendingCutCount--;
+			return BeatScheduler.WOKEN;
+		}
+		return BeatScheduler.RESCHEDULED;
+	}
+	
+	/**
+	 * Puts the Engine into Playing state and loops on the engine thread until this state is left.
+	 * The loop loads a media file into the player, sleeps until the next switch on the beat grid
+	 * and then loads another one.
+	 * The grid depends on the current tempo and "note" length.
+	 */
+	private static void startPlaying() {
+		if (status != Status.READY) return;
+		if (outputs.length == 0) {
+			// The control frame creates the media frames with its next update.
+			Log.warning("Media frames have not been created yet.");
+			return;
+		}
+		if (replayEntries != null) {
+			// Journals only hold the cuts of the main output.
+			if (outputs.length > 1) {
+				Log.error("Session journals only record the main output. Replays need screen_outputs=false.");
+				return;
+			}
+			replay(replayEntries);
+			return;
+		}
+		
+		// Pre-roll the first files, so that every switch only has to show the next player.
+		// We will randomly skip through long videos.
+		MediaOutput[] playOutputs = outputs;
+		MediaOutput mainOutput = playOutputs[0];
+		for (MediaOutput output : playOutputs) {
+			if (!output.prerollNext(getSwitchLength(ConfigurationHandler.getTempo(), output.getTempoMultiplier()))) {
+				Log.warning("No media files to play.");
+				setDidFindFeed(false);
+				return;
+			}
+		}
+		
+		// Follow a precomputed beat grid or let the audio input drive the tempo.
+		// A MIDI clock sets the tempo itself.
+		BeatGrid playBeatGrid = getBeatGrid();
+		if (playBeatGrid == null && !MidiClock.isOpen() && ConfigurationHandler.isDetectingTempo()) {
 			BeatDetector.getInstance();
-			//BeatDetector.start();
-
-			Thread playThread = new Thread() {
-				public void run() {
-					System.out.println("Starting new Engine Play thread.");
-					setStatus(Status.PLAYING);
-					
-					// We will randomly skip through long videos.
-					Random rand = new Random();
+			BeatDetector.start();
+		}
+		
+		Log.info("Starting Engine Play loop.");
+		applyStatus(Status.PLAYING);
+		SessionJournal.recordPlayback(true);
+		
+		// All switches of all outputs are on a grid that starts now.
+		// A precomputed beat grid expects its recording to start now as well.
+		BeatScheduler scheduler = new BeatScheduler(
+				ConfigurationHandler.getTempo(),
+				tempoMultiplier,
+				playBeatGrid
+				);
+		scheduler.setCommandQueue(commands);
+		beatScheduler = scheduler;
+		pendingCutCount = 0;
+		
+		// Outputs that switch next; all of them at the start.
+		boolean[] isDue = new boolean[playOutputs.length];
+		Arrays.fill(isDue, true);
+		
+		// Outputs that switch before their next beat because their clip is ending.
+		boolean[] isForced = new boolean[playOutputs.length];
+		
+		// Deadline in ns of the beat that caused the current switch; 0 for manual switches.
+		long beatDeadline = 0l;
+		
+		// Arrival time in ns of the MIDI clock tick that caused the current switch; 0 otherwise.
+		long tickNanos = 0l;
+		
+		while (status == Status.PLAYING) {
+			// Play the pre-rolled files, the main output first.
+			if (tickNanos > 0l) LatencyMonitor.TICK_TO_CALL.record(System.nanoTime() - tickNanos);
+			if (isDue[0] && beatDeadline > 0l) LatencyMonitor.BEAT_TO_CALL.record(System.nanoTime() - beatDeadline);
+			long causeNanos = tickNanos > 0l ? tickNanos : beatDeadline;
+			long cutLatency = causeNanos > 0l ? System.nanoTime() - causeNanos : -1l;
+			for (int i = 0; i < playOutputs.length; i++) {
+				if (!isDue[i]) continue;
+				Object cutEvent = Telemetry.beginCut();
+				playOutputs[i].cut(beatDeadline, noteModuloLength);
+				Telemetry.endCut(cutEvent, playOutputs[i], cutLatency, isForced[i]);
+			}
+			
+			for (int i = 0; i < playOutputs.length; i++) {
+				if (!isDue[i]) continue;
+				MediaOutput output = playOutputs[i];
+				if (beatDeadline > 0l) output.countMissedSwitches(scheduler, beatDeadline);
+				if (i == 0 && output.didSwitch) {
+					SessionJournal.recordCut(
+							output.switchNanos,
+							output.mediaFile.path,
+							output.startTime,
+							tickNanos > 0l ? tickNanos : beatDeadline
+							);
+				}
+				
+				// Nothing is formatted on the beat thread unless debugging.
+				if (Log.isDebug()) {
+					if (i == 0) Log.debug(" " + output.mediaFile.path);
+					else Log.debug(" [" + output.getNumber() + "] " + output.mediaFile.path);
 					
-					while (status == Status.PLAYING) {
-						// Play the next file.
-						MediaFile mediaFile = MediaFileParser.getRandomMediaFile();
-						System.out.println(" " + mediaFile.path);
-						
-						// Generally start a media file at t=0ms.
-						long startTime = 0l;
-						
-						// The length of the media file in ms.
-						long mediaLength = mediaFile.length;
-						
-						// Only bother checking for a different start time, if we are not switching very fast.
-						if (noteSleepLength > 1000) {	
-							if (mediaLength > SKIP_MIN_LENGTH) {
-								// Skip to a random point in the media that will not let it reach the end of the file.
-								startTime = (long) (rand.nextFloat() * (mediaLength - SKIP_MIN_LENGTH));
-								System.out.println("Skipping to " + startTime + "/" + mediaLength + " of " + mediaFile.path);
-							}
-						}
-						mediaFrame.playMediaFilePath(mediaFile.path, startTime);
-						
-						// Time value in ms at which the media file will be reset to the start.
-						// The max. multiple of 1/8th notes in mediaLength - startTime
-						long repeatTime = mediaLength - startTime;
-						repeatTime -= repeatTime % noteModuloLength;
-						if (repeatTime <= 0l) {
-							System.err.println("WARNING: repeatTime=" + repeatTime + ". Will be reset.");
-							repeatTime = noteModuloLength;
-						}
-						
-						//DEBUG
-						System.out.println("  " + mediaLength + " startTime=" + startTime + " repeatTime=" + repeatTime);
-
-						final long fNanoInterval = SLEEP_INTERVAL * 1000000l;
-
-						// Sleep for one beat length.
-						try {
-							for (sleepCounter = 0l; sleepCounter < noteSleepLength; sleepCounter += SLEEP_INTERVAL) {
-								// If the sleep duration is reaching the time at which this file is ending,
-								// call play() to stop the current media and ask for a new one.
-								if (sleepCounter > repeatTime) {
-									System.out.println("Force switch at " + sleepCounter + " ms.");
-									play();
-									break;
-								}
-								//sleep(SLEEP_INTERVAL);
-								LockSupport.parkNanos(fNanoInterval);
-							}
-							
-							//sleep(beatSleepLength);
-						} catch (Exception ex) {
-							ex.printStackTrace();
-						}
+					// The length of the media file in ms.
+					long mediaLength = output.mediaFile.length;
+					if (mediaLength - output.startTime < noteModuloLength) {
+						Log.debug("repeatTime=" + (mediaLength - output.startTime) + ". Will be reset.");
 					}
-					Engine.mediaFrame.pause();
-					System.out.println("Reached end of Engine Play thread.");
 				}
-			};
+				
+				// Open, seek and pause the next file in the hidden player while this one is visible.
+				// If the library has become empty, the visible file goes on and the status shows why.
+				if (!output.prerollNext(getSwitchLength(ConfigurationHandler.getTempo(), output.getTempoMultiplier()))
+						&& didFindFeed) {
+					Log.warning("No media files left. Output " + output.getNumber() + " keeps its clip.");
+					setDidFindFeed(false);
+				}
+			}
+			
+			if (isDue[0] && Log.isDebug()) {
+				Log.debug(
+						"  " + mainOutput.mediaFile.length + " startTime=" + mainOutput.startTime
+						+ " repeatTime=" + (mainOutput.clipEndNanos - mainOutput.switchNanos) / 1000000l
+						+ " jitter=" + scheduler.getLastJitterNanos() / 1000l + "us"
+						);
+			}
+			
+			// Sleep until the next switch of any output on the grid or, when following a MIDI clock,
+			// until its next switch tick. If a file is ending before that, switch at the time at which it ends.
+			// Tempo changes move the deadline, play() and pause() end the sleep right away.
+			int result;
+			long deadline;
+			do {
+				long now = System.nanoTime();
+				deadline = Long.MAX_VALUE;
+				for (MediaOutput output : playOutputs) {
+					output.deadline = output.clipEndNanos;
+					if (!MidiClock.isOpen()) {
+						long switchDeadline = scheduler.getSwitchDeadlineAfter(now, output.getTempoMultiplier());
+						output.deadline = Math.min(switchDeadline, output.clipEndNanos);
+					}
+					deadline = Math.min(deadline, output.deadline);
+				}
+				result = awaitSwitch(scheduler, deadline);
+			} while (result == BeatScheduler.RESCHEDULED && status == Status.PLAYING);
 			
-			// Call-back to run():
-			playThread.start();
+			// Manual switches and MIDI clock ticks switch all outputs.
+			beatDeadline = result == BeatScheduler.DEADLINE_REACHED ? deadline : 0l;
+			tickNanos = result == BeatScheduler.TRIGGERED ? scheduler.getTriggerNanos() : 0l;
+			for (int i = 0; i < playOutputs.length; i++) {
+				isDue[i] = result != BeatScheduler.DEADLINE_REACHED || playOutputs[i].deadline <= deadline;
+				isForced[i] = result == BeatScheduler.DEADLINE_REACHED && isDue[i]
+						&& playOutputs[i].deadline == playOutputs[i].clipEndNanos;
+			}
+			if (result == BeatScheduler.DEADLINE_REACHED && isDue[0] && deadline == mainOutput.clipEndNanos
+					&& Log.isDebug()) {
+				Log.debug(
+						"Force switch at " + (mainOutput.clipEndNanos - mainOutput.switchNanos) / 1000000l + " ms."
+						);
+			}
+		}
+		for (MediaOutput output : playOutputs) output.pause();
+		SessionJournal.recordPlayback(false);
+		if (beatScheduler == scheduler) beatScheduler = null;
+		Log.info(
+				"Reached end of Engine Play loop. Switch jitter: avg="
+				+ scheduler.getAverageJitterNanos() / 1000l + "us max="
+				+ scheduler.getMaxJitterNanos() / 1000l + "us over "
+				+ scheduler.getDeadlineCount() + " switches."
+				);
+		if (playOutputs.length > 1) {
+			for (MediaOutput output : playOutputs) Log.info(output.getSummary());
 		}
 	}
-
+	
 	/**
-	 * Pause the player and finish the play thread by rising the sleep counter value.
+	 * Leaves Playing state and pauses the players; the play loop ends at its next wake-up.
 	 */
-	public static void pause() {
+	private static void stopPlaying() {
 		// Only if we are playing, we can set the status to ready.
 		if (status == Status.PLAYING) {
-			Engine.mediaFrame.pause();
-			Engine.sleepCounter = noteSleepLength;
-			setStatus(Status.READY);
+			for (MediaOutput output : outputs) output.pause();
+			applyStatus(Status.READY);
 		}
 	}
+
+	/**
+	 * Entries of a recorded session that are replayed instead of choosing files; null for live sessions
+	 */
+	private static List<SessionJournal.Entry> replayEntries = null;
 	
-	/*
-	 * MISC CONTROL
+	/**
+	 * Makes play() replay a recorded session instead of choosing files.
+	 * @param journalFile Session journal
+	 * @return True, if the journal could be read
 	 */
+	public static boolean setReplayJournal(File journalFile) {
+		try {
+			replayEntries = SessionJournal.read(journalFile, null);
+			Log.info("Replaying " + replayEntries.size() + " entries of " + journalFile + " on play.");
+			return true;
+		} catch (IOException e) {
+			Log.error("Could not read session journal " + journalFile + ".", e);
+			return false;
+		}
+	}
 	
 	/**
-	 * Toggles full screen boolean variable and calls resizing method on media frame.
-	 * Not used on OSX.
+	 * Puts the Engine into Playing state and shows the recorded cuts at their recorded times,
+	 * measured from the first time playback was started in the recording.
+	 * Cuts that were caused by a beat are shown on that beat, so that their latency is measured again.
+	 * Tempo and note length changes are applied, other key presses are only printed.
+	 * @param entries Journal entries
 	 */
-	public static void toggleFullscreen() {
-		if (mediaFrame == null) return;
+	private static void replay(List<SessionJournal.Entry> entries) {
+		Log.info("Starting Engine Replay loop.");
+		applyStatus(Status.PLAYING);
 		
-		boolean resumeAfterToggle = false;
+		BeatScheduler scheduler = new BeatScheduler(ConfigurationHandler.getTempo(), tempoMultiplier);
+		scheduler.setCommandQueue(commands);
+		beatScheduler = scheduler;
 		
-		if (status == Status.PLAYING) {
-			resumeAfterToggle = true;
-			pause();
-			mediaFrame.stop();
+		// Settings from before the first start apply right away.
+		int index = 0;
+		while (index < entries.size() && entries.get(index).type != SessionJournal.TYPE_PLAY) {
+			applyReplayEntry(entries.get(index));
+			index++;
 		}
-
+		long originTime = index < entries.size() ? entries.get(index).time : 0l;
 		
-		// Toggle boolean first.
-		isFullScreen = !isFullScreen;
+		// Pre-roll the first cut.
+		int cutIndex = findReplayCut(entries, index);
+		if (cutIndex >= 0) mediaFrame.prepareMediaFilePath(entries.get(cutIndex).path, entries.get(cutIndex).value);
 		
-		if (isFullScreen) mediaFrame.setWindowed(false);
-		else mediaFrame.setWindowed(true);
+		for (; index < entries.size() && status == Status.PLAYING; index++) {
+			SessionJournal.Entry entry = entries.get(index);
+			boolean isBeatCut = entry.type == SessionJournal.TYPE_CUT && entry.lateness >= 0l;
+			long deadline = scheduler.getOriginNanos() + entry.time - originTime - (isBeatCut ? entry.lateness : 0l);
+			
+			// Manual switches and tempo changes do not end the wait.
+			int result;
+			do {
+				result = awaitSwitch(scheduler, deadline);
+			} while (result != BeatScheduler.DEADLINE_REACHED && status == Status.PLAYING);
+			if (status != Status.PLAYING) break;
+			
+			if (entry.type == SessionJournal.TYPE_CUT) {
+				if (isBeatCut) LatencyMonitor.BEAT_TO_CALL.record(System.nanoTime() - deadline);
+				mediaFrame.playPreparedMedia();
+				if (Log.isDebug()) Log.debug(" " + entry.path + " startTime=" + entry.value);
+				
+				cutIndex = findReplayCut(entries, index + 1);
+				if (cutIndex >= 0) mediaFrame.prepareMediaFilePath(entries.get(cutIndex).path, entries.get(cutIndex).value);
+			} else {
+				applyReplayEntry(entry);
+			}
+		}
 		
-		if (resumeAfterToggle) play();
+		Engine.mediaFrame.pause();
+		if (beatScheduler == scheduler) beatScheduler = null;
+		if (status == Status.PLAYING) applyStatus(Status.READY);
+		Log.info(
+				"Reached end of Engine Replay loop. Switch jitter: avg="
+				+ scheduler.getAverageJitterNanos() / 1000l + "us max="
+				+ scheduler.getMaxJitterNanos() / 1000l + "us over "
+				+ scheduler.getDeadlineCount() + " entries."
+				);
 	}
 	
 	/**
-	 * Length in ms during which the blinking text is visible
+	 * Applies a recorded entry other than a cut.
+	 * @param entry Journal entry
 	 */
-	private static final int BLINK_TIME_SHOW = 600;
+	private static void applyReplayEntry(SessionJournal.Entry entry) {
+		switch (entry.type) {
+		case SessionJournal.TYPE_TEMPO:
+			ConfigurationHandler.setTempo(entry.tempo);
+			break;
+		case SessionJournal.TYPE_NOTE_LENGTH:
+			applyTempoMultiplier((int) entry.value);
+			break;
+		case SessionJournal.TYPE_PAUSE:
+			if (mediaFrame != null) mediaFrame.pause();
+			break;
+		case SessionJournal.TYPE_KEY:
+			Log.info("Replayed key: " + entry.value);
+			break;
+		default:
+			break;
+		}
+	}
 	
 	/**
-	 * Length in ms during which the blinking text is not visible
+	 * @param entries Journal entries
+	 * @param fromIndex Index of the first entry to look at
+	 * @return Index of the next cut or -1
 	 */
-	private static final int BLINK_TIME_HIDE = 200;
+	private static int findReplayCut(List<SessionJournal.Entry> entries, int fromIndex) {
+		for (int i = fromIndex; i < entries.size(); i++) {
+			if (entries.get(i).type == SessionJournal.TYPE_CUT) return i;
+		}
+		return -1;
+	}
 	
 	/**
-	 * Number of status text blinks
+	 * Mixed into the random seed for the start times, so that they do not repeat the media selection
 	 */
-	private static final short BLINK_REPEATS = 5;
+	private static final long START_TIME_SEED_MIX = 0x5DEECE66Dl;
 	
 	/**
-	 * Lets the currently displayed status text blink.
+	 * Random number generator of the start times; created from the configured seed
 	 */
-	private static void blinkStatusText() {
-		if (controlFrame == null) {
-			System.err.println("ERROR: Control frame not initialised.");
-			return;
+	private static Random startTimeRandom = null;
+	
+	/**
+	 * @return Random number generator of the start times of this session
+	 */
+	private static synchronized Random getStartTimeRandom() {
+		if (startTimeRandom == null) startTimeRandom = createStartTimeRandom(ConfigurationHandler.getRandomSeed());
+		return startTimeRandom;
+	}
+	
+	/**
+	 * Live and rendered sessions derive their start times from the seed in the same way.
+	 * @param seed Seed of the session
+	 * @return New random number generator of the start times
+	 */
+	static Random createStartTimeRandom(long seed) {
+		return new Random(seed ^ START_TIME_SEED_MIX);
+	}
+	
+	/**
+	 * Generally, a media file is started at t=0ms.
+	 * If we are not switching very fast, long media files start at a random point.
+	 * If the keyframes of the media file are known, only keyframes are chosen, so that the seek is instant.
+	 * @param mediaFile Media file that is about to be played
+	 * @param rand Random number generator of the start times
+	 * @param switchLength Length in ms of one switch
+	 * @return Value in ms at which to start the media file
+	 */
+	static long getStartTime(MediaFile mediaFile, Random rand, long switchLength) {
+		long startTime = 0l;
+		
+		// The length of the media file in ms.
+		long mediaLength = mediaFile.length;
+		
+		// Only bother checking for a different start time, if we are not switching very fast.
+		if (switchLength > 1000) {	
+			if (mediaLength > SKIP_MIN_LENGTH) {
+				long maxStartTime = (long) (mediaLength - SKIP_MIN_LENGTH);
+				long[] keyframeTimes = mediaFile.keyframeTimes;
+				if (keyframeTimes != null) {
+					// Number of keyframes that will not let the media reach the end of the file.
+					int keyframeCount = Arrays.binarySearch(keyframeTimes, maxStartTime);
+					keyframeCount = keyframeCount < 0 ? -keyframeCount - 1 : keyframeCount;
+					if (keyframeCount > 0) startTime = keyframeTimes[rand.nextInt(keyframeCount)];
+				} else {
+					// Skip to a random point in the media that will not let it reach the end of the file.
+					startTime = (long) (rand.nextFloat() * maxStartTime);
+				}
+			}
 		}
+		return startTime;
+	}
+	
+	/**
+	 * @param mediaLength Length in ms of the media file
+	 * @param startTime Value in ms at which the media file starts
+	 * @param moduloLength Length in ms of one 1/8th note
+	 * @return The max. multiple of 1/8th notes in mediaLength - startTime, at least one 1/8th note
+	 */
+	static long getRepeatTime(long mediaLength, long startTime, long moduloLength) {
+		long repeatTime = mediaLength - startTime;
+		repeatTime -= repeatTime % moduloLength;
+		if (repeatTime <= 0l) repeatTime = moduloLength;
+		return repeatTime;
+	}
+	
+	/**
+	 * 60 sec. / BPM * tempo multiplier
+	 * @param tempo Quarter notes per minute
+	 * @param tempoMultiplier Note length multiplier, see NoteLength class
+	 * @return Length in ms of one switch
+	 */
+	static long getSwitchLength(float tempo, float tempoMultiplier) {
+		return (long) ((60f / (tempo * tempoMultiplier)) * 1000f);
+	}
+	
+	/**
+	 * @param tempo Quarter notes per minute
+	 * @return Length in ms of one 1/8th note
+	 */
+	static long getModuloLength(float tempo) {
+		return (long) ((60f / (tempo * 2f)) * 1000f);
+	}
+	
+	/**
+	 * Lets the play thread switch right away, on the tick of an external clock.
+	 * @param nanos Arrival time of the tick in ns (System.nanoTime())
+	 */
+	static void triggerSwitch(long nanos) {
+		BeatScheduler scheduler = beatScheduler;
+		if (scheduler != null) scheduler.trigger(nanos);
+	}
+	
+	/**
+	 * @return Current note length multiplier, see NoteLength class
+	 */
+	static float getTempoMultiplier() {
+		return tempoMultiplier;
+	}
+	
+	/**
+	 * Pause the player and finish the play loop.
+	 */
+	public static void pause() {
+		post(CommandQueue.COMMAND_PAUSE, 0f);
+	}
+	
+	/*
+	 * MISC CONTROL
+	 */
+	
+	/**
+	 * Toggles full screen boolean variable and calls resizing method on media frame.
+	 * Not used on OSX.
+	 */
+	public static void toggleFullscreen() {
+		if (mediaFrame == null) return;
+		post(CommandQueue.COMMAND_FULLSCREEN, 0f);
+	}
+	
+	/**
+	 * Resizes the media frames; only called by the engine thread while not playing.
+	 * The frames are resized on the Event Dispatch Thread, which never waits for the engine thread.
+	 */
+	private static void applyFullscreenToggle() {
+		final MediaOutput[] toggleOutputs = outputs;
 		
-		updateStatus();
-		blinkStatusText(controlFrame.getStatusText());
+		// Toggle boolean first.
+		isFullScreen = !isFullScreen;
+		final boolean isWindowed = !isFullScreen;
+		
+		try {
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+					for (MediaOutput output : toggleOutputs) output.getMediaFrame().setWindowed(isWindowed);
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (InvocationTargetException e) {
+			Log.error("Could not resize the media frames.", e.getCause());
+		}
+	}
+	
+	/**
+	 * Lets the currently displayed status text blink.
+	 */
+	private static void blinkStatusText() {
+		blinkStatusText(createStatusSnapshot().statusText);
 	}
 
 	/**
-	 * Lets a given status text blink by setting the text, sleeping,
-	 * setting no text, sleeping again and repeating this.
+	 * Lets a given status text blink in the control frame, on its status timer.
 	 * @param statusText Text to temporarily put into status label and blink.
 	 */
 	public static void blinkStatusText(String statusText) {
-		if (controlFrame == null) {
-			System.err.println("ERROR: Control frame not initialised.");
+		ControlFrame frame = controlFrame;
+		if (frame == null) {
+			Log.error("Control frame not initialised.");
 			return;
 		}
 		
-		final String fStatusText = statusText;
-		
-		Thread blinkThread = new Thread() {
-			public void run() {
-				for (int i = 0; i < BLINK_REPEATS; i++) {
-					// Hide the text, wait shortly, show the blink text, wait longer.
-					try {
-						controlFrame.setStatusText("");
-						Thread.sleep(BLINK_TIME_HIDE);
-						
-						controlFrame.setStatusText(fStatusText);
-						Thread.sleep(BLINK_TIME_SHOW);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-				// Write the current status back into the control frame.
-				setStatus(status);
-			}
-			
-		};
-		
-		blinkThread.start();
+		frame.blinkStatusText(statusText);
 	}
 	
 	/**
 	 * Recalculates the note length and write the current tempo into the control frame.
 	 */
 	public static void updateTempo() {
+		post(CommandQueue.COMMAND_TEMPO, 0f);
+	}
+	
+	/**
+	 * Changes the configured tempo on the engine thread, e.g. to a tempo that an input thread has measured.
+	 * @param tempo Numeric value between ConfigurationHandler.MIN_TEMPO & MAX_TEMPO
+	 */
+	static void setTempo(float tempo) {
+		post(CommandQueue.COMMAND_TEMPO, tempo);
+	}
+	
+	/**
+	 * Applies the configured tempo on the engine thread.
+	 */
+	private static void applyTempo() {
 		updateSleepLength();
 		float tempo = ConfigurationHandler.getTempo();
-		noteModuloLength = (long) ((60f / (tempo * 2f)) * 1000f);
-
-		if (controlFrame != null) {
-			controlFrame.setTempoText(ConfigurationHandler.getTempo());
-		}
+		noteModuloLength = getModuloLength(tempo);
+		tempoRevision++;
+		updateStatus();
 	}
 	
 	/**
 	 * Stop the play thread, stop the video, store the settings and exit.
+	 * The engine thread exits after the commands that have been posted before.
+	 * If the engine thread has died, e.g. of an Error, this thread exits instead.
 	 */
 	public static void shutdown() {
-		System.out.println("Exiting Vidcheroo");
-		status = Status.READY;
-		Engine.sleepCounter = noteSleepLength;
+		Thread thread = engineThread;
+		if (thread != null && !thread.isAlive()) {
+			Log.warning("Engine thread is not running. Exiting directly.");
+			exit();
+			return;
+		}
+		post(CommandQueue.COMMAND_SHUTDOWN, 0f);
+	}
+	
+	/**
+	 * Stops playing and all input threads, prints the reports, stores the settings and exits;
+	 * only called by the engine thread, or by shutdown() if that thread has died.
+	 */
+	private static void exit() {
+		Log.info("Exiting Vidcheroo");
+		stopPlaying();
+		MediaPathWatcher.stop();
+		MidiClock.stop();
+		OscServer.stop();
+		BeatDetector.stop();
 		try {
-			if (mediaFrame != null) {
-				mediaFrame.stop();
-			}
+			for (MediaOutput output : outputs) output.stop();
 		} catch (Exception e) {
-			e.printStackTrace();
+			Log.error("Could not stop the media outputs.", e);
 		}
 		
+		LatencyMonitor.printReport();
+		if (outputs.length > 1) {
+			for (MediaOutput output : outputs) Log.info(output.getSummary());
+		}
+		SessionJournal.stop();
 		ConfigurationHandler.storeConfigProperties();		
 		
+		Log.flush();
 		System.exit(0);
 	}
 	
@@ -600,7 +1338,14 @@ public class Engine {
 	 */
 	private static void updateSleepLength() {
 		float tempo = ConfigurationHandler.getTempo();
-		noteSleepLength = (long) ((60f / (tempo * tempoMultiplier)) * 1000f);
-		System.out.println("New switch time: " + noteSleepLength);
+		noteSleepLength = getSwitchLength(tempo, tempoMultiplier);
+		if (Log.isDebug()) Log.debug("New switch time: " + noteSleepLength);
+		
+		// Let a running play loop continue from its current beat phase.
+		BeatScheduler scheduler = beatScheduler;
+		if (scheduler != null) {
+			scheduler.setTempo(tempo);
+			scheduler.setTempoMultiplier(tempoMultiplier);
+		}
 	}
 }
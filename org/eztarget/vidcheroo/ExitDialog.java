@@ -91,7 +91,7 @@ public class ExitDialog extends JDialog{
 		if (value == JOptionPane.YES_OPTION) {
 			Engine.shutdown();
 		} else if (value == JOptionPane.NO_OPTION) {
-			System.out.println("Only closing exit dialog. Application stays alive.");
+			Log.info("Only closing exit dialog. Application stays alive.");
 		}
 	}
 }
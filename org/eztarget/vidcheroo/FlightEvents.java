@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events of Vidcheroo.
+ * This is the only class that uses the jdk.jfr API; it is only loaded by Telemetry if the JDK has it.
+ * No event is allocated while no recording has enabled its type.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+class FlightEvents {
+
+	/**
+	 * A media output showed its next file; the duration is the play call.
+	 */
+	@Name("org.eztarget.vidcheroo.Cut")
+	@Label("Cut")
+	@Category("Vidcheroo")
+	@Description("A media output showed its next file")
+	static class CutEvent extends Event {
+
+		@Label("Output")
+		int output;
+
+		@Label("Path")
+		String path;
+
+		@Label("In Point")
+		@Description("Position in ms at which the file starts")
+		long inPoint;
+
+		@Label("Latency")
+		@Description("Time from the beat or clock tick to the play call; -1 for manual cuts")
+		@Timespan(Timespan.NANOSECONDS)
+		long latency;
+
+		@Label("Forced")
+		@Description("The cut happened before the next beat because the clip was ending")
+		boolean isForced;
+	}
+
+	/**
+	 * A media file was probed for its length and keyframes.
+	 */
+	@Name("org.eztarget.vidcheroo.FileProbe")
+	@Label("File Probe")
+	@Category("Vidcheroo")
+	@Description("A media file was probed for its length and keyframes")
+	static class FileProbeEvent extends Event {
+
+		@Label("Path")
+		String path;
+
+		@Label("Length")
+		@Description("Length in ms; negative if the file could not be analysed")
+		long length;
+
+		@Label("Keyframes")
+		int keyframeCount;
+	}
+
+	/**
+	 * The beat detector analysed one block of audio input.
+	 */
+	@Name("org.eztarget.vidcheroo.DetectorFrame")
+	@Label("Detector Frame")
+	@Category("Vidcheroo")
+	@Description("The beat detector analysed one block of audio input")
+	static class DetectorFrameEvent extends Event {
+
+		@Label("Bytes")
+		int length;
+
+		@Label("Level")
+		int rmsLevel;
+
+		@Label("Tempo Confirmed")
+		boolean didConfirmTempo;
+
+		@Label("Tempo")
+		float tempo;
+	}
+
+	/**
+	 * Event type switches; they are checked before allocating an event
+	 */
+	private static final CutEvent CUT_PROTOTYPE = new CutEvent();
+	private static final FileProbeEvent FILE_PROBE_PROTOTYPE = new FileProbeEvent();
+	private static final DetectorFrameEvent DETECTOR_FRAME_PROTOTYPE = new DetectorFrameEvent();
+
+	/**
+	 * @return Started event; null if no recording has enabled cut events
+	 */
+	static Object beginCut() {
+		if (!CUT_PROTOTYPE.isEnabled()) return null;
+		CutEvent event = new CutEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param handle Started event
+	 * @param output Number of the output
+	 * @param path Shown file
+	 * @param startTime Position in ms at which the file starts
+	 * @param latency Time in ns from the beat or clock tick to the play call; -1 for manual cuts
+	 * @param isForced True, if the clip was ending
+	 */
+	static void endCut(Object handle, int output, String path, long startTime, long latency, boolean isForced) {
+		CutEvent event = (CutEvent) handle;
+		event.end();
+		if (!event.shouldCommit()) return;
+		event.output = output;
+		event.path = path;
+		event.inPoint = startTime;
+		event.latency = latency;
+		event.isForced = isForced;
+		event.commit();
+	}
+
+	/**
+	 * @return Started event; null if no recording has enabled file probe events
+	 */
+	static Object beginFileProbe() {
+		if (!FILE_PROBE_PROTOTYPE.isEnabled()) return null;
+		FileProbeEvent event = new FileProbeEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param handle Started event
+	 * @param path Probed file
+	 * @param length Length in ms
+	 * @param keyframeCount Number of found keyframes
+	 */
+	static void endFileProbe(Object handle, String path, long length, int keyframeCount) {
+		FileProbeEvent event = (FileProbeEvent) handle;
+		event.end();
+		if (!event.shouldCommit()) return;
+		event.path = path;
+		event.length = length;
+		event.keyframeCount = keyframeCount;
+		event.commit();
+	}
+
+	/**
+	 * @return Started event; null if no recording has enabled detector frame events
+	 */
+	static Object beginDetectorFrame() {
+		if (!DETECTOR_FRAME_PROTOTYPE.isEnabled()) return null;
+		DetectorFrameEvent event = new DetectorFrameEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param handle Started event
+	 * @param length Number of analysed bytes
+	 * @param rmsLevel Input level of the block
+	 * @param didConfirmTempo True, if the block confirmed a tempo
+	 * @param tempo Tempo of the onset detector in BPM
+	 */
+	static void endDetectorFrame(Object handle, int length, int rmsLevel, boolean didConfirmTempo, float tempo) {
+		DetectorFrameEvent event = (DetectorFrameEvent) handle;
+		event.end();
+		if (!event.shouldCommit()) return;
+		event.length = length;
+		event.rmsLevel = rmsLevel;
+		event.didConfirmTempo = didConfirmTempo;
+		event.tempo = tempo;
+		event.commit();
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latency values in ns.
+ * Like an HDR histogram, every power of two is split into a fixed number of linear sub-buckets,
+ * so that every recorded value keeps a relative precision of about 3%.
+ * Recording only increments atomic counters and never allocates.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Number of bits that are used for the linear sub-buckets
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/**
+	 * Number of linear sub-buckets per power of two
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Number of buckets that are needed to cover all positive long values
+	 */
+	private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	/**
+	 * Name that is used in reports
+	 */
+	private final String name;
+
+	/**
+	 * Number of recorded values per bucket
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+	/**
+	 * Number of all recorded values
+	 */
+	private final AtomicLong totalCount = new AtomicLong();
+
+	/**
+	 * Sum of all recorded values
+	 */
+	private final AtomicLong totalSum = new AtomicLong();
+
+	/**
+	 * Highest recorded value
+	 */
+	private final AtomicLong maxValue = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param name Name that is used in reports
+	 */
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param value Non-negative value
+	 * @return Index of the bucket containing the value
+	 */
+	private static int getBucketIndex(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * @param index Bucket index
+	 * @return Highest value that is counted in the bucket
+	 */
+	private static long getBucketHighestValue(int index) {
+		if (index < SUB_BUCKETS) return index;
+
+		int shift = (index >>> SUB_BUCKET_BITS) - 1;
+		long subBucket = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * Counts a value. Can be called from any thread.
+	 * @param value Latency in ns; negative values are counted as 0
+	 */
+	public void record(long value) {
+		if (value < 0l) value = 0l;
+
+		counts.incrementAndGet(getBucketIndex(value));
+		totalCount.incrementAndGet();
+		totalSum.addAndGet(value);
+
+		long currentMax;
+		while (value > (currentMax = maxValue.get())) {
+			if (maxValue.compareAndSet(currentMax, value)) break;
+		}
+	}
+
+	/**
+	 * @param percentile Value between 0 and 100
+	 * @return Value in ns that is higher than or equal to the given percentage of all recorded values
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = totalCount.get();
+		if (count == 0l) return 0l;
+
+		long targetCount = (long) Math.ceil(count * percentile / 100d);
+		if (targetCount < 1l) targetCount = 1l;
+
+		long cumulativeCount = 0l;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			cumulativeCount += counts.get(i);
+			if (cumulativeCount >= targetCount) return Math.min(getBucketHighestValue(i), maxValue.get());
+		}
+		return maxValue.get();
+	}
+
+	/**
+	 * @return Number of recorded values
+	 */
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * @return Highest recorded value in ns
+	 */
+	public long getMax() {
+		return maxValue.get();
+	}
+
+	/**
+	 * @return Average of all recorded values in ns
+	 */
+	public long getMean() {
+		long count = totalCount.get();
+		if (count == 0l) return 0l;
+		return totalSum.get() / count;
+	}
+
+	/**
+	 * @return Name that is used in reports
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return One line containing the name, count, p50, p99 and max in ms
+	 */
+	public String getSummary() {
+		return String.format(
+				"%s: n=%d p50=%.1fms p99=%.1fms max=%.1fms",
+				name,
+				getCount(),
+				getValueAtPercentile(50d) / 1e6d,
+				getValueAtPercentile(99d) / 1e6d,
+				getMax() / 1e6d
+				);
+	}
+}
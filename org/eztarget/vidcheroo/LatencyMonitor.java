@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+/**
+ * Collects the latency of every switch in three steps:
+ * from the scheduled beat to the player call, from the player call to the VLC "playing" event
+ * and from the "playing" event to the first time update of the new media, i.e. its first displayed frame.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class LatencyMonitor {
+
+	/**
+	 * Scheduled beat time to the call that starts the next media file
+	 */
+	public static final LatencyHistogram BEAT_TO_CALL = new LatencyHistogram("Beat to call");
+
+	/**
+	 * Arrival of a MIDI clock tick to the call that starts the next media file
+	 */
+	public static final LatencyHistogram TICK_TO_CALL = new LatencyHistogram("Tick to call");
+
+	/**
+	 * Call that starts the next media file to the VLC "playing" event
+	 */
+	public static final LatencyHistogram CALL_TO_PLAYING = new LatencyHistogram("Call to playing");
+
+	/**
+	 * VLC "playing" event to the first new frame
+	 */
+	public static final LatencyHistogram PLAYING_TO_FRAME = new LatencyHistogram("Playing to frame");
+
+	/**
+	 * @return Short summary of all steps, one line per step
+	 */
+	public static String getSummary() {
+		return BEAT_TO_CALL.getSummary() + "\n"
+				+ TICK_TO_CALL.getSummary() + "\n"
+				+ CALL_TO_PLAYING.getSummary() + "\n"
+				+ PLAYING_TO_FRAME.getSummary();
+	}
+
+	/**
+	 * Prints the summary of all steps.
+	 */
+	public static void printReport() {
+		Log.info("Switch latency:");
+		Log.info(getSummary());
+	}
+}
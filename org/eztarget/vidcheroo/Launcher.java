@@ -16,6 +16,8 @@
 
 package org.eztarget.vidcheroo;
 
+import java.io.File;
+
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
@@ -36,11 +38,11 @@ public class Launcher {
 	/**
 	 * MAIN METHOD
 	 * 
-	 * @param args Program arguments
+	 * @param args Program arguments; --replay followed by a session journal replays that session on play
 	 */
 	public static void main(String[] args) {
 		String osNameProperty = System.getProperty("os.name");
-		System.out.println("OS Name: " + osNameProperty);
+		Log.info("OS Name: " + osNameProperty);
 		if (osNameProperty.contains("Mac")) {
 			Engine.setOs(SupportedOperatingSystems.OSX);
 		    System.setProperty("com.apple.mrj.application.apple.menu.about.name", "Vidcheroo");
@@ -49,30 +51,48 @@ public class Launcher {
 		} else if (osNameProperty.contains("Windows")) {
 			Engine.setOs(SupportedOperatingSystems.WIN);
 		} else {
-			System.err.println("WARNING: OS unknown: " + osNameProperty);
+			Log.warning("OS unknown: " + osNameProperty);
 		}
 		
 		// Set System L&F.
 		try {
 			UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
 		} catch (UnsupportedLookAndFeelException e) {
-			System.err.println("ERROR: Unspported L&F:" + UIManager.getSystemLookAndFeelClassName());
+			Log.error("Unspported L&F:" + UIManager.getSystemLookAndFeelClassName());
 		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
+			Log.error("Could not load the system L&F.", e);
 		} catch (InstantiationException e) {
-			e.printStackTrace();
+			Log.error("Could not load the system L&F.", e);
 		} catch (IllegalAccessException e) {
-			e.printStackTrace();
+			Log.error("Could not load the system L&F.", e);
 		}
 		
 		// Initialise the configuration.
 		ConfigurationHandler.getInstance();
 		
+		// Expose live counters to JMX clients.
+		Telemetry.register();
+		
+		// Replay a recorded session or record this one.
+		if (args.length >= 2 && args[0].equals("--replay")) {
+			Engine.setReplayJournal(new File(args[1]));
+		} else if (ConfigurationHandler.isRecordingJournal()) {
+			SessionJournal.start(ConfigurationHandler.newJournalFile(), ConfigurationHandler.getRandomSeed());
+		}
+		
+		// Follow the clock of a mixer or DJ software instead of the own tempo.
+		if (ConfigurationHandler.getMidiClockInput() != null) MidiClock.start(ConfigurationHandler.getMidiClockInput());
+		
+		// Accept remote control, e.g. from a lighting desk.
+		if (ConfigurationHandler.getOscPort() > 0) {
+			OscServer.start(ConfigurationHandler.getOscHost(), ConfigurationHandler.getOscPort());
+		}
+		
 		// The GUI is running in its own thread.
 		javax.swing.SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				
-				System.out.println("Starting Vidcheroo GUI.");
+				Log.info("Starting Vidcheroo GUI.");
 				ControlFrame controlFrame = new ControlFrame();
 
 				Engine.setControlFrame(controlFrame);
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.io.PrintStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous console log with levels.
+ * Callers put preformatted records into a preallocated ring and return right away;
+ * a background thread writes them to standard output, warnings and errors to standard error.
+ * Any number of threads may log at the same time; if the ring is full, records are dropped and counted.
+ * Code on the beat thread only logs at DEBUG and checks isDebug() first, so that nothing is formatted otherwise.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class Log {
+
+	/**
+	 * Level: Details of every cut and skip; formatted on the hot path, so only for debugging
+	 */
+	public static final int DEBUG = 0;
+
+	/**
+	 * Level: Status changes and settings
+	 */
+	public static final int INFO = 1;
+
+	/**
+	 * Level: Problems that Vidcheroo works around
+	 */
+	public static final int WARNING = 2;
+
+	/**
+	 * Level: Problems that stop a feature from working
+	 */
+	public static final int ERROR = 3;
+
+	/**
+	 * Names of the levels, as used in the configuration
+	 */
+	private static final String[] LEVEL_NAMES = {"debug", "info", "warning", "error"};
+
+	/**
+	 * Number of records that can wait for the writer thread; a power of 2
+	 */
+	private static final int CAPACITY = 4096;
+
+	/**
+	 * Time in ns that the writer thread sleeps when the ring is empty
+	 */
+	private static final long WRITE_INTERVAL = 10000000l;
+
+	/**
+	 * Longest time in ms that flush() waits for the writer thread
+	 */
+	private static final long FLUSH_TIMEOUT = 1000l;
+
+	/**
+	 * Lowest level that is logged
+	 */
+	private static volatile int level = INFO;
+
+	/**
+	 * Sequence numbers of the ring slots
+	 */
+	private static final SlotRing ring = new SlotRing(CAPACITY);
+
+	/**
+	 * Ring slots: record level
+	 */
+	private static final int[] levels = new int[CAPACITY];
+
+	/**
+	 * Ring slots: preformatted record text
+	 */
+	private static final String[] messages = new String[CAPACITY];
+
+	/**
+	 * Ring slots: exception whose stack trace follows the record; usually null
+	 */
+	private static final Throwable[] throwables = new Throwable[CAPACITY];
+
+	/**
+	 * Number of dropped records that have been reported
+	 */
+	private static long reportedDroppedCount = 0l;
+
+	/**
+	 * Thread that writes the records; started with the first record
+	 */
+	private static volatile Thread writerThread = null;
+
+	/**
+	 * @param level Lowest level that is logged, one of the level constants
+	 */
+	public static void setLevel(int level) {
+		Log.level = Math.max(DEBUG, Math.min(ERROR, level));
+	}
+
+	/**
+	 * @return Lowest level that is logged
+	 */
+	public static int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param name Level name, e.g. "debug"; case-insensitive
+	 * @param defaultLevel Returned for unknown names
+	 * @return Level constant
+	 */
+	public static int parseLevel(String name, int defaultLevel) {
+		for (int i = 0; i < LEVEL_NAMES.length; i++) {
+			if (LEVEL_NAMES[i].equalsIgnoreCase(name.trim())) return i;
+		}
+		return defaultLevel;
+	}
+
+	/**
+	 * @param level Level constant
+	 * @return Level name
+	 */
+	public static String getLevelName(int level) {
+		return LEVEL_NAMES[level];
+	}
+
+	/**
+	 * Checked before formatting a record on the hot path.
+	 * @return True, if DEBUG records are logged
+	 */
+	public static boolean isDebug() {
+		return level == DEBUG;
+	}
+
+	/**
+	 * @param message Preformatted record
+	 */
+	public static void debug(String message) {
+		log(DEBUG, message, null);
+	}
+
+	/**
+	 * @param message Preformatted record
+	 */
+	public static void info(String message) {
+		log(INFO, message, null);
+	}
+
+	/**
+	 * @param message Preformatted record; written with a "WARNING: " prefix
+	 */
+	public static void warning(String message) {
+		log(WARNING, message, null);
+	}
+
+	/**
+	 * @param message Preformatted record; written with a "WARNING: " prefix
+	 * @param throwable Exception whose stack trace is written after the record
+	 */
+	public static void warning(String message, Throwable throwable) {
+		log(WARNING, message, throwable);
+	}
+
+	/**
+	 * @param message Preformatted record; written with an "ERROR: " prefix
+	 */
+	public static void error(String message) {
+		log(ERROR, message, null);
+	}
+
+	/**
+	 * @param message Preformatted record; written with an "ERROR: " prefix
+	 * @param throwable Exception whose stack trace is written after the record
+	 */
+	public static void error(String message, Throwable throwable) {
+		log(ERROR, message, throwable);
+	}
+
+	/**
+	 * Claims a ring slot, fills it and publishes it to the writer thread. Never blocks.
+	 * @param recordLevel Level constant
+	 * @param message Preformatted record
+	 * @param throwable Exception whose stack trace is written after the record; may be null
+	 */
+	public static void log(int recordLevel, String message, Throwable throwable) {
+		if (recordLevel < level) return;
+		if (writerThread == null) startWriterThread();
+
+		int slot = ring.claim();
+		if (slot < 0) return;
+
+		levels[slot] = recordLevel;
+		messages[slot] = message;
+		throwables[slot] = throwable;
+		ring.publish(slot);
+	}
+
+	/**
+	 * Starts the writer thread once.
+	 */
+	private static synchronized void startWriterThread() {
+		if (writerThread != null) return;
+
+		Thread thread = new Thread("Vidcheroo Log") {
+			public void run() {
+				while (true) {
+					if (!write()) LockSupport.parkNanos(WRITE_INTERVAL);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		writerThread = thread;
+	}
+
+	/**
+	 * Writes all published records. Only called by the writer thread.
+	 * The streams are looked up for every batch, so that redirecting System.out also redirects the log.
+	 * @return True, if at least one record has been written
+	 */
+	private static boolean write() {
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		boolean didWrite = false;
+
+		while (true) {
+			int slot = ring.peek();
+			if (slot < 0) break;
+
+			int recordLevel = levels[slot];
+			String message = messages[slot];
+			Throwable throwable = throwables[slot];
+			messages[slot] = null;
+			throwables[slot] = null;
+			ring.release();
+
+			if (recordLevel == ERROR) err.println("ERROR: " + message);
+			else if (recordLevel == WARNING) err.println("WARNING: " + message);
+			else out.println(message);
+			if (throwable != null) throwable.printStackTrace(err);
+			didWrite = true;
+		}
+
+		long dropped = ring.getDroppedCount();
+		if (dropped != reportedDroppedCount) {
+			err.println("WARNING: Dropped " + (dropped - reportedDroppedCount) + " log records.");
+			reportedDroppedCount = dropped;
+		}
+
+		if (didWrite) {
+			out.flush();
+			err.flush();
+		}
+		return didWrite;
+	}
+
+	/**
+	 * Waits until the writer thread has written all records that have been logged so far, e.g. before exiting.
+	 */
+	public static void flush() {
+		Thread thread = writerThread;
+		if (thread == null) return;
+
+		long target = ring.getClaimCount();
+		if (target == 0l) return;
+
+		long timeout = System.currentTimeMillis() + FLUSH_TIMEOUT;
+		while (!ring.isReleased(target - 1) && System.currentTimeMillis() < timeout) {
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(1000000l);
+		}
+	}
+
+	/**
+	 * @return Number of records that were dropped because the ring was full
+	 */
+	public static long getDroppedCount() {
+		return ring.getDroppedCount();
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import uk.co.caprica.vlcj.player.MediaMeta;
+import uk.co.caprica.vlcj.player.MediaPlayerFactory;
+import uk.co.caprica.vlcj.player.headless.HeadlessMediaPlayer;
+
+/**
+ * Window-less VLC player that is only used for determining the length of media files.
+ * Every instance owns its own native player, so that several analysers can work in parallel.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class MediaAnalyser {
+
+	/**
+	 * VLC arguments that keep the analyser from opening any audio or video output.
+	 */
+	private static final String[] FACTORY_ARGS = {"--quiet", "--no-audio", "--vout=dummy", "--no-video-title-show"};
+
+	/**
+	 * VLC factory that belongs to this analyser only
+	 */
+	private MediaPlayerFactory mediaPlayerFactory;
+
+	/**
+	 * Player without a video surface
+	 */
+	private HeadlessMediaPlayer mediaPlayer;
+
+	/**
+	 * Constructor
+	 * Initialises a new native media player.
+	 */
+	public MediaAnalyser() {
+		mediaPlayerFactory = new MediaPlayerFactory(FACTORY_ARGS);
+		mediaPlayer = mediaPlayerFactory.newHeadlessMediaPlayer();
+	}
+
+	/**
+	 * Parses a media file without playing it.
+	 * Only if the meta data does not contain a length, the file will shortly be played.
+	 * @param mediaFilePath Absolute path to the file that is to be analysed.
+	 * @return The length in ms (or error code value) of the media file.
+	 */
+	public long getMediaLength(String mediaFilePath) {
+		mediaPlayer.prepareMedia(mediaFilePath);
+		mediaPlayer.parseMedia();
+
+		MediaMeta mediaMeta = mediaPlayer.getMediaMeta();
+		long length = mediaMeta.getLength();
+		mediaMeta.release();
+
+		// Some containers only reveal their length once they are opened by the demuxer.
+		if (length <= 0) {
+			mediaPlayer.playMedia(mediaFilePath);
+			mediaPlayer.parseMedia();
+			mediaMeta = mediaPlayer.getMediaMeta();
+			length = mediaMeta.getLength();
+			mediaMeta.release();
+			mediaPlayer.stop();
+		}
+
+		if (length <= 0) {
+			Log.warning(mediaFilePath + " is not a valid video file.");
+			length = MediaFile.NOT_VIDEO_FILE;
+		} else {
+			Log.info(mediaFilePath + " " + length);
+		}
+
+		return length;
+	}
+
+	/**
+	 * Frees the native player and factory.
+	 * This analyser cannot be used afterwards.
+	 */
+	public void release() {
+		if (mediaPlayer != null) {
+			mediaPlayer.release();
+			mediaPlayer = null;
+		}
+
+		if (mediaPlayerFactory != null) {
+			mediaPlayerFactory.release();
+			mediaPlayerFactory = null;
+		}
+	}
+}
@@ -51,4 +51,25 @@ public class MediaFile {
 	 * Length of this media file in milliseconds.
 	 */
 	public long length;
+	
+	/**
+	 * Size of this file in bytes at the time of the analysis
+	 */
+	public long fileSize = NOT_PARSED;
+	
+	/**
+	 * Modification time stamp of this file at the time of the analysis
+	 */
+	public long lastModified = NOT_PARSED;
+	
+	/**
+	 * Ascending times in ms of the keyframes, at which playback can start without decoding ahead;
+	 * null if the container has no keyframe index or every frame is a keyframe
+	 */
+	public long[] keyframeTimes = null;
+	
+	/**
+	 * Number of times this file has been chosen for playback in this session
+	 */
+	public int playCount = 0;
 }
@@ -18,13 +18,19 @@ package org.eztarget.vidcheroo;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Singleton class that parses, stores and restores all available media files of a Vidcheroo session.
@@ -41,7 +47,7 @@ public class MediaFileParser {
 	/**
 	 * All files that have been analysed and are ready to be loaded into the media player
 	 */
-	private static ArrayList<MediaFile> mediaFiles = new ArrayList<MediaFile>();
+	private static volatile List<MediaFile> mediaFiles = new ArrayList<MediaFile>();
 	
 	/**
 	 * Constructor
@@ -55,10 +61,21 @@ public class MediaFileParser {
 	}
 	
 	/**
-	 * File containing meta data properties
+	 * Binary media index file containing the analysis results
+	 */
+	private static final String INDEX_FILE_NAME = ".durations.vchi";
+	
+	/**
+	 * File containing meta data properties;
+	 * only read for migrating to the binary media index
 	 */
 	private static final String PROPERTY_FILE_NAME = ".durations.vch";
 	
+	/**
+	 * Separates length, file size and modification time in the values of the properties file
+	 */
+	private static final String PROPERTY_VALUE_SEPARATOR = ",";
+	
 	/**
 	 * DEBUG: Disables parsing
 	 */
@@ -82,35 +99,41 @@ public class MediaFileParser {
 		".mp3", ".m4a", ".wav", ".aif", ".aiff", ".ogg", ".flac", ".mp2", ".cda", ".mod", ".xm", ".it"
 		};
 	
+	/**
+	 * Paths of blacklisted files that have been logged, so that watch events do not repeat the warning
+	 */
+	private static final Set<String> ignoredPaths = Collections.synchronizedSet(new HashSet<String>());
+	
 	private static String mediaPath;
 	
 	/**
 	 * Opens all media files in a given directory
-	 * and stores their file name and length in a properties file in the same folder.
+	 * and stores their file name, length, size and modification time in a media index file in the same folder.
 	 * 
 	 * @param mediaPath Absolute directory path, may be null for updating previously parsed path
-	 * @param ignoreAnalysisFile Ignore existing properties files and parse all files in the folder.
+	 * @param refreshAnalysisFile Compare an existing media index file with the folder;
+	 * only new or changed files are analysed again, deleted files are dropped.
 	 */
-	public static void parseMediaPath(String mediaPath, boolean ignoreAnalysisFile) {
+	public static void parseMediaPath(String mediaPath, boolean refreshAnalysisFile) {
 		if (Engine.hasFoundVlc() == false) {
 			return;
 		}
 		
 		// mediaPath parameter may be null, if a previously set media path should be used.
 		if (mediaPath != null) {
-			System.out.println("Changing media path to " + mediaPath + ".");
+			Log.info("Changing media path to " + mediaPath + ".");
 			MediaFileParser.mediaPath = mediaPath;
 		} 
 		
 		if (MediaFileParser.mediaPath == null) {
-			System.err.println("ERROR: Media path has not been set.");
+			Log.error("Media path has not been set.");
 			return;
 		}
 		
 		// The mediaPath parameter has to be set by now,
 		// otherwise this method cannot continue.
 		if (MediaFileParser.mediaPath == null) {
-			System.err.println("ERROR: Media path to parse is null.");
+			Log.error("Media path to parse is null.");
 			Engine.setDidFindFeed(false);
 			return;
 		}
@@ -118,101 +141,54 @@ public class MediaFileParser {
 		Engine.setStatus(Status.PARSING);
 		
 		//final String fMediaPath = MediaFileParser.mediaPath;
-		final boolean fIgnoreAnalysisFile = ignoreAnalysisFile;
+		final boolean fRefreshAnalysisFile = refreshAnalysisFile;
 		
 		Thread parseThread = new Thread() {
 			
 			public void run() {
-				System.out.println("Looking for media files in " + MediaFileParser.mediaPath);
+				// The same directory for the whole analysis, even if the media path changes meanwhile.
+				String fMediaPath = MediaFileParser.mediaPath;
+				Log.info("Looking for media files in " + fMediaPath);
 
-				if(MediaFileParser.mediaPath.length() > 1) {
-					File fileDirectory = new File(MediaFileParser.mediaPath);
+				if(fMediaPath.length() > 1) {
+					File fileDirectory = new File(fMediaPath);
 					
 					if (fileDirectory.length() > 0) {
 						boolean isAnalysed = false;
 						
-						// If an update of files is not requested,
-						// go through all the files in this directory and see if one of them is a properties file.
-						if (!fIgnoreAnalysisFile) {
-							for (final File fileEntry : fileDirectory.listFiles()) {
-								if (fileEntry.getName().equals(PROPERTY_FILE_NAME)) {
-									System.out.println(PROPERTY_FILE_NAME + " found.");
-									restoreAnalyzationProperties(MediaFileParser.mediaPath);
-									isAnalysed = true;
-									break;
-								}
+						// Files that have been analysed before, mapped by their path.
+						HashMap<String, MediaFile> analysedFiles = new HashMap<String, MediaFile>();
+						
+						// Unless a refresh is requested, a previous analysis is used without looking at the media files.
+						if (restoreAnalysis(fMediaPath)) {
+							if (fRefreshAnalysisFile) {
+								for (MediaFile mediaFile : mediaFiles) analysedFiles.put(mediaFile.path, mediaFile);
+							} else {
+								isAnalysed = true;
 							}
 						}
 						
-						// If no properties file was found, but we have the VLC libs, run the analysis.
+						// If no previous analysis was found or a refresh was requested, but we have the VLC libs, run the analysis.
 						if (!isAnalysed && Engine.hasFoundVlc()) {
-							// Create a small media frame that is used to shortly play the files, parse them and get their length.
-							MediaFrame parseFrame;
-							parseFrame = new MediaFrame(PARSE_FRAME_WIDTH, PARSE_FRAME_HEIGHT, "Vidcheroo Analyser");
-							mediaFiles = new ArrayList<MediaFile>();
-							
-							// At the end, store the result in a properties file.
-							Properties properties = new Properties();
-							parseFrame.setVisible(true);
-							
-							// Again, go through all the files in the directory.
-							for (final File fileEntry : fileDirectory.listFiles()) {
-								// Right away ignore directories and dot files.
-								String fileName = fileEntry.getName();
-								if (!fileEntry.isDirectory() && fileName.charAt(0) != '.') {
-									
-									// Filter by file name extension.
-									boolean isBlacklisted = false;
-									for (String extension : EXTENSION_BLACKLIST) {
-										if (fileName.endsWith(extension)) {
-											System.err.println(
-													"WARNING: Ignoring file with extension '" + extension + "': " + fileName
-													);
-											isBlacklisted = true;
-											break;
-										}
-									}
-									
-									// Extension blacklist check was negative.
-									if (!isBlacklisted) {
-										String filePath = MediaFileParser.mediaPath + "/" + fileName;
-										//TODO: Only load possible media files.
-										MediaFile file = new MediaFile();
-										file.path = filePath;
-										
-										if (PARSE_FILES) {
-											file.length = parseFrame.getMediaLength(filePath);
-										} else {
-											file.length = MediaFile.NOT_PARSED;
-										}
-										
-										file.id = mediaFiles.size();
-										mediaFiles.add(file);
-										properties.setProperty(file.path, file.length + "");
-									}
-								}
-							}
-							
-							parseFrame.setVisible(false);
-							parseFrame.removeAll();
-							parseFrame.dispose();
-							parseFrame = null;
-							
-							storeProperties(properties, MediaFileParser.mediaPath);
+							analyseMediaFiles(fMediaPath, analysedFiles);
 						}
 					}
 				}
 				
 				// Enable the Engine by setting the resulting status.
-				System.out.println("Number of found files: " + mediaFiles.size());
+				Log.info("Number of found files: " + mediaFiles.size());
 				if (mediaFiles.size() > 1) {
 					Engine.setDidFindFeed(true);
-					Engine.setStatus(Status.READY);
+					// Streamed files may already have made the Engine ready or even playing.
+					Engine.compareAndSetStatus(Status.PARSING, Status.READY);
 				} else {
 					Engine.setDidFindFeed(false);
 					Engine.setStatus(Status.NOTREADY);
 				}
 				
+				// From now on, keep the list up to date with files that are added, changed or deleted.
+				if (ConfigurationHandler.isWatchingMediaPath()) MediaPathWatcher.watch(fMediaPath);
+				
 			}
 
 
@@ -222,22 +198,511 @@ public class MediaFileParser {
 		parseThread.start();
 	}
 	
+	/**
+	 * Analyses all media files in a directory that have not been analysed before or that have changed since,
+	 * replaces the list of media files and stores the result.
+	 * While the analysis is running, finished files are published for playback.
+	 * 
+	 * @param directoryPath Absolute path to the media directory
+	 * @param analysedFiles Previous analysis results mapped by path; may be empty
+	 */
+	private static void analyseMediaFiles(String directoryPath, HashMap<String, MediaFile> analysedFiles) {
+		String[] filePaths = findMediaFilePaths(directoryPath);
+		
+		MediaFile[] files = new MediaFile[filePaths.length];
+		ArrayList<MediaFile> unanalysedFiles = new ArrayList<MediaFile>();
+		
+		startStreaming(filePaths.length);
+		
+		// Re-use results of files whose size and modification time have not changed.
+		for (int i = 0; i < filePaths.length; i++) {
+			File fileEntry = new File(filePaths[i]);
+			MediaFile file = new MediaFile();
+			file.path = filePaths[i];
+			file.fileSize = fileEntry.length();
+			file.lastModified = fileEntry.lastModified();
+			
+			MediaFile analysedFile = analysedFiles.get(file.path);
+			if (analysedFile != null
+					&& analysedFile.fileSize == file.fileSize
+					&& analysedFile.lastModified == file.lastModified) {
+				file.length = analysedFile.length;
+				file.keyframeTimes = analysedFile.keyframeTimes;
+				publishAnalysedFile(file);
+			} else {
+				unanalysedFiles.add(file);
+			}
+			files[i] = file;
+		}
+		
+		Log.info(
+				"Re-using " + (filePaths.length - unanalysedFiles.size()) + " analysed files, analysing "
+				+ unanalysedFiles.size() + " new or changed files."
+				);
+		
+		MediaFile[] unanalysedFileArray = unanalysedFiles.toArray(new MediaFile[unanalysedFiles.size()]);
+		if (!PARSE_FILES) {
+			for (MediaFile file : unanalysedFileArray) file.length = MediaFile.NOT_PARSED;
+		} else if (unanalysedFileArray.length == 0) {
+			Log.info("All files have been analysed before.");
+		} else if (ConfigurationHandler.getAnalyserThreads() > 1) {
+			analyseParallel(unanalysedFileArray, ConfigurationHandler.getAnalyserThreads());
+		} else {
+			analyseSerial(unanalysedFileArray);
+		}
+		
+		ArrayList<MediaFile> analysedList = new ArrayList<MediaFile>(files.length);
+		
+		// Merge the results in the sorted order of the paths, regardless of which analyser finished first.
+		// Files that have been deleted are not in this list anymore and are dropped.
+		for (MediaFile file : files) {
+			file.id = analysedList.size();
+			analysedList.add(file);
+		}
+		mediaFiles = analysedList;
+		stopStreaming();
+		
+		// At the end, store the result in a media index file.
+		storeMediaIndex(directoryPath);
+	}
+	
+	/**
+	 * Goes through all the files in a directory and filters possible video files.
+	 * 
+	 * @param directoryPath Absolute path to the media directory
+	 * @return Absolute paths of all files that are to be analysed, sorted by name
+	 */
+	private static String[] findMediaFilePaths(String directoryPath) {
+		ArrayList<String> filePaths = new ArrayList<String>();
+		
+		for (final File fileEntry : new File(directoryPath).listFiles()) {
+			//TODO: Only load possible media files.
+			if (isMediaFile(fileEntry)) filePaths.add(directoryPath + "/" + fileEntry.getName());
+		}
+		
+		// File.listFiles() does not guarantee any order.
+		String[] filePathArray = filePaths.toArray(new String[filePaths.size()]);
+		Arrays.sort(filePathArray);
+		return filePathArray;
+	}
+	
+	/**
+	 * Ignores directories, dot files and files with a blacklisted extension.
+	 * 
+	 * @param fileEntry File in the media directory
+	 * @return True, if the file might be a video file
+	 */
+	private static boolean isMediaFile(File fileEntry) {
+		// Right away ignore directories and dot files.
+		String fileName = fileEntry.getName();
+		if (fileEntry.isDirectory() || fileName.charAt(0) == '.') return false;
+		
+		// Filter by file name extension.
+		for (String extension : EXTENSION_BLACKLIST) {
+			if (fileName.endsWith(extension)) {
+				if (ignoredPaths.add(fileEntry.getPath())) {
+					Log.warning("Ignoring file with extension '" + extension + "': " + fileName);
+				}
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Updates single media files of the current media path while the Engine may be playing.
+	 * New and changed files are analysed with a headless analyser, deleted files are removed.
+	 * The list of media files is replaced at once, so that playback is not interrupted.
+	 * 
+	 * @param fileNames Names of the files in the media directory that have been created, modified or deleted
+	 * @param rescan Compare all files in the media directory, e.g. if single changes have been lost
+	 * @return False, if the update could not be done because another analysis or update is running
+	 */
+	public static boolean updateMediaFiles(Set<String> fileNames, boolean rescan) {
+		synchronized (STREAMING_LOCK) {
+			if (streamingFiles != null || isUpdating) return false;
+			isUpdating = true;
+		}
+		
+		try {
+			return updateMediaFilesExclusively(fileNames, rescan);
+		} finally {
+			synchronized (STREAMING_LOCK) {
+				isUpdating = false;
+				STREAMING_LOCK.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Does the work of updateMediaFiles(); no analysis runs at the same time.
+	 * 
+	 * @param fileNames Names of the files in the media directory that have been created, modified or deleted
+	 * @param rescan Compare all files in the media directory
+	 * @return True
+	 */
+	private static boolean updateMediaFilesExclusively(Set<String> fileNames, boolean rescan) {
+		String fMediaPath = MediaFileParser.mediaPath;
+		if (fMediaPath == null) return true;
+		
+		// All paths that have to be compared with the current list.
+		HashSet<String> changedPaths = new HashSet<String>();
+		for (String fileName : fileNames) changedPaths.add(fMediaPath + "/" + fileName);
+		
+		List<MediaFile> currentFiles = mediaFiles;
+		HashMap<String, MediaFile> currentFilesByPath = new HashMap<String, MediaFile>();
+		for (MediaFile mediaFile : currentFiles) {
+			currentFilesByPath.put(mediaFile.path, mediaFile);
+			if (rescan) changedPaths.add(mediaFile.path);
+		}
+		if (rescan) changedPaths.addAll(Arrays.asList(findMediaFilePaths(fMediaPath)));
+		
+		ArrayList<MediaFile> unanalysedFiles = new ArrayList<MediaFile>();
+		HashSet<String> removedPaths = new HashSet<String>();
+		int deletedCount = 0;
+		
+		for (String path : changedPaths) {
+			File fileEntry = new File(path);
+			MediaFile currentFile = currentFilesByPath.get(path);
+			
+			if (!fileEntry.isFile() || !isMediaFile(fileEntry)) {
+				if (currentFile != null) {
+					removedPaths.add(path);
+					deletedCount++;
+				}
+				continue;
+			}
+			
+			// Modification events are also sent for files that did not really change.
+			if (currentFile != null
+					&& currentFile.fileSize == fileEntry.length()
+					&& currentFile.lastModified == fileEntry.lastModified()) {
+				continue;
+			}
+			
+			MediaFile file = new MediaFile();
+			file.path = path;
+			file.fileSize = fileEntry.length();
+			file.lastModified = fileEntry.lastModified();
+			unanalysedFiles.add(file);
+			if (currentFile != null) removedPaths.add(path);
+		}
+		
+		if (unanalysedFiles.isEmpty() && removedPaths.isEmpty()) return true;
+		
+		Log.info(
+				"Media path changed: analysing " + unanalysedFiles.size() + " new or changed files, removing "
+				+ deletedCount + " deleted files."
+				);
+		
+		MediaFile[] unanalysedFileArray = unanalysedFiles.toArray(new MediaFile[unanalysedFiles.size()]);
+		if (unanalysedFileArray.length > 0) {
+			analyseParallel(unanalysedFileArray, Math.max(1, ConfigurationHandler.getAnalyserThreads()));
+		}
+		
+		// Build the new list in path order and swap it in.
+		ArrayList<MediaFile> updatedFiles = new ArrayList<MediaFile>(currentFiles.size() + unanalysedFileArray.length);
+		for (MediaFile mediaFile : currentFiles) {
+			if (!removedPaths.contains(mediaFile.path)) updatedFiles.add(mediaFile);
+		}
+		updatedFiles.addAll(unanalysedFiles);
+		Collections.sort(updatedFiles, new Comparator<MediaFile>() {
+			public int compare(MediaFile file1, MediaFile file2) {
+				return file1.path.compareTo(file2.path);
+			}
+		});
+		for (int i = 0; i < updatedFiles.size(); i++) updatedFiles.get(i).id = i;
+		
+		mediaFiles = updatedFiles;
+		storeMediaIndex(fMediaPath);
+		
+		Log.info("Number of found files: " + updatedFiles.size());
+		if (updatedFiles.size() > 1 && !Engine.hasFoundFeed()) {
+			Engine.setDidFindFeed(true);
+			Engine.compareAndSetStatus(Status.NOTREADY, Status.READY);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Analyses the given files one after another.
+	 * Files whose container header cannot be read are played in a small, visible media frame.
+	 * 
+	 * @param files Media files with a path; their length and keyframe times will be set
+	 */
+	private static void analyseSerial(MediaFile[] files) {
+		// Small media frame that is used to shortly play the files, parse them and get their length;
+		// only created if a file needs it.
+		MediaFrame parseFrame = null;
+		
+		Telemetry.beginParse();
+		for (MediaFile file : files) {
+			Object probeEvent = Telemetry.beginFileProbe();
+			file.length = MediaHeaderProbe.getMediaLength(file.path);
+			if (file.length <= 0) {
+				if (parseFrame == null) {
+					parseFrame = new MediaFrame(PARSE_FRAME_WIDTH, PARSE_FRAME_HEIGHT, "Vidcheroo Analyser");
+					parseFrame.setVisible(true);
+				}
+				file.length = parseFrame.getMediaLength(file.path);
+			}
+			file.keyframeTimes = MediaHeaderProbe.getKeyframeTimes(file.path);
+			Telemetry.endFileProbe(probeEvent, file);
+			publishAnalysedFile(file);
+		}
+		
+		if (parseFrame != null) {
+			parseFrame.setVisible(false);
+			parseFrame.removeAll();
+			parseFrame.dispose();
+		}
+	}
+	
+	/**
+	 * Spreads the analysis of the given files across a pool of threads.
+	 * Each thread takes the next unanalysed file until all files are done.
+	 * Files whose container header cannot be read are passed to an independent, headless media analyser
+	 * that is owned by the thread.
+	 * 
+	 * @param files Media files with a path; their length and keyframe times will be set
+	 * @param poolSize Number of analyser threads
+	 */
+	private static void analyseParallel(final MediaFile[] files, int poolSize) {
+		for (MediaFile file : files) file.length = MediaFile.LENGTH_INDETERMINABLE;
+		
+		final AtomicInteger nextIndex = new AtomicInteger(0);
+		
+		poolSize = Math.min(poolSize, files.length);
+		Telemetry.beginParse();
+		Log.info("Analysing " + files.length + " files with " + poolSize + " analysers.");
+		
+		Thread[] analyserThreads = new Thread[poolSize];
+		for (int t = 0; t < poolSize; t++) {
+			analyserThreads[t] = new Thread("Vidcheroo Analyser " + t) {
+				public void run() {
+					MediaAnalyser analyser = null;
+					try {
+						int index;
+						while ((index = nextIndex.getAndIncrement()) < files.length) {
+							MediaFile file = files[index];
+							Object probeEvent = Telemetry.beginFileProbe();
+							file.length = MediaHeaderProbe.getMediaLength(file.path);
+							if (file.length <= 0) {
+								if (analyser == null) analyser = new MediaAnalyser();
+								file.length = analyser.getMediaLength(file.path);
+							}
+							file.keyframeTimes = MediaHeaderProbe.getKeyframeTimes(file.path);
+							Telemetry.endFileProbe(probeEvent, file);
+							publishAnalysedFile(file);
+						}
+					} catch (Exception e) {
+						Log.error("Media analyser failed.", e);
+					} finally {
+						if (analyser != null) analyser.release();
+					}
+				}
+			};
+			analyserThreads[t].start();
+		}
+		
+		// Wait for all analysers; Thread.join() also makes their results visible to this thread.
+		for (Thread analyserThread : analyserThreads) {
+			try {
+				analyserThread.join();
+			} catch (InterruptedException e) {
+				Log.warning("Interrupted while waiting for the media analysers.", e);
+			}
+		}
+	}
+	
+	/*
+	 * STREAMING DISCOVERY
+	 */
+	
+	/**
+	 * Files that have been analysed during the currently running analysis, in the order they finished;
+	 * null if no analysis is running
+	 */
+	private static volatile MediaFile[] streamingFiles = null;
+	
+	/**
+	 * Number of valid entries in streamingFiles;
+	 * written after the entry, so that readers only see complete files
+	 */
+	private static volatile int streamingFileCount = 0;
+	
+	/**
+	 * Lock for analysers that publish files at the same time;
+	 * also makes full analyses and single file updates exclusive
+	 */
+	private static final Object STREAMING_LOCK = new Object();
+	
+	/**
+	 * True while updateMediaFiles() is running; guarded by STREAMING_LOCK
+	 */
+	private static boolean isUpdating = false;
+	
+	/**
+	 * Waits for a running single file update and prepares the playable list of the upcoming analysis.
+	 * 
+	 * @param maxFileCount Number of files that may be published
+	 */
+	private static void startStreaming(int maxFileCount) {
+		synchronized (STREAMING_LOCK) {
+			boolean isInterrupted = false;
+			while (isUpdating) {
+				try {
+					STREAMING_LOCK.wait();
+				} catch (InterruptedException e) {
+					isInterrupted = true;
+				}
+			}
+			if (isInterrupted) Thread.currentThread().interrupt();
+			
+			streamingFileCount = 0;
+			streamingFiles = new MediaFile[maxFileCount];
+		}
+	}
+	
+	/**
+	 * Ends the publishing of single files.
+	 * The complete list of media files has to be set before.
+	 */
+	private static void stopStreaming() {
+		synchronized (STREAMING_LOCK) {
+			streamingFiles = null;
+			streamingFileCount = 0;
+		}
+	}
+	
+	/**
+	 * Makes an analysed video file available for playback, while the analysis is still running.
+	 * As soon as the configured minimum of files is available, the Engine becomes ready.
+	 * 
+	 * @param file Media file with a determined length
+	 */
+	private static void publishAnalysedFile(MediaFile file) {
+		if (file.length <= 0) return;
+		
+		int minFileCount = ConfigurationHandler.getStreamingMinFiles();
+		if (minFileCount <= 0) return;
+		
+		int fileCount;
+		synchronized (STREAMING_LOCK) {
+			if (streamingFiles == null) return;
+			
+			streamingFiles[streamingFileCount] = file;
+			fileCount = streamingFileCount + 1;
+			streamingFileCount = fileCount;
+		}
+		
+		if (fileCount == Math.max(minFileCount, 2)) {
+			Log.info(fileCount + " files available, starting while the analysis continues.");
+			Engine.setDidFindFeed(true);
+			Engine.compareAndSetStatus(Status.PARSING, Status.READY);
+		}
+	}
+	
+	/**
+	 * @return True, if media files are currently being analysed
+	 */
+	public static boolean isAnalysing() {
+		return streamingFiles != null;
+	}
+	
+	/**
+	 * Chooses the next media files; created with the configured selection settings
+	 */
+	private static MediaSelector mediaSelector = null;
+	
+	/**
+	 * @return Media selector with the configured selection settings
+	 */
+	static synchronized MediaSelector getMediaSelector() {
+		if (mediaSelector == null) {
+			mediaSelector = new MediaSelector(
+					ConfigurationHandler.getSelectionMode(),
+					ConfigurationHandler.getRecentWindow(),
+					ConfigurationHandler.getLookahead(),
+					ConfigurationHandler.getRandomSeed()
+					);
+			Log.info("Random seed: " + ConfigurationHandler.getRandomSeed());
+		}
+		return mediaSelector;
+	}
+	
 	/**
 	 * Requires an initialised array list of media files.
-	 * Returns a random file from the list.
+	 * Returns the next file of the media selector,
+	 * which avoids repeating files and keeps the next choices in a lookahead queue.
 	 * 
-	 * @return A random VidcherooMediaFile object
+	 * @return The next VidcherooMediaFile object; null if there are no files
 	 */
 	public static MediaFile getRandomMediaFile() {
-		if(mediaFiles.size() > 0) {
-			int randomMediaIndex = (int) (Math.random() * mediaFiles.size());
-			return mediaFiles.get(randomMediaIndex);
-		} else {
-			//TODO: Return placeholder video file.
-			return null;
+		return getRandomMediaFile(getMediaSelector());
+	}
+	
+	/**
+	 * Like getRandomMediaFile(), but with a separate media selector, e.g. of an additional output.
+	 * 
+	 * @param selector Media selector that chooses from the current files
+	 * @return The next VidcherooMediaFile object of that selector; null if there are no files
+	 */
+	public static MediaFile getRandomMediaFile(MediaSelector selector) {
+		// While an analysis is running, only choose from the files that have been published so far.
+		MediaFile[] streamingFiles = MediaFileParser.streamingFiles;
+		int streamingFileCount = MediaFileParser.streamingFileCount;
+		if (streamingFiles != null && streamingFileCount > 0) {
+			return selector.next(streamingFiles, streamingFileCount);
 		}
+		
+		//TODO: Return placeholder video file if the list is empty.
+		List<MediaFile> mediaFiles = MediaFileParser.mediaFiles;
+		return selector.next(mediaFiles, mediaFiles);
 	}
 	 
+	/**
+	 * Replaces the list of media files without analysing anything.
+	 * Only used by benchmarks.
+	 * 
+	 * @param mediaFiles Media files with consecutive IDs
+	 */
+	static void setMediaFiles(List<MediaFile> mediaFiles) {
+		MediaFileParser.mediaFiles = mediaFiles;
+	}
+	
+	/**
+	 * Reads the media files of a directory without VLC and without changing the current list, e.g. for rendering.
+	 * The media index is used if there is one; otherwise only the container headers are read and nothing is stored.
+	 * 
+	 * @param directoryPath Absolute path to the media directory
+	 * @return Media files with consecutive IDs; files without a readable header have an indeterminable length
+	 */
+	static List<MediaFile> readMediaFiles(String directoryPath) {
+		File indexFile = new File(directoryPath, INDEX_FILE_NAME);
+		if (MediaIndex.exists(indexFile)) {
+			try {
+				return MediaIndex.open(indexFile);
+			} catch (IOException e) {
+				Log.warning("Could not open " + INDEX_FILE_NAME + ": " + e.getMessage());
+			}
+		}
+		
+		String[] filePaths = findMediaFilePaths(directoryPath);
+		ArrayList<MediaFile> files = new ArrayList<MediaFile>(filePaths.length);
+		for (int i = 0; i < filePaths.length; i++) {
+			MediaFile file = new MediaFile();
+			file.id = i;
+			file.path = filePaths[i];
+			file.length = MediaHeaderProbe.getMediaLength(file.path);
+			file.keyframeTimes = MediaHeaderProbe.getKeyframeTimes(file.path);
+			files.add(file);
+		}
+		return files;
+	}
+	
 	/**
 	 * @return The number of available media files.
 	 */
@@ -247,11 +712,41 @@ public class MediaFileParser {
 	}
 	
 	/*
-	 * STORING & RESTORING ANALYSIS PROPERTIES
+	 * STORING & RESTORING ANALYSIS RESULTS
 	 */
 	
 	/**
-	 * Restores a list of VidcherooMediaFile objects by opening the properties file in the given directory.
+	 * Restores the list of media files from the media index file in the given directory.
+	 * If there is no usable index, but a properties file of an older version,
+	 * the properties file is read and converted into an index.
+	 * 
+	 * @param fMediaPath Absolute path to directory containing the index or properties file
+	 * @return True, if a previous analysis was restored
+	 */
+	private static boolean restoreAnalysis(String fMediaPath) {
+		File indexFile = new File(fMediaPath, INDEX_FILE_NAME);
+		if (MediaIndex.exists(indexFile)) {
+			try {
+				mediaFiles = MediaIndex.open(indexFile);
+				Log.info(INDEX_FILE_NAME + " found.");
+				return true;
+			} catch (IOException e) {
+				Log.warning("Could not open " + INDEX_FILE_NAME + ": " + e.getMessage());
+			}
+		}
+		
+		if (new File(fMediaPath, PROPERTY_FILE_NAME).isFile()) {
+			Log.info(PROPERTY_FILE_NAME + " found. Converting to " + INDEX_FILE_NAME + ".");
+			restoreAnalyzationProperties(fMediaPath);
+			storeMediaIndex(fMediaPath);
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Restores a list of VidcherooMediaFile objects by opening the legacy properties file in the given directory.
 	 * 
 	 * @param fMediaPath Absolute path to directory containing properties file.
 	 */
@@ -260,7 +755,7 @@ public class MediaFileParser {
 	 
 		try {
 			// (Re-)initialise the media file list.
-			mediaFiles = new ArrayList<MediaFile>();
+			ArrayList<MediaFile> restoredFiles = new ArrayList<MediaFile>();
 			
 			// Load the properties file in the given directory.
 			input = new FileInputStream(fMediaPath + "/" + PROPERTY_FILE_NAME);
@@ -277,57 +772,57 @@ public class MediaFileParser {
 				MediaFile mediaFile = new MediaFile();
 				mediaFile.id = idCounter;
 				mediaFile.path = propKey;
+				
+				// Values are stored as "length,size,modified".
+				// Files stored without size and modification time will be analysed again on the next refresh.
+				String[] propValues = propValue.split(PROPERTY_VALUE_SEPARATOR);
 				try {
-					mediaFile.length = Long.parseLong(propValue);
+					mediaFile.length = Long.parseLong(propValues[0]);
 				} catch (Exception e) {
 					mediaFile.length = MediaFile.LENGTH_INDETERMINABLE;
-					System.err.println("WARNING: Could not restore length for " + mediaFile.path + ".");
+					Log.warning("Could not restore length for " + mediaFile.path + ".");
+				}
+				if (propValues.length == 3) {
+					try {
+						mediaFile.fileSize = Long.parseLong(propValues[1]);
+						mediaFile.lastModified = Long.parseLong(propValues[2]);
+					} catch (Exception e) {
+						mediaFile.fileSize = MediaFile.NOT_PARSED;
+						mediaFile.lastModified = MediaFile.NOT_PARSED;
+					}
 				}
 				
-				mediaFiles.add(mediaFile);
+				restoredFiles.add(mediaFile);
 				
 				idCounter++;
 			}
+			mediaFiles = restoredFiles;
 		} catch (IOException ex) {
-			ex.printStackTrace();
+			Log.error("Could not read " + PROPERTY_FILE_NAME + ".", ex);
 		} finally {
 			if (input != null) {
 				try {
 					input.close();
-					System.out.println("Closed " + PROPERTY_FILE_NAME  + ".");
+					Log.info("Closed " + PROPERTY_FILE_NAME  + ".");
 				} catch (IOException e) {
-					e.printStackTrace();
+					Log.error("Could not close " + PROPERTY_FILE_NAME + ".", e);
 				}
 			}
 		}
 	}
 	
 	/**
-	 * Stores a given Properties object as a duration properties file.
+	 * Stores the current list of media files as a media index file.
 	 * 
-	 * @param properties Preferably a duration-conform Properties object
 	 * @param mediaPath Absolute path of directory in which to store the file in
 	 */
-	private static void storeProperties(Properties properties, String mediaPath) {
-		// Save the analysed properties, if at least 2 were found.
+	private static void storeMediaIndex(String mediaPath) {
+		// Save the analysis results, if at least 2 were found.
 		if (mediaFiles.size() > 1) {
-			OutputStream output = null;
-
 			try {
-				// Store the properties in the media folder.
-				output = new FileOutputStream(mediaPath + "/" + PROPERTY_FILE_NAME);
-				properties.store(output, null);
+				MediaIndex.write(new File(mediaPath, INDEX_FILE_NAME), mediaFiles);
 			} catch (IOException io) {
-				io.printStackTrace();
-			} finally {
-				if (output != null) {
-					try {
-						output.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
-		 
+				Log.error("Could not write " + INDEX_FILE_NAME + ".", io);
 			}
 		}
 	}
@@ -16,17 +16,23 @@
 
 package org.eztarget.vidcheroo;
 
+import java.awt.CardLayout;
+import java.awt.GraphicsDevice;
 import java.awt.IllegalComponentStateException;
 import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.Window;
 import java.lang.reflect.Method;
+import java.util.Locale;
 
 import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 import uk.co.caprica.vlcj.component.EmbeddedMediaPlayerComponent;
 import uk.co.caprica.vlcj.player.MediaPlayer;
+import uk.co.caprica.vlcj.player.MediaPlayerEventAdapter;
 
 /**
  * Used as the VLC "display" for main video function, as well as, parsing media files.
@@ -34,7 +40,7 @@ import uk.co.caprica.vlcj.player.MediaPlayer;
  * @author michel@easy-target.org
  *
  */
-public class MediaFrame extends JFrame {
+public class MediaFrame extends JFrame implements OutputPlayer {
 	
 	/**
 	 * Mandatory but not used.
@@ -57,35 +63,129 @@ public class MediaFrame extends JFrame {
 	private int frameWidth, frameHeight;
 	
 	/**
-	 * Contains the VLC media player.
+	 * Contains the visible VLC media player.
 	 */
 	private EmbeddedMediaPlayerComponent mediaPlayerComponent;
 	
+	/**
+	 * Contains the hidden VLC media player that holds the next media file, paused on its first frame;
+	 * null if this frame is not double-buffered
+	 */
+	private EmbeddedMediaPlayerComponent prerollPlayerComponent;
+	
+	/**
+	 * Stacks both player components, only one is visible.
+	 */
+	private JPanel playerPanel;
+	
+	/**
+	 * Switches the visible player component.
+	 */
+	private CardLayout playerLayout;
+	
+	/**
+	 * Name of the card of the visible player; changed by the play thread, shown on the EDT
+	 */
+	private volatile String visibleCard = PLAYER_CARD_A;
+	
+	/**
+	 * Shows the card of the visible player; queued on the EDT after every switch.
+	 * Queued runs that pile up all show the latest card.
+	 */
+	private final Runnable showVisibleCard = new Runnable() {
+		public void run() {
+			playerLayout.show(playerPanel, visibleCard);
+		}
+	};
+	
+	/**
+	 * True, if the hidden player holds a media file that has not been played yet.
+	 */
+	private boolean isPrerolled = false;
+	
+	/**
+	 * Measures the switch latency of the visible player.
+	 */
+	private SwitchLatencyListener mediaPlayerListener = new SwitchLatencyListener();
+	
+	/**
+	 * Measures the switch latency of the hidden player.
+	 */
+	private SwitchLatencyListener prerollPlayerListener = new SwitchLatencyListener();
+	
 	/**
 	 * Default constructor
 	 * Calls specific constructor method with width and height at 70% of the screen resolution.
+	 * The frame is double-buffered.
 	 */
 	public MediaFrame() {
 		this(
 			(int) (Toolkit.getDefaultToolkit().getScreenSize().getWidth() * 0.7f),
 			(int) (Toolkit.getDefaultToolkit().getScreenSize().getHeight() * 0.7f),
-			"Vidcheroo"
+			"Vidcheroo",
+			true
 			);
 	}
 	
+	/**
+	 * Specific constructor for a frame with a single player
+	 * @param width	Frame width
+	 * @param height Frame height
+	 * @param title Frame title
+	 */
+	public MediaFrame(int width, int height, String title) {
+		this(width, height, title, false);
+	}
+	
 	/**
 	 * Specific constructor
 	 * Sets the given bounds and various other GUI settings.
 	 * @param width	Frame width
 	 * @param height Frame height
 	 * @param title Frame title
+	 * @param doubleBuffered Add a second, hidden player that pre-rolls the next media file
 	 */
-	public MediaFrame(int width, int height, String title) {
+	public MediaFrame(int width, int height, String title, boolean doubleBuffered) {
+		this(null, width, height, title, doubleBuffered);
+	}
+	
+	/**
+	 * Constructor for an additional output
+	 * The double-buffered frame is placed on the given screen, at 70% of its resolution.
+	 * @param device Screen of the frame
+	 * @param title Frame title
+	 */
+	public MediaFrame(GraphicsDevice device, String title) {
+		this(
+			device,
+			(int) (device.getDefaultConfiguration().getBounds().getWidth() * 0.7f),
+			(int) (device.getDefaultConfiguration().getBounds().getHeight() * 0.7f),
+			title,
+			true
+			);
+	}
+	
+	/**
+	 * Specific constructor
+	 * Sets the given bounds and various other GUI settings.
+	 * @param device Screen of the frame; null for the default screen
+	 * @param width	Frame width
+	 * @param height Frame height
+	 * @param title Frame title
+	 * @param doubleBuffered Add a second, hidden player that pre-rolls the next media file
+	 */
+	private MediaFrame(GraphicsDevice device, int width, int height, String title, boolean doubleBuffered) {
+		super(device == null ? null : device.getDefaultConfiguration());
+		if (device != null) {
+			Rectangle screenBounds = device.getDefaultConfiguration().getBounds();
+			frameX += screenBounds.x;
+			frameY += screenBounds.y;
+		}
 		this.frameWidth = width;
 		this.frameHeight = height;
 		setTitle(title);
 
-		System.out.println("Initialising Media Frame.");
+		Log.info("Initialising Media Frame.");
 		
 		setBounds(frameX, frameY, frameWidth, frameHeight);
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -93,12 +193,24 @@ public class MediaFrame extends JFrame {
 		//setUndecorated(true);
 		
 		if (ConfigurationHandler.getVlcPath() == null) {
-			System.err.println("ERROR: VLC path is not set.");
+			Log.error("VLC path is not set.");
 			return;
 		}
 		
 		mediaPlayerComponent = new EmbeddedMediaPlayerComponent();
-        setContentPane(mediaPlayerComponent);
+		mediaPlayerComponent.getMediaPlayer().addMediaPlayerEventListener(mediaPlayerListener);
+		if (doubleBuffered) {
+			prerollPlayerComponent = new EmbeddedMediaPlayerComponent();
+			prerollPlayerComponent.getMediaPlayer().addMediaPlayerEventListener(prerollPlayerListener);
+			
+			playerLayout = new CardLayout();
+			playerPanel = new JPanel(playerLayout);
+			playerPanel.add(mediaPlayerComponent, PLAYER_CARD_A);
+			playerPanel.add(prerollPlayerComponent, PLAYER_CARD_B);
+			setContentPane(playerPanel);
+		} else {
+			setContentPane(mediaPlayerComponent);
+		}
         
         if (Engine.getOs() == SupportedOperatingSystems.OSX) {
             enableOSXFullscreen();
@@ -127,7 +239,7 @@ public class MediaFrame extends JFrame {
 			Method method = util.getMethod("setWindowCanFullScreen", params);
 			method.invoke(util, this, true);
 		}  catch (Exception e) {
-			e.printStackTrace();
+			Log.warning("Could not enable OS X full screen.", e);
 		}
 	}
 	
@@ -138,25 +250,93 @@ public class MediaFrame extends JFrame {
 	/**
 	 * Sets VLC options and plays the given file starting at a given time.
 	 * @param mediaPath Absolute path to a media file
-	 * @param startTime Value in seconds at which to skip to when the playback begins. Seems to create a slight visible delay if not 0.
+	 * @param startTime Value in ms at which to skip to when the playback begins. Seems to create a slight visible delay if not 0.
 	 */
 	public void playMediaFilePath(String mediaPath, long startTime) {
-		String[] vlcOptions = {":quiet", ":no-audio", ":no-video-title-show", ":start-time=" + startTime / 1000};
+		String[] vlcOptions = {":quiet", ":no-audio", ":no-video-title-show", getStartTimeOption(startTime)};
 		
 		// Discard the start-time option, if the startTime value is nonsensical.
 		if (startTime <= 0) vlcOptions[3] = "";
 		
+		mediaPlayerListener.arm(System.nanoTime());
 		mediaPlayerComponent.getMediaPlayer().playMedia(mediaPath, vlcOptions);
 		//System.out.println("-UNZ-");
 		//mediaPlayerComponent.getMediaPlayer().skipPosition(startTime);
 	}
 
+	/**
+	 * Card name of the player component that is visible first
+	 */
+	private static final String PLAYER_CARD_A = "A";
+	
+	/**
+	 * Card name of the player component that is hidden first
+	 */
+	private static final String PLAYER_CARD_B = "B";
+	
+	/**
+	 * VLC reads the start time in seconds with a fraction, so that keyframes between two full seconds are hit.
+	 * @param startTime Value in ms at which to skip to when the playback begins
+	 * @return VLC option
+	 */
+	private static String getStartTimeOption(long startTime) {
+		return String.format(Locale.ROOT, ":start-time=%.3f", startTime / 1000d);
+	}
+	
+	/**
+	 * Opens the next media file in the hidden player, skips to the start time and pauses on the first frame.
+	 * Frames without a second player play the file right away.
+	 * @param mediaPath Absolute path to a media file
+	 * @param startTime Value in ms at which to skip to when the playback begins
+	 */
+	public void prepareMediaFilePath(String mediaPath, long startTime) {
+		if (prerollPlayerComponent == null) {
+			playMediaFilePath(mediaPath, startTime);
+			return;
+		}
+		
+		String[] vlcOptions = {
+				":quiet", ":no-audio", ":no-video-title-show", ":start-paused", getStartTimeOption(startTime)
+				};
+		if (startTime <= 0) vlcOptions[4] = "";
+		
+		prerollPlayerComponent.getMediaPlayer().playMedia(mediaPath, vlcOptions);
+		isPrerolled = true;
+	}
+	
+	/**
+	 * Shows the hidden player with the pre-rolled media file and resumes it.
+	 * The previously visible player becomes the hidden player for the next media file.
+	 * Does nothing if no media file has been prepared.
+	 * @return True, if a pre-rolled media file is shown
+	 */
+	public boolean playPreparedMedia() {
+		if (prerollPlayerComponent == null || !isPrerolled) return false;
+		
+		EmbeddedMediaPlayerComponent nextPlayerComponent = prerollPlayerComponent;
+		prerollPlayerComponent = mediaPlayerComponent;
+		mediaPlayerComponent = nextPlayerComponent;
+		
+		SwitchLatencyListener nextPlayerListener = prerollPlayerListener;
+		prerollPlayerListener = mediaPlayerListener;
+		mediaPlayerListener = nextPlayerListener;
+		isPrerolled = false;
+		
+		mediaPlayerListener.arm(System.nanoTime());
+		mediaPlayerComponent.getMediaPlayer().setPause(false);
+		// Swing components may only be changed on the EDT.
+		visibleCard = visibleCard == PLAYER_CARD_A ? PLAYER_CARD_B : PLAYER_CARD_A;
+		SwingUtilities.invokeLater(showVisibleCard);
+		prerollPlayerComponent.getMediaPlayer().setPause(true);
+		return true;
+	}
+	
 	/**
 	 * If the media player is playing, it will be paused.
 	 */
 	public void pause() {
 		if (mediaPlayerComponent.getMediaPlayer().isPlaying()) {
-			System.out.println("Media frame pauses playback.");
+			if (Log.isDebug()) Log.debug("Media frame pauses playback.");
 			mediaPlayerComponent.getMediaPlayer().pause();
 		}
 	}
@@ -166,6 +346,10 @@ public class MediaFrame extends JFrame {
 	 */
 	public void stop() {
 		mediaPlayerComponent.getMediaPlayer().stop();
+		if (prerollPlayerComponent != null) {
+			prerollPlayerComponent.getMediaPlayer().stop();
+			isPrerolled = false;
+		}
 	}
 	
 	/**
@@ -174,7 +358,7 @@ public class MediaFrame extends JFrame {
 	 */
 	public void setMediaTime(long time) {
 		mediaPlayerComponent.getMediaPlayer().setTime(time);
-		System.out.println("Skipped to " + time);
+		if (Log.isDebug()) Log.debug("Skipped to " + time);
 	}
 
 	/**
@@ -190,11 +374,11 @@ public class MediaFrame extends JFrame {
 		try {
 			setUndecorated(!windowed);
 		} catch (IllegalComponentStateException e) {
-			System.out.println("Changing decorations exception occured.");
+			Log.info("Changing decorations exception occured.");
 		}
 		
 		if (!windowed) {
-			System.out.println("Leaving windowed mode.");
+			Log.info("Leaving windowed mode.");
 			
 			// Store settings before resizing.
 			Rectangle windowBounds = getBounds();
@@ -216,7 +400,7 @@ public class MediaFrame extends JFrame {
 //		    	setWindowed(true);
 //		    }
 		} else {
-			System.out.println("Going into windowed mode.");
+			Log.info("Going into windowed mode.");
 			
 	    	getGraphicsConfiguration().getDevice().setFullScreenWindow(null);
 			setBounds(frameX, frameY, frameWidth, frameHeight);
@@ -239,14 +423,60 @@ public class MediaFrame extends JFrame {
 		
 		long length = player.getMediaMeta().getLength();
 		if (length <= 0) {
-			System.err.println("WARNING: " + mediaFilePath + " is not a valid video file.");
+			Log.warning(mediaFilePath + " is not a valid video file.");
 			length = MediaFile.NOT_VIDEO_FILE;
 		} else {
-			System.out.println(mediaFilePath + " " + length);
+			Log.info(mediaFilePath + " " + length);
 			//System.out.println(player.getAspectRatio() + " " + player.getAudioDelay());
 		}
 		
 		player.stop();
 		return length;
 	}
+
+	/**
+	 * Records the time from a play call to the "playing" event
+	 * and from the "playing" event to the first time update, i.e. the first new frame.
+	 * Events of media files that are pre-rolled are ignored, as the listener is only armed by a play call.
+	 */
+	private static class SwitchLatencyListener extends MediaPlayerEventAdapter {
+		
+		/**
+		 * Time stamp in ns of the last play call; 0 if already measured
+		 */
+		private volatile long callNanos = 0l;
+		
+		/**
+		 * Time stamp in ns of the last "playing" event; 0 if already measured
+		 */
+		private volatile long playingNanos = 0l;
+		
+		/**
+		 * @param callNanos Time stamp in ns of the play call that is about to happen
+		 */
+		void arm(long callNanos) {
+			playingNanos = 0l;
+			this.callNanos = callNanos;
+		}
+		
+		@Override
+		public void playing(MediaPlayer mediaPlayer) {
+			long fCallNanos = callNanos;
+			if (fCallNanos == 0l) return;
+			
+			long now = System.nanoTime();
+			callNanos = 0l;
+			LatencyMonitor.CALL_TO_PLAYING.record(now - fCallNanos);
+			playingNanos = now;
+		}
+		
+		@Override
+		public void timeChanged(MediaPlayer mediaPlayer, long newTime) {
+			long fPlayingNanos = playingNanos;
+			if (fPlayingNanos == 0l) return;
+			
+			playingNanos = 0l;
+			LatencyMonitor.PLAYING_TO_FRAME.record(System.nanoTime() - fPlayingNanos);
+		}
+	}
 }
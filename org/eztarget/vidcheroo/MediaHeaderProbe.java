@@ -0,0 +1,802 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the length of a media file straight from its container headers, without VLC.
+ * Supported containers: MP4/MOV (mvhd), Matroska/WebM (Segment Info), AVI (avih, dmlh) and FLV (onMetaData).
+ * Only a few small, positioned reads are done per file.
+ * The times of the keyframes are read from the sync sample table of the first MP4 video track
+ * or from the Matroska Cues.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class MediaHeaderProbe {
+
+	/**
+	 * Most bytes that are read at once while looking for a header
+	 */
+	private static final int MAX_READ_LENGTH = 64 * 1024;
+
+	/**
+	 * Most bytes of a sample or cue table that are read
+	 */
+	private static final int MAX_TABLE_LENGTH = 4 * 1024 * 1024;
+
+	/**
+	 * Most keyframes per file; files with more are seekable almost anywhere and are not indexed
+	 */
+	private static final int MAX_KEYFRAMES = 16384;
+
+	/**
+	 * Most container elements that are skipped while looking for a header
+	 */
+	private static final int MAX_ELEMENTS = 4096;
+
+	/**
+	 * Matroska element IDs, including their length marker bits
+	 */
+	private static final long MKV_ID_EBML = 0x1A45DFA3l;
+	private static final long MKV_ID_SEGMENT = 0x18538067l;
+	private static final long MKV_ID_INFO = 0x1549A966l;
+	private static final long MKV_ID_CLUSTER = 0x1F43B675l;
+	private static final long MKV_ID_TIMECODE_SCALE = 0x2AD7B1l;
+	private static final long MKV_ID_DURATION = 0x4489l;
+	private static final long MKV_ID_SEEK_HEAD = 0x114D9B74l;
+	private static final long MKV_ID_SEEK = 0x4DBBl;
+	private static final long MKV_ID_SEEK_ID = 0x53ABl;
+	private static final long MKV_ID_SEEK_POSITION = 0x53ACl;
+	private static final long MKV_ID_CUES = 0x1C53BB6Bl;
+	private static final long MKV_ID_CUE_POINT = 0xBBl;
+	private static final long MKV_ID_CUE_TIME = 0xB3l;
+
+	/**
+	 * Default Matroska timecode scale in ns
+	 */
+	private static final long MKV_DEFAULT_TIMECODE_SCALE = 1000000l;
+
+	/**
+	 * Opens a media file and reads its length from the container header.
+	 *
+	 * @param mediaFilePath Absolute path to the file that is to be analysed.
+	 * @return The length in ms or MediaFile.LENGTH_INDETERMINABLE, if the container is unknown or has no length.
+	 */
+	public static long getMediaLength(String mediaFilePath) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(mediaFilePath, "r");
+			FileChannel channel = file.getChannel();
+
+			ByteBuffer signature = read(channel, 0, 12);
+			if (signature == null) return MediaFile.LENGTH_INDETERMINABLE;
+
+			long length;
+			if (signature.getInt(0) == (int) MKV_ID_EBML) {
+				length = getMatroskaLength(channel);
+			} else if (isFourCC(signature, 0, "RIFF") && isFourCC(signature, 8, "AVI ")) {
+				length = getAviLength(channel);
+			} else if (isFourCC(signature, 4, "ftyp") || isFourCC(signature, 4, "moov")
+					|| isFourCC(signature, 4, "mdat") || isFourCC(signature, 4, "wide")
+					|| isFourCC(signature, 4, "free") || isFourCC(signature, 4, "skip")) {
+				length = getMp4Length(channel);
+			} else if (signature.get(0) == 'F' && signature.get(1) == 'L' && signature.get(2) == 'V') {
+				length = getFlvLength(channel);
+			} else {
+				length = MediaFile.LENGTH_INDETERMINABLE;
+			}
+
+			if (length <= 0) return MediaFile.LENGTH_INDETERMINABLE;
+			return length;
+		} catch (IOException e) {
+			return MediaFile.LENGTH_INDETERMINABLE;
+		} catch (RuntimeException e) {
+			// Corrupt headers may point anywhere.
+			return MediaFile.LENGTH_INDETERMINABLE;
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					Log.warning("Could not close " + mediaFilePath + ".", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens a media file and reads the times of its keyframes, at which playback can start without decoding ahead.
+	 *
+	 * @param mediaFilePath Absolute path to the file that is to be analysed.
+	 * @return Ascending keyframe times in ms or null, if the container has no usable index
+	 */
+	public static long[] getKeyframeTimes(String mediaFilePath) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(mediaFilePath, "r");
+			FileChannel channel = file.getChannel();
+
+			ByteBuffer signature = read(channel, 0, 12);
+			if (signature == null) return null;
+
+			long[] keyframeTimes;
+			if (signature.getInt(0) == (int) MKV_ID_EBML) {
+				keyframeTimes = getMatroskaKeyframeTimes(channel);
+			} else if (isFourCC(signature, 4, "ftyp") || isFourCC(signature, 4, "moov")
+					|| isFourCC(signature, 4, "mdat") || isFourCC(signature, 4, "wide")
+					|| isFourCC(signature, 4, "free") || isFourCC(signature, 4, "skip")) {
+				keyframeTimes = getMp4KeyframeTimes(channel);
+			} else {
+				keyframeTimes = null;
+			}
+
+			if (keyframeTimes == null || keyframeTimes.length == 0) return null;
+			return keyframeTimes;
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// Corrupt tables may point anywhere.
+			return null;
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					Log.warning("Could not close " + mediaFilePath + ".", e);
+				}
+			}
+		}
+	}
+
+	/*
+	 * MP4 / MOV
+	 */
+
+	/**
+	 * Walks the top-level boxes until the movie box is found and reads the movie header.
+	 *
+	 * @param channel Open file
+	 * @return Length in ms or a value <= 0
+	 * @throws IOException
+	 */
+	private static long getMp4Length(FileChannel channel) throws IOException {
+		long moovPosition = findMp4Box(channel, 0, channel.size(), "moov");
+		if (moovPosition < 0) return MediaFile.LENGTH_INDETERMINABLE;
+
+		ByteBuffer moovHeader = read(channel, moovPosition, 16);
+		long moovEnd = moovPosition + getMp4BoxSize(channel, moovPosition, moovHeader);
+		long mvhdPosition = findMp4Box(channel, moovPosition + getMp4HeaderSize(moovHeader), moovEnd, "mvhd");
+		if (mvhdPosition < 0) return MediaFile.LENGTH_INDETERMINABLE;
+
+		ByteBuffer mvhd = read(channel, mvhdPosition + 8, 32);
+		if (mvhd == null) return MediaFile.LENGTH_INDETERMINABLE;
+
+		long timeScale;
+		long duration;
+		if (mvhd.get(0) == 1) {
+			// Version 1: 64 bit creation and modification time and duration
+			timeScale = mvhd.getInt(20) & 0xFFFFFFFFl;
+			duration = mvhd.getLong(24);
+		} else {
+			timeScale = mvhd.getInt(12) & 0xFFFFFFFFl;
+			duration = mvhd.getInt(16) & 0xFFFFFFFFl;
+			if (duration == 0xFFFFFFFFl) return MediaFile.LENGTH_INDETERMINABLE;
+		}
+
+		if (timeScale <= 0 || duration <= 0) return MediaFile.LENGTH_INDETERMINABLE;
+		return duration * 1000l / timeScale;
+	}
+
+	/**
+	 * Looks for a box of the given type among the boxes between start and end.
+	 *
+	 * @param channel Open file
+	 * @param start Position of the first box
+	 * @param end Position after the last box
+	 * @param type Four character box type
+	 * @return Position of the box or -1
+	 * @throws IOException
+	 */
+	private static long findMp4Box(FileChannel channel, long start, long end, String type) throws IOException {
+		long position = start;
+		for (int i = 0; i < MAX_ELEMENTS && position + 8 <= end; i++) {
+			ByteBuffer header = read(channel, position, 16);
+			if (header == null) return -1;
+			if (isFourCC(header, 4, type)) return position;
+
+			long boxSize = getMp4BoxSize(channel, position, header);
+			if (boxSize < 8) return -1;
+			position += boxSize;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param channel Open file
+	 * @param position Position of the box
+	 * @param header First bytes of the box
+	 * @return Size of the entire box in bytes
+	 * @throws IOException
+	 */
+	private static long getMp4BoxSize(FileChannel channel, long position, ByteBuffer header) throws IOException {
+		long size = header.getInt(0) & 0xFFFFFFFFl;
+		if (size == 1 && header.limit() >= 16) {
+			size = header.getLong(8);
+		} else if (size == 0) {
+			// Box extends to the end of the file.
+			size = channel.size() - position;
+		}
+		return size;
+	}
+
+	/**
+	 * @param header First bytes of the box
+	 * @return Size of the box header in bytes
+	 */
+	private static int getMp4HeaderSize(ByteBuffer header) {
+		if (header.getInt(0) == 1) return 16;
+		return 8;
+	}
+
+	/**
+	 * Finds the first video track and converts its sync samples to times.
+	 * Edit lists and composition offsets are ignored, the times are decode times.
+	 *
+	 * @param channel Open file
+	 * @return Keyframe times in ms or null, if every sample is a keyframe or there is no usable table
+	 * @throws IOException
+	 */
+	private static long[] getMp4KeyframeTimes(FileChannel channel) throws IOException {
+		long moovPosition = findMp4Box(channel, 0, channel.size(), "moov");
+		if (moovPosition < 0) return null;
+		long[] moov = getMp4Children(channel, moovPosition);
+
+		long trakPosition = moov[0];
+		for (int i = 0; i < MAX_ELEMENTS; i++) {
+			trakPosition = findMp4Box(channel, trakPosition, moov[1], "trak");
+			if (trakPosition < 0) return null;
+			long[] trak = getMp4Children(channel, trakPosition);
+
+			long mdiaPosition = findMp4Box(channel, trak[0], trak[1], "mdia");
+			if (mdiaPosition >= 0) {
+				long[] mdia = getMp4Children(channel, mdiaPosition);
+				long hdlrPosition = findMp4Box(channel, mdia[0], mdia[1], "hdlr");
+				// Version and flags, pre-defined value, handler type.
+				ByteBuffer hdlr = hdlrPosition < 0 ? null : read(channel, hdlrPosition + 8, 12);
+				if (hdlr != null && isFourCC(hdlr, 8, "vide")) return getMp4TrackKeyframeTimes(channel, mdia);
+			}
+			trakPosition = trak[1];
+		}
+		return null;
+	}
+
+	/**
+	 * Looks up the decode time of every sync sample in the time-to-sample table.
+	 *
+	 * @param channel Open file
+	 * @param mdia Position of the first child and end of the media box of a video track
+	 * @return Keyframe times in ms or null
+	 * @throws IOException
+	 */
+	private static long[] getMp4TrackKeyframeTimes(FileChannel channel, long[] mdia) throws IOException {
+		long mdhdPosition = findMp4Box(channel, mdia[0], mdia[1], "mdhd");
+		ByteBuffer mdhd = mdhdPosition < 0 ? null : read(channel, mdhdPosition + 8, 24);
+		if (mdhd == null) return null;
+		long timeScale = (mdhd.get(0) == 1 ? mdhd.getInt(20) : mdhd.getInt(12)) & 0xFFFFFFFFl;
+		if (timeScale <= 0) return null;
+
+		long minfPosition = findMp4Box(channel, mdia[0], mdia[1], "minf");
+		if (minfPosition < 0) return null;
+		long[] minf = getMp4Children(channel, minfPosition);
+		long stblPosition = findMp4Box(channel, minf[0], minf[1], "stbl");
+		if (stblPosition < 0) return null;
+		long[] stbl = getMp4Children(channel, stblPosition);
+
+		// Without a sync sample table, every sample is a keyframe.
+		ByteBuffer stss = readMp4Table(channel, stbl, "stss", 4, MAX_KEYFRAMES);
+		ByteBuffer stts = readMp4Table(channel, stbl, "stts", 8, MAX_TABLE_LENGTH / 8);
+		if (stss == null || stts == null) return null;
+
+		int keyframeCount = stss.limit() / 4;
+		long[] keyframeTimes = new long[keyframeCount];
+
+		// Number and decode time of the first sample of the current time-to-sample run.
+		long runSample = 1l;
+		long runTime = 0l;
+		int run = 0;
+		long previousSyncSample = 0l;
+		for (int k = 0; k < keyframeCount; k++) {
+			long syncSample = stss.getInt(k * 4) & 0xFFFFFFFFl;
+			if (syncSample <= previousSyncSample) return null;
+			previousSyncSample = syncSample;
+
+			while (run * 8 < stts.limit()) {
+				long sampleCount = stts.getInt(run * 8) & 0xFFFFFFFFl;
+				if (syncSample < runSample + sampleCount) break;
+				runSample += sampleCount;
+				runTime += sampleCount * (stts.getInt(run * 8 + 4) & 0xFFFFFFFFl);
+				run++;
+			}
+			if (run * 8 >= stts.limit()) {
+				// The sync sample table points beyond the last sample.
+				return Arrays.copyOf(keyframeTimes, k);
+			}
+
+			long sampleTime = runTime + (syncSample - runSample) * (stts.getInt(run * 8 + 4) & 0xFFFFFFFFl);
+			keyframeTimes[k] = sampleTime * 1000l / timeScale;
+		}
+		return keyframeTimes;
+	}
+
+	/**
+	 * Reads the entries of a full box that starts with an entry count, e.g. stss or stts.
+	 *
+	 * @param channel Open file
+	 * @param parent Position of the first child and end of the parent box
+	 * @param type Four character box type
+	 * @param entrySize Size of one entry in bytes
+	 * @param maxEntryCount Largest accepted number of entries
+	 * @return Buffer of all entries or null, if the box does not exist or is too large
+	 * @throws IOException
+	 */
+	private static ByteBuffer readMp4Table(FileChannel channel, long[] parent, String type, int entrySize, int maxEntryCount)
+			throws IOException {
+		long position = findMp4Box(channel, parent[0], parent[1], type);
+		if (position < 0) return null;
+		long[] box = getMp4Children(channel, position);
+
+		// Version and flags, entry count.
+		ByteBuffer header = read(channel, box[0], 8);
+		if (header == null) return null;
+		long entryCount = header.getInt(4) & 0xFFFFFFFFl;
+		if (entryCount == 0 || entryCount > maxEntryCount || box[0] + 8 + entryCount * entrySize > box[1]) return null;
+
+		return readTable(channel, box[0] + 8, (int) entryCount * entrySize);
+	}
+
+	/**
+	 * @param channel Open file
+	 * @param position Position of a box
+	 * @return Position of the first child and end of the box
+	 * @throws IOException
+	 */
+	private static long[] getMp4Children(FileChannel channel, long position) throws IOException {
+		ByteBuffer header = read(channel, position, 16);
+		if (header == null) throw new IOException("Truncated box at " + position + ".");
+		return new long[] {position + getMp4HeaderSize(header), position + getMp4BoxSize(channel, position, header)};
+	}
+
+	/*
+	 * MATROSKA / WEBM
+	 */
+
+	/**
+	 * Reads the duration and timecode scale from the Segment Info element.
+	 *
+	 * @param channel Open file
+	 * @return Length in ms or a value <= 0
+	 * @throws IOException
+	 */
+	private static long getMatroskaLength(FileChannel channel) throws IOException {
+		long fileSize = channel.size();
+
+		// Skip the EBML header.
+		long[] element = readEbmlElement(channel, 0);
+		if (element == null) return MediaFile.LENGTH_INDETERMINABLE;
+		long position = element[1] + element[2];
+
+		// Find the Segment.
+		element = readEbmlElement(channel, position);
+		if (element == null || element[0] != MKV_ID_SEGMENT) return MediaFile.LENGTH_INDETERMINABLE;
+		position = element[1];
+		long segmentEnd = element[2] < 0 ? fileSize : Math.min(fileSize, element[1] + element[2]);
+
+		// Find the Info element among the top-level children; it comes before the first Cluster.
+		long infoEnd = -1;
+		for (int i = 0; i < MAX_ELEMENTS && position < segmentEnd; i++) {
+			element = readEbmlElement(channel, position);
+			if (element == null || element[0] == MKV_ID_CLUSTER || element[2] < 0) {
+				return MediaFile.LENGTH_INDETERMINABLE;
+			}
+			if (element[0] == MKV_ID_INFO) {
+				position = element[1];
+				infoEnd = element[1] + element[2];
+				break;
+			}
+			position = element[1] + element[2];
+		}
+		if (infoEnd < 0) return MediaFile.LENGTH_INDETERMINABLE;
+
+		long timecodeScale = MKV_DEFAULT_TIMECODE_SCALE;
+		double duration = -1d;
+		for (int i = 0; i < MAX_ELEMENTS && position < infoEnd; i++) {
+			element = readEbmlElement(channel, position);
+			if (element == null || element[2] < 0) break;
+
+			if (element[0] == MKV_ID_TIMECODE_SCALE && element[2] <= 8) {
+				ByteBuffer value = read(channel, element[1], (int) element[2]);
+				if (value != null) timecodeScale = readUnsigned(value, (int) element[2]);
+			} else if (element[0] == MKV_ID_DURATION) {
+				ByteBuffer value = read(channel, element[1], (int) element[2]);
+				if (value != null && element[2] == 4) duration = value.getFloat(0);
+				else if (value != null && element[2] == 8) duration = value.getDouble(0);
+			}
+			position = element[1] + element[2];
+		}
+
+		if (duration <= 0d || timecodeScale <= 0) return MediaFile.LENGTH_INDETERMINABLE;
+		return (long) (duration * timecodeScale / 1000000d);
+	}
+
+	/**
+	 * Reads the cue times from the Cues element.
+	 * The Cues are found through the SeekHead or by skipping the top-level elements, because they often follow the Clusters.
+	 *
+	 * @param channel Open file
+	 * @return Keyframe times in ms or null
+	 * @throws IOException
+	 */
+	private static long[] getMatroskaKeyframeTimes(FileChannel channel) throws IOException {
+		long fileSize = channel.size();
+
+		long[] element = readEbmlElement(channel, 0);
+		if (element == null) return null;
+		element = readEbmlElement(channel, element[1] + element[2]);
+		if (element == null || element[0] != MKV_ID_SEGMENT) return null;
+		long segmentStart = element[1];
+		long segmentEnd = element[2] < 0 ? fileSize : Math.min(fileSize, element[1] + element[2]);
+
+		long timecodeScale = MKV_DEFAULT_TIMECODE_SCALE;
+		long cuesPosition = -1;
+		long position = segmentStart;
+		for (int i = 0; i < MAX_ELEMENTS && position < segmentEnd; i++) {
+			element = readEbmlElement(channel, position);
+			if (element == null || element[2] < 0) break;
+
+			if (element[0] == MKV_ID_CUES) {
+				cuesPosition = position;
+				break;
+			} else if (element[0] == MKV_ID_CLUSTER && cuesPosition >= 0) {
+				// Info always comes before the first Cluster.
+				break;
+			} else if (element[0] == MKV_ID_INFO && element[2] <= MAX_READ_LENGTH) {
+				ByteBuffer info = read(channel, element[1], (int) element[2]);
+				long[] scale = info == null ? null : findEbmlChild(info, 0, info.limit(), MKV_ID_TIMECODE_SCALE);
+				if (scale != null && scale[2] <= 8) timecodeScale = readUnsigned(info, (int) scale[1], (int) scale[2]);
+			} else if (element[0] == MKV_ID_SEEK_HEAD && element[2] <= MAX_READ_LENGTH) {
+				ByteBuffer seekHead = read(channel, element[1], (int) element[2]);
+				long seekPosition = seekHead == null ? -1 : findMatroskaSeekPosition(seekHead, MKV_ID_CUES);
+				if (seekPosition >= 0) cuesPosition = segmentStart + seekPosition;
+			}
+			position = element[1] + element[2];
+		}
+		if (cuesPosition < 0 || timecodeScale <= 0) return null;
+
+		element = readEbmlElement(channel, cuesPosition);
+		if (element == null || element[0] != MKV_ID_CUES || element[2] < 0 || element[2] > MAX_TABLE_LENGTH) return null;
+		ByteBuffer cues = readTable(channel, element[1], (int) element[2]);
+		if (cues == null) return null;
+
+		long[] cueTimes = new long[MAX_KEYFRAMES];
+		int cueCount = 0;
+		for (int offset = 0; offset < cues.limit(); ) {
+			long[] cuePoint = parseEbmlElement(cues, offset);
+			if (cuePoint == null || cuePoint[2] < 0) break;
+			int dataEnd = (int) Math.min(cues.limit(), cuePoint[1] + cuePoint[2]);
+
+			if (cuePoint[0] == MKV_ID_CUE_POINT) {
+				long[] cueTime = findEbmlChild(cues, (int) cuePoint[1], dataEnd, MKV_ID_CUE_TIME);
+				if (cueTime != null && cueTime[2] <= 8) {
+					if (cueCount == MAX_KEYFRAMES) return null;
+					cueTimes[cueCount++] = readUnsigned(cues, (int) cueTime[1], (int) cueTime[2]);
+				}
+			}
+			offset = dataEnd;
+		}
+
+		// Every track may have its own cue points at the same time.
+		Arrays.sort(cueTimes, 0, cueCount);
+		int keyframeCount = 0;
+		for (int i = 0; i < cueCount; i++) {
+			long time = cueTimes[i] * timecodeScale / 1000000l;
+			if (keyframeCount == 0 || time > cueTimes[keyframeCount - 1]) cueTimes[keyframeCount++] = time;
+		}
+		return Arrays.copyOf(cueTimes, keyframeCount);
+	}
+
+	/**
+	 * @param seekHead Data of a SeekHead element
+	 * @param id ID of the wanted top-level element
+	 * @return Position of the element relative to the Segment data or -1
+	 */
+	private static long findMatroskaSeekPosition(ByteBuffer seekHead, long id) {
+		for (int offset = 0; offset < seekHead.limit(); ) {
+			long[] seek = parseEbmlElement(seekHead, offset);
+			if (seek == null || seek[2] < 0) break;
+			int dataEnd = (int) Math.min(seekHead.limit(), seek[1] + seek[2]);
+
+			if (seek[0] == MKV_ID_SEEK) {
+				long[] seekId = findEbmlChild(seekHead, (int) seek[1], dataEnd, MKV_ID_SEEK_ID);
+				long[] seekPosition = findEbmlChild(seekHead, (int) seek[1], dataEnd, MKV_ID_SEEK_POSITION);
+				if (seekId != null && seekPosition != null && seekId[2] <= 4 && seekPosition[2] <= 8
+						&& readUnsigned(seekHead, (int) seekId[1], (int) seekId[2]) == id) {
+					return readUnsigned(seekHead, (int) seekPosition[1], (int) seekPosition[2]);
+				}
+			}
+			offset = dataEnd;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param buffer Buffer containing the data of a master element
+	 * @param start Offset of the first child
+	 * @param end Offset after the last child
+	 * @param id ID of the wanted child
+	 * @return ID, offset of the data in the buffer and data size of the first matching child; null if there is none
+	 */
+	private static long[] findEbmlChild(ByteBuffer buffer, int start, int end, long id) {
+		for (int offset = start; offset < end; ) {
+			long[] element = parseEbmlElement(buffer, offset);
+			if (element == null || element[2] < 0 || element[1] + element[2] > end) return null;
+			if (element[0] == id) return element;
+			offset = (int) (element[1] + element[2]);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the ID and size of an EBML element.
+	 *
+	 * @param channel Open file
+	 * @param position Position of the element
+	 * @return ID including its marker bits, position of the data and data size (-1 if unknown); null on failure
+	 * @throws IOException
+	 */
+	private static long[] readEbmlElement(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = read(channel, position, 12);
+		if (buffer == null) {
+			// Elements at the end of a file may be shorter.
+			buffer = read(channel, position, (int) Math.min(12, channel.size() - position));
+			if (buffer == null || buffer.limit() < 2) return null;
+		}
+
+		long[] element = parseEbmlElement(buffer, 0);
+		if (element == null) return null;
+		element[1] += position;
+		return element;
+	}
+
+	/**
+	 * Parses the ID and size of an EBML element in a buffer.
+	 *
+	 * @param buffer Buffer containing the element header
+	 * @param offset Position of the element in the buffer
+	 * @return ID including its marker bits, offset of the data in the buffer and data size (-1 if unknown); null on failure
+	 */
+	private static long[] parseEbmlElement(ByteBuffer buffer, int offset) {
+		if (offset + 2 > buffer.limit()) return null;
+
+		int idLength = getEbmlVintLength(buffer.get(offset));
+		if (idLength < 1 || idLength > 4 || offset + idLength >= buffer.limit()) return null;
+		long id = readUnsigned(buffer, offset, idLength);
+
+		int sizeLength = getEbmlVintLength(buffer.get(offset + idLength));
+		if (sizeLength < 1 || offset + idLength + sizeLength > buffer.limit()) return null;
+
+		// The size does not contain the length marker bit.
+		long size = buffer.get(offset + idLength) & (0xFF >> sizeLength);
+		boolean isUnknown = size == (0xFF >> sizeLength);
+		for (int i = 1; i < sizeLength; i++) {
+			int sizeByte = buffer.get(offset + idLength + i) & 0xFF;
+			size = (size << 8) | sizeByte;
+			isUnknown &= sizeByte == 0xFF;
+		}
+
+		return new long[] {id, offset + idLength + sizeLength, isUnknown ? -1 : size};
+	}
+
+	/**
+	 * @param firstByte First byte of an EBML variable size integer
+	 * @return Number of bytes of the integer or 0 if invalid
+	 */
+	private static int getEbmlVintLength(byte firstByte) {
+		int value = firstByte & 0xFF;
+		for (int length = 1; length <= 8; length++) {
+			if ((value & (0x80 >> (length - 1))) != 0) return length;
+		}
+		return 0;
+	}
+
+	/*
+	 * AVI
+	 */
+
+	/**
+	 * Reads the frame duration and frame count from the main AVI header.
+	 * The OpenDML extended header overrides the frame count of files larger than 1 GB.
+	 *
+	 * @param channel Open file
+	 * @return Length in ms or a value <= 0
+	 * @throws IOException
+	 */
+	private static long getAviLength(FileChannel channel) throws IOException {
+		ByteBuffer hdrlHeader = read(channel, 12, 12);
+		if (hdrlHeader == null || !isFourCC(hdrlHeader, 0, "LIST") || !isFourCC(hdrlHeader, 8, "hdrl")) {
+			return MediaFile.LENGTH_INDETERMINABLE;
+		}
+
+		int hdrlSize = hdrlHeader.order(ByteOrder.LITTLE_ENDIAN).getInt(4);
+		if (hdrlSize < 4 || hdrlSize > MAX_READ_LENGTH) hdrlSize = MAX_READ_LENGTH;
+
+		ByteBuffer hdrl = read(channel, 24, (int) Math.min(hdrlSize - 4, channel.size() - 24));
+		if (hdrl == null) return MediaFile.LENGTH_INDETERMINABLE;
+		hdrl.order(ByteOrder.LITTLE_ENDIAN);
+
+		long microSecPerFrame = -1;
+		long totalFrames = -1;
+		long odmlTotalFrames = -1;
+
+		for (int position = 0; position + 8 <= hdrl.limit(); ) {
+			int chunkSize = hdrl.getInt(position + 4);
+			if (chunkSize < 0) break;
+
+			if (isFourCC(hdrl, position, "avih") && position + 8 + 20 <= hdrl.limit()) {
+				microSecPerFrame = hdrl.getInt(position + 8) & 0xFFFFFFFFl;
+				totalFrames = hdrl.getInt(position + 8 + 16) & 0xFFFFFFFFl;
+			} else if (isFourCC(hdrl, position, "LIST") && position + 12 <= hdrl.limit()
+					&& isFourCC(hdrl, position + 8, "odml")) {
+				// Look into the OpenDML list instead of skipping it.
+				if (position + 24 <= hdrl.limit() && isFourCC(hdrl, position + 12, "dmlh")) {
+					odmlTotalFrames = hdrl.getInt(position + 20) & 0xFFFFFFFFl;
+				}
+			}
+
+			// Chunks are padded to an even size.
+			position += 8 + chunkSize + (chunkSize & 1);
+		}
+
+		if (odmlTotalFrames > totalFrames) totalFrames = odmlTotalFrames;
+		if (microSecPerFrame <= 0 || totalFrames <= 0) return MediaFile.LENGTH_INDETERMINABLE;
+		return microSecPerFrame * totalFrames / 1000l;
+	}
+
+	/*
+	 * FLV
+	 */
+
+	/**
+	 * Byte sequence of the AMF0 key "duration", followed by the number type marker
+	 */
+	private static final byte[] FLV_DURATION_KEY = {0x00, 0x08, 'd', 'u', 'r', 'a', 't', 'i', 'o', 'n', 0x00};
+
+	/**
+	 * Reads the duration value from the onMetaData script tag.
+	 *
+	 * @param channel Open file
+	 * @return Length in ms or a value <= 0
+	 * @throws IOException
+	 */
+	private static long getFlvLength(FileChannel channel) throws IOException {
+		ByteBuffer header = read(channel, 0, 9);
+		if (header == null) return MediaFile.LENGTH_INDETERMINABLE;
+
+		// Header, previous tag size 0, first tag header.
+		long tagPosition = (header.getInt(5) & 0xFFFFFFFFl) + 4;
+		ByteBuffer tagHeader = read(channel, tagPosition, 11);
+		if (tagHeader == null || tagHeader.get(0) != 18) return MediaFile.LENGTH_INDETERMINABLE;
+
+		int dataSize = ((tagHeader.get(1) & 0xFF) << 16) | ((tagHeader.get(2) & 0xFF) << 8) | (tagHeader.get(3) & 0xFF);
+		ByteBuffer data = read(channel, tagPosition + 11, Math.min(dataSize, MAX_READ_LENGTH));
+		if (data == null) return MediaFile.LENGTH_INDETERMINABLE;
+
+		for (int i = 0; i + FLV_DURATION_KEY.length + 8 <= data.limit(); i++) {
+			boolean matches = true;
+			for (int j = 0; j < FLV_DURATION_KEY.length && matches; j++) {
+				matches = data.get(i + j) == FLV_DURATION_KEY[j];
+			}
+			if (matches) {
+				double seconds = data.getDouble(i + FLV_DURATION_KEY.length);
+				return (long) (seconds * 1000d);
+			}
+		}
+		return MediaFile.LENGTH_INDETERMINABLE;
+	}
+
+	/*
+	 * HELPER
+	 */
+
+	/**
+	 * Reads a number of bytes at a position without moving the channel.
+	 *
+	 * @param channel Open file
+	 * @param position Position of the first byte
+	 * @param length Number of bytes, at most MAX_READ_LENGTH
+	 * @return Big-endian buffer with exactly the requested bytes or null, if the file is too short
+	 * @throws IOException
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		if (length > MAX_READ_LENGTH) return null;
+		return readTable(channel, position, length);
+	}
+
+	/**
+	 * Reads a table that may be larger than MAX_READ_LENGTH.
+	 *
+	 * @param channel Open file
+	 * @param position Position of the first byte
+	 * @param length Number of bytes, at most MAX_TABLE_LENGTH
+	 * @return Big-endian buffer with exactly the requested bytes or null, if the file is too short
+	 * @throws IOException
+	 */
+	private static ByteBuffer readTable(FileChannel channel, long position, int length) throws IOException {
+		if (position < 0 || length <= 0 || length > MAX_TABLE_LENGTH) return null;
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			int bytesRead = channel.read(buffer, position + buffer.position());
+			if (bytesRead < 0) return null;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @param buffer Buffer containing the value
+	 * @param length Number of bytes of the big-endian value at the start of the buffer
+	 * @return Unsigned value
+	 */
+	private static long readUnsigned(ByteBuffer buffer, int length) {
+		return readUnsigned(buffer, 0, length);
+	}
+
+	/**
+	 * @param buffer Buffer containing the value
+	 * @param offset Position of the value in the buffer
+	 * @param length Number of bytes of the big-endian value
+	 * @return Unsigned value
+	 */
+	private static long readUnsigned(ByteBuffer buffer, int offset, int length) {
+		long value = 0l;
+		for (int i = 0; i < length; i++) {
+			value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * @param buffer Buffer to compare
+	 * @param position Index of the first character
+	 * @param fourCC Four ASCII characters
+	 * @return True, if the buffer contains the given characters at the given position
+	 */
+	private static boolean isFourCC(ByteBuffer buffer, int position, String fourCC) {
+		if (position + 4 > buffer.limit()) return false;
+		for (int i = 0; i < 4; i++) {
+			if (buffer.get(position + i) != fourCC.charAt(i)) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only list of analysed media files that is backed by a memory-mapped binary index file.
+ * Opening an index only validates its header and the bounds of its tables;
+ * media file objects are created the first time they are requested, and only then are their paths checked.
+ *
+ * File layout, all values big-endian:
+ * Header:		magic (int), version (int), record count (int), record size (int),
+ * 				path table length (long), keyframe count (int), CRC32 of the previous 28 bytes (int)
+ * Records:		length (long), file size (long), last modified (long), path offset (int), path length (int),
+ * 				index of the first keyframe (int), keyframe count (int)
+ * Keyframes:	keyframe times in ms (int) of all records
+ * Path table:	UTF-8 bytes of all paths, each distinct path is only stored once
+ *
+ * Index files of an older version are rejected, so that their directory is analysed again.
+ *
+ * A written index file is never replaced, because a file that is still mapped cannot be replaced or deleted on Windows.
+ * Every write creates the next generation "[index file name].[generation]" and deletes the older generations;
+ * generations that are still mapped are deleted by a later write.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class MediaIndex extends AbstractList<MediaFile> implements RandomAccess {
+
+	/**
+	 * First bytes of every index file: "VCHI"
+	 */
+	private static final int MAGIC = 0x56434849;
+
+	/**
+	 * Version of the file layout written by this class
+	 */
+	private static final int VERSION = 2;
+
+	/**
+	 * Size of the header in bytes
+	 */
+	private static final int HEADER_SIZE = 32;
+
+	/**
+	 * Number of header bytes covered by the header checksum
+	 */
+	private static final int HEADER_CHECKSUM_OFFSET = 28;
+
+	/**
+	 * Size of one fixed-width media file record in bytes
+	 */
+	private static final int RECORD_SIZE = 40;
+
+	/**
+	 * Size of one keyframe time in bytes
+	 */
+	private static final int KEYFRAME_SIZE = 4;
+
+	/**
+	 * Encoding of the path table
+	 */
+	private static final Charset PATH_CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * Read-only mapping of the entire index file
+	 */
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * Number of records in the index
+	 */
+	private final int recordCount;
+
+	/**
+	 * Number of keyframe times of all records
+	 */
+	private final int keyframeCount;
+
+	/**
+	 * Position of the first keyframe time in the file
+	 */
+	private final int keyframeTableOffset;
+
+	/**
+	 * Position of the first path table byte in the file
+	 */
+	private final int pathTableOffset;
+
+	/**
+	 * Length of the path table in bytes
+	 */
+	private final int pathTableLength;
+
+	/**
+	 * Media files that have already been created from their records
+	 */
+	private final AtomicReferenceArray<MediaFile> mediaFiles;
+
+	/**
+	 * Constructor
+	 * Only called after the header has been validated.
+	 * @param buffer Mapped index file
+	 * @param recordCount Number of records
+	 * @param keyframeCount Number of keyframe times
+	 * @param pathTableLength Length of the path table in bytes
+	 */
+	private MediaIndex(MappedByteBuffer buffer, int recordCount, int keyframeCount, int pathTableLength) {
+		this.buffer = buffer;
+		this.recordCount = recordCount;
+		this.keyframeCount = keyframeCount;
+		this.keyframeTableOffset = HEADER_SIZE + recordCount * RECORD_SIZE;
+		this.pathTableOffset = keyframeTableOffset + keyframeCount * KEYFRAME_SIZE;
+		this.pathTableLength = pathTableLength;
+		this.mediaFiles = new AtomicReferenceArray<MediaFile>(recordCount);
+	}
+
+	/**
+	 * @param indexFile Name of the index file, without generation
+	 * @return True, if there is an index file of any generation
+	 */
+	public static boolean exists(File indexFile) {
+		return indexFile.isFile() || findGenerations(indexFile).length > 0;
+	}
+
+	/**
+	 * Maps the newest valid generation of an index file into memory and validates it.
+	 * Index files that have been written without a generation by an older version are read as well.
+	 * @param indexFile Name of the index file, without generation
+	 * @return Media files in the order in which they were written
+	 * @throws IOException If no generation can be read or is a valid index of this version
+	 */
+	public static MediaIndex open(File indexFile) throws IOException {
+		long[] generations = findGenerations(indexFile);
+		IOException lastException = null;
+		for (int i = generations.length - 1; i >= 0; i--) {
+			try {
+				return openFile(getGenerationFile(indexFile, generations[i]));
+			} catch (IOException e) {
+				// An interrupted write leaves an invalid generation behind; the previous one is still complete.
+				lastException = e;
+			}
+		}
+		if (indexFile.isFile()) return openFile(indexFile);
+		if (lastException != null) throw lastException;
+		throw new IOException("No index file " + indexFile + ".");
+	}
+
+	/**
+	 * Deletes all generations of an index file that are not mapped anymore.
+	 * @param indexFile Name of the index file, without generation
+	 */
+	public static void delete(File indexFile) {
+		for (long generation : findGenerations(indexFile)) getGenerationFile(indexFile, generation).delete();
+		indexFile.delete();
+	}
+
+	/**
+	 * @param indexFile Name of the index file, without generation
+	 * @return Generations of the index file that exist, in ascending order
+	 */
+	private static long[] findGenerations(File indexFile) {
+		File directory = indexFile.getAbsoluteFile().getParentFile();
+		String[] names = directory == null ? null : directory.list();
+		if (names == null) return new long[0];
+
+		String prefix = indexFile.getName() + ".";
+		long[] generations = new long[names.length];
+		int generationCount = 0;
+		for (String name : names) {
+			if (!name.startsWith(prefix) || name.length() == prefix.length()) continue;
+			try {
+				long generation = Long.parseLong(name.substring(prefix.length()));
+				if (generation >= 0l) generations[generationCount++] = generation;
+			} catch (NumberFormatException e) {
+				// Not a generation of this index.
+			}
+		}
+		generations = Arrays.copyOf(generations, generationCount);
+		Arrays.sort(generations);
+		return generations;
+	}
+
+	/**
+	 * @param indexFile Name of the index file, without generation
+	 * @param generation Number of the generation
+	 * @return File of this generation
+	 */
+	private static File getGenerationFile(File indexFile, long generation) {
+		return new File(indexFile.getPath() + "." + generation);
+	}
+
+	/**
+	 * Maps one index file into memory and validates its header and the bounds of its tables.
+	 * @param file Binary index file
+	 * @return Media files in the order in which they were written
+	 * @throws IOException If the file cannot be read or is not a valid index of this version
+	 */
+	private static MediaIndex openFile(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			long fileLength = channel.size();
+			if (fileLength < HEADER_SIZE || fileLength > Integer.MAX_VALUE) {
+				throw new IOException("Invalid index file length " + fileLength + ".");
+			}
+
+			// The mapping stays valid after the channel has been closed.
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+
+			if (buffer.getInt(0) != MAGIC) {
+				throw new IOException("Not a media index file.");
+			}
+
+			if (buffer.getInt(HEADER_CHECKSUM_OFFSET) != headerChecksum(buffer)) {
+				throw new IOException("Index header checksum mismatch.");
+			}
+
+			int version = buffer.getInt(4);
+			if (version != VERSION) {
+				throw new IOException("Unsupported index version " + version + ".");
+			}
+
+			int recordCount = buffer.getInt(8);
+			int recordSize = buffer.getInt(12);
+			long pathTableLength = buffer.getLong(16);
+			int keyframeCount = buffer.getInt(24);
+			if (recordCount < 0 || recordSize != RECORD_SIZE || keyframeCount < 0
+					|| HEADER_SIZE + (long) recordCount * RECORD_SIZE + (long) keyframeCount * KEYFRAME_SIZE
+							+ pathTableLength != fileLength) {
+				throw new IOException("Index header does not match the file length.");
+			}
+
+			// Records are only read when their media file is requested, see get().
+			return new MediaIndex(buffer, recordCount, keyframeCount, (int) pathTableLength);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Writes the given media files into the next generation of an index file and deletes the older generations.
+	 * The header is written last, so that readers reject a partial index and open the previous generation.
+	 * @param indexFile Name of the index file, without generation
+	 * @param mediaFiles Analysed media files
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void write(File indexFile, List<MediaFile> mediaFiles) throws IOException {
+		int recordCount = mediaFiles.size();
+
+		// Intern the paths, so that each distinct path is only stored once.
+		HashMap<String, Integer> pathOffsets = new HashMap<String, Integer>();
+		byte[][] pathBytes = new byte[recordCount][];
+		int[] recordPathOffsets = new int[recordCount];
+		int[] recordPathLengths = new int[recordCount];
+		long pathTableLength = 0l;
+
+		for (int i = 0; i < recordCount; i++) {
+			String path = mediaFiles.get(i).path;
+			pathBytes[i] = path.getBytes(PATH_CHARSET);
+			recordPathLengths[i] = pathBytes[i].length;
+
+			Integer pathOffset = pathOffsets.get(path);
+			if (pathOffset == null) {
+				pathOffset = (int) pathTableLength;
+				pathOffsets.put(path, pathOffset);
+				pathTableLength += pathBytes[i].length;
+			} else {
+				// Already stored, do not write these bytes again.
+				pathBytes[i] = null;
+			}
+			recordPathOffsets[i] = pathOffset;
+		}
+
+		// Keyframe times of all records, one after another.
+		long keyframeCount = 0l;
+		for (int i = 0; i < recordCount; i++) {
+			long[] keyframeTimes = mediaFiles.get(i).keyframeTimes;
+			if (keyframeTimes != null) keyframeCount += keyframeTimes.length;
+		}
+
+		long fileLength = HEADER_SIZE + (long) recordCount * RECORD_SIZE + keyframeCount * KEYFRAME_SIZE + pathTableLength;
+		if (fileLength > Integer.MAX_VALUE) {
+			throw new IOException("Too many media files for one index file.");
+		}
+
+		long[] generations = findGenerations(indexFile);
+		long generation = generations.length == 0 ? 0l : generations[generations.length - 1] + 1l;
+		RandomAccessFile randomAccessFile = new RandomAccessFile(getGenerationFile(indexFile, generation), "rw");
+		try {
+			randomAccessFile.setLength(fileLength);
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
+
+			int keyframeTableOffset = HEADER_SIZE + recordCount * RECORD_SIZE;
+			int pathTableOffset = keyframeTableOffset + (int) keyframeCount * KEYFRAME_SIZE;
+			int keyframeIndex = 0;
+			for (int i = 0; i < recordCount; i++) {
+				MediaFile mediaFile = mediaFiles.get(i);
+				int recordOffset = HEADER_SIZE + i * RECORD_SIZE;
+				buffer.putLong(recordOffset, mediaFile.length);
+				buffer.putLong(recordOffset + 8, mediaFile.fileSize);
+				buffer.putLong(recordOffset + 16, mediaFile.lastModified);
+				buffer.putInt(recordOffset + 24, recordPathOffsets[i]);
+				buffer.putInt(recordOffset + 28, recordPathLengths[i]);
+
+				long[] keyframeTimes = mediaFile.keyframeTimes;
+				int recordKeyframeCount = keyframeTimes == null ? 0 : keyframeTimes.length;
+				buffer.putInt(recordOffset + 32, keyframeIndex);
+				buffer.putInt(recordOffset + 36, recordKeyframeCount);
+				for (int k = 0; k < recordKeyframeCount; k++) {
+					buffer.putInt(keyframeTableOffset + (keyframeIndex + k) * KEYFRAME_SIZE, (int) keyframeTimes[k]);
+				}
+				keyframeIndex += recordKeyframeCount;
+
+				if (pathBytes[i] != null) {
+					buffer.position(pathTableOffset + recordPathOffsets[i]);
+					buffer.put(pathBytes[i]);
+				}
+			}
+
+			buffer.force();
+
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, recordCount);
+			buffer.putInt(12, RECORD_SIZE);
+			buffer.putLong(16, pathTableLength);
+			buffer.putInt(24, (int) keyframeCount);
+			buffer.putInt(HEADER_CHECKSUM_OFFSET, headerChecksum(buffer));
+			buffer.force();
+		} finally {
+			randomAccessFile.close();
+		}
+
+		// Older generations may still be mapped by their readers; those stay until the next write.
+		for (long oldGeneration : generations) getGenerationFile(indexFile, oldGeneration).delete();
+		indexFile.delete();
+	}
+
+	/**
+	 * @param buffer Buffer containing an index header
+	 * @return CRC32 value of all header fields in front of the checksum
+	 */
+	private static int headerChecksum(ByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < HEADER_CHECKSUM_OFFSET; i++) {
+			crc.update(buffer.get(i));
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Creates the media file of a record, if this has not happened before.
+	 * Threads that request the same record at the same time all receive the media file that was stored first.
+	 * A record whose path lies outside of the path table gets an empty path, which cannot be played.
+	 * @param index Record number
+	 * @return Media file with an ID that equals its record number
+	 */
+	@Override
+	public MediaFile get(int index) {
+		if (index < 0 || index >= recordCount) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + recordCount);
+		}
+
+		MediaFile mediaFile = mediaFiles.get(index);
+		if (mediaFile == null) {
+			int recordOffset = HEADER_SIZE + index * RECORD_SIZE;
+			mediaFile = new MediaFile();
+			mediaFile.id = index;
+			mediaFile.length = buffer.getLong(recordOffset);
+			mediaFile.fileSize = buffer.getLong(recordOffset + 8);
+			mediaFile.lastModified = buffer.getLong(recordOffset + 16);
+
+			int pathOffset = buffer.getInt(recordOffset + 24);
+			int pathLength = buffer.getInt(recordOffset + 28);
+			if (pathOffset < 0 || pathLength < 0 || pathOffset > pathTableLength - pathLength) {
+				Log.warning("Index record " + index + " points outside of the path table.");
+				mediaFile.path = "";
+			} else {
+				byte[] pathBytes = new byte[pathLength];
+				ByteBuffer pathBuffer = buffer.duplicate();
+				pathBuffer.position(pathTableOffset + pathOffset);
+				pathBuffer.get(pathBytes);
+				mediaFile.path = new String(pathBytes, PATH_CHARSET);
+			}
+
+			int firstKeyframe = buffer.getInt(recordOffset + 32);
+			int recordKeyframeCount = buffer.getInt(recordOffset + 36);
+			if (recordKeyframeCount > 0 && firstKeyframe >= 0 && firstKeyframe <= keyframeCount - recordKeyframeCount) {
+				mediaFile.keyframeTimes = new long[recordKeyframeCount];
+				for (int k = 0; k < recordKeyframeCount; k++) {
+					mediaFile.keyframeTimes[k] = buffer.getInt(keyframeTableOffset + (firstKeyframe + k) * KEYFRAME_SIZE);
+				}
+			}
+
+			if (!mediaFiles.compareAndSet(index, null, mediaFile)) mediaFile = mediaFiles.get(index);
+		}
+		return mediaFile;
+	}
+
+	/**
+	 * @return Number of records in this index
+	 */
+	@Override
+	public int size() {
+		return recordCount;
+	}
+}
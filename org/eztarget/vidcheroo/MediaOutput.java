@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.eztarget.vidcheroo;
+
+import java.util.Random;
+
+/**
+ * One video output: a media frame, usually on its own screen, with its own choice of media files and start times.
+ * All outputs are switched by the same play thread on the same beat grid, so that their cuts stay phase-aligned;
+ * an output may use its own note length, which is then a multiple or a fraction of the others.
+ * Counts its cuts, the switches it missed and the latency from the beat to the play call.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class MediaOutput {
+
+	/**
+	 * Note length index of outputs that follow the Engine's note length
+	 */
+	public static final int FOLLOW_NOTE_LENGTH = -1;
+
+	/**
+	 * Number of the output, starting with 1 for the main output
+	 */
+	private final int number;
+
+	/**
+	 * Frame that shows the media files of this output; null for outputs without a frame
+	 */
+	private final MediaFrame mediaFrame;
+	
+	/**
+	 * Player of the media files; the media frame, unless this output has no frame
+	 */
+	private final OutputPlayer player;
+
+	/**
+	 * Chooses the media files of this output; null to use the media selector of the MediaFileParser
+	 */
+	private final MediaSelector selector;
+
+	/**
+	 * Chooses the start times of this output
+	 */
+	private final Random startTimeRandom;
+
+	/**
+	 * Index of the note length in NoteLength class; FOLLOW_NOTE_LENGTH to use the Engine's
+	 */
+	private final int noteLengthIndex;
+
+	/**
+	 * Scheduled switch time to the play call of this output
+	 */
+	private final LatencyHistogram latency;
+
+	/**
+	 * Number of shown media files
+	 */
+	private volatile long cutCount = 0l;
+
+	/**
+	 * Number of shown media files that were not due on the beat grid: the first one, manual cuts and clock ticks
+	 */
+	private volatile long manualCutCount = 0l;
+
+	/**
+	 * Number of switches on the beat grid that were missed, because the play thread was late or nothing was pre-rolled
+	 */
+	private volatile long droppedCount = 0l;
+
+	/**
+	 * Currently visible media file; only used by the play thread
+	 */
+	MediaFile mediaFile = null;
+
+	/**
+	 * Value in ms at which the visible media file started; only used by the play thread
+	 */
+	long startTime = 0l;
+
+	/**
+	 * Pre-rolled media file; only used by the play thread
+	 */
+	MediaFile nextMediaFile = null;
+
+	/**
+	 * Value in ms at which the pre-rolled media file will start; only used by the play thread
+	 */
+	long nextStartTime = 0l;
+
+	/**
+	 * True, if the last cut showed a new media file; only used by the play thread
+	 */
+	boolean didSwitch = false;
+
+	/**
+	 * Time stamp in ns of the last cut; only used by the play thread
+	 */
+	long switchNanos = 0l;
+
+	/**
+	 * Time stamp in ns at which the visible media file ends or is reset; only used by the play thread
+	 */
+	long clipEndNanos = 0l;
+
+	/**
+	 * Time stamp in ns of the next switch of this output; only used by the play thread
+	 */
+	long deadline = 0l;
+
+	/**
+	 * Constructor
+	 * @param number Number of the output, starting with 1 for the main output
+	 * @param mediaFrame Double-buffered frame that shows the media files
+	 * @param selector Chooses the media files; null to use the media selector of the MediaFileParser
+	 * @param startTimeRandom Chooses the start times
+	 * @param noteLengthIndex Index in NoteLength class; FOLLOW_NOTE_LENGTH to use the Engine's note length
+	 */
+	public MediaOutput(int number, MediaFrame mediaFrame, MediaSelector selector, Random startTimeRandom, int noteLengthIndex) {
+		this(number, mediaFrame, mediaFrame, selector, startTimeRandom, noteLengthIndex);
+	}
+	
+	/**
+	 * Constructor of an output without a frame, e.g. with a stand-in player that does not need VLC or a display
+	 * @param number Number of the output, starting with 1 for the main output
+	 * @param player Shows the media files
+	 * @param selector Chooses the media files; null to use the media selector of the MediaFileParser
+	 * @param startTimeRandom Chooses the start times
+	 * @param noteLengthIndex Index in NoteLength class; FOLLOW_NOTE_LENGTH to use the Engine's note length
+	 */
+	MediaOutput(int number, OutputPlayer player, MediaSelector selector, Random startTimeRandom, int noteLengthIndex) {
+		this(number, null, player, selector, startTimeRandom, noteLengthIndex);
+	}
+	
+	/**
+	 * @param number Number of the output, starting with 1 for the main output
+	 * @param mediaFrame Frame that shows the media files; null for outputs without a frame
+	 * @param player Shows the media files
+	 * @param selector Chooses the media files; null to use the media selector of the MediaFileParser
+	 * @param startTimeRandom Chooses the start times
+	 * @param noteLengthIndex Index in NoteLength class; FOLLOW_NOTE_LENGTH to use the Engine's note length
+	 */
+	private MediaOutput(
+			int number,
+			MediaFrame mediaFrame,
+			OutputPlayer player,
+			MediaSelector selector,
+			Random startTimeRandom,
+			int noteLengthIndex
+			) {
+		this.number = number;
+		this.mediaFrame = mediaFrame;
+		this.player = player;
+		this.selector = selector;
+		this.startTimeRandom = startTimeRandom;
+		this.noteLengthIndex = noteLengthIndex;
+		latency = new LatencyHistogram("Output " + number + " beat to call");
+	}
+
+	/**
+	 * @return Note length multiplier of this output, see NoteLength class
+	 */
+	public float getTempoMultiplier() {
+		if (noteLengthIndex == FOLLOW_NOTE_LENGTH) return Engine.getTempoMultiplier();
+		return NoteLength.tempoMultipliers[noteLengthIndex];
+	}
+
+	/**
+	 * Chooses the next media file and its start time and opens it in the hidden player.
+	 * @param switchLength Length in ms of one switch of this output
+	 * @return False, if there are no media files, e.g. because all of them have been deleted
+	 */
+	boolean prerollNext(long switchLength) {
+		MediaSelector outputSelector = selector == null ? MediaFileParser.getMediaSelector() : selector;
+		nextMediaFile = MediaFileParser.getRandomMediaFile(outputSelector);
+		if (nextMediaFile == null) return false;
+		
+		MediaPrefetcher.request(outputSelector);
+		
+		nextStartTime = Engine.getStartTime(nextMediaFile, startTimeRandom, switchLength);
+		player.prepareMediaFilePath(nextMediaFile.path, nextStartTime);
+		return true;
+	}
+
+	/**
+	 * Shows the pre-rolled media file.
+	 * If nothing could be pre-rolled, the visible media file stays and the switch is counted as missed.
+	 * @param beatDeadline Time stamp in ns of the switch on the beat grid; 0 for manual switches
+	 * @param moduloLength Length in ms that short media files are rhythmically looped with
+	 * @return Time value in ms at which the media file will be reset to the start
+	 */
+	long cut(long beatDeadline, long moduloLength) {
+		if (nextMediaFile == null) {
+			// Try again one note later.
+			droppedCount++;
+			didSwitch = false;
+			switchNanos = System.nanoTime();
+			clipEndNanos = switchNanos + Math.max(1l, moduloLength) * 1000000l;
+			return moduloLength;
+		}
+		
+		didSwitch = true;
+		if (beatDeadline > 0l) latency.record(System.nanoTime() - beatDeadline);
+		else manualCutCount++;
+		if (!player.playPreparedMedia()) droppedCount++;
+		switchNanos = System.nanoTime();
+		cutCount++;
+
+		mediaFile = nextMediaFile;
+		startTime = nextStartTime;
+		long repeatTime = Engine.getRepeatTime(mediaFile.length, startTime, moduloLength);
+		clipEndNanos = switchNanos + repeatTime * 1000000l;
+		return repeatTime;
+	}
+
+	/**
+	 * Counts the switches of this output on the beat grid between a reached deadline and the last cut.
+	 * @param scheduler Beat grid of the play thread
+	 * @param beatDeadline Time stamp in ns of the switch on the beat grid that caused the last cut
+	 */
+	void countMissedSwitches(BeatScheduler scheduler, long beatDeadline) {
+		float tempoMultiplier = getTempoMultiplier();
+		long missedDeadline = scheduler.getSwitchDeadlineAfter(beatDeadline, tempoMultiplier);
+		while (missedDeadline <= switchNanos) {
+			droppedCount++;
+			missedDeadline = scheduler.getSwitchDeadlineAfter(missedDeadline, tempoMultiplier);
+		}
+	}
+
+	/**
+	 * Pauses the visible media file.
+	 */
+	void pause() {
+		player.pause();
+	}
+	
+	/**
+	 * Stops all media files of this output.
+	 */
+	void stop() {
+		player.stop();
+	}
+	
+	/**
+	 * @return Frame that shows the media files of this output; null for outputs without a frame
+	 */
+	public MediaFrame getMediaFrame() {
+		return mediaFrame;
+	}
+
+	/**
+	 * @return Number of the output, starting with 1 for the main output
+	 */
+	public int getNumber() {
+		return number;
+	}
+
+	/**
+	 * @return Number of shown media files
+	 */
+	public long getCutCount() {
+		return cutCount;
+	}
+
+	/**
+	 * @return Number of shown media files that were not due on the beat grid
+	 */
+	public long getManualCutCount() {
+		return manualCutCount;
+	}
+
+	/**
+	 * @return Number of missed switches
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * @return Latency from the scheduled switch to the play call
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return One line with the counters and latency of this output
+	 */
+	public String getSummary() {
+		return "Output " + number + " cuts=" + cutCount + " manual=" + manualCutCount + " dropped=" + droppedCount + ", " + latency.getSummary();
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the media path for created, modified and deleted files
+ * and lets the parser update the affected media files without interrupting playback.
+ * Events are collected until the directory has been quiet for a moment, then handled as one batch.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class MediaPathWatcher {
+
+	/**
+	 * Time in ms without new events after which a batch of changes is handled
+	 */
+	private static final long DEBOUNCE_TIME = 1000l;
+
+	/**
+	 * Longest time in ms that changes are held back while events keep arriving
+	 */
+	private static final long MAX_BATCH_DELAY = 10000l;
+
+	/**
+	 * Watch service of the currently watched directory; null if nothing is watched
+	 */
+	private static WatchService watchService = null;
+
+	/**
+	 * Absolute path of the currently watched directory
+	 */
+	private static String watchedPath = null;
+
+	/**
+	 * Starts watching a media directory.
+	 * A previously watched directory will not be watched anymore.
+	 * @param mediaPath Absolute path to the media directory
+	 */
+	public static synchronized void watch(String mediaPath) {
+		if (mediaPath == null) return;
+		if (watchService != null && mediaPath.equals(watchedPath)) return;
+
+		stop();
+
+		final Path directory = Paths.get(mediaPath);
+		final WatchService fWatchService;
+		try {
+			fWatchService = FileSystems.getDefault().newWatchService();
+			directory.register(
+					fWatchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE
+					);
+		} catch (IOException e) {
+			Log.error("Cannot watch media path " + mediaPath + ".", e);
+			return;
+		}
+
+		watchService = fWatchService;
+		watchedPath = mediaPath;
+		Log.info("Watching media path " + mediaPath + ".");
+
+		Thread watchThread = new Thread("Vidcheroo Media Path Watcher") {
+			public void run() {
+				// Names of all files that changed since the last batch.
+				HashSet<String> changedFileNames = new HashSet<String>();
+				boolean didOverflow = false;
+				long firstChangeTime = 0l;
+
+				try {
+					while (true) {
+						WatchKey key;
+						if (changedFileNames.isEmpty() && !didOverflow) {
+							key = fWatchService.take();
+						} else {
+							key = fWatchService.poll(DEBOUNCE_TIME, TimeUnit.MILLISECONDS);
+						}
+
+						if (key != null) {
+							if (changedFileNames.isEmpty() && !didOverflow) firstChangeTime = System.currentTimeMillis();
+
+							for (WatchEvent<?> event : key.pollEvents()) {
+								if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+									didOverflow = true;
+								} else {
+									changedFileNames.add(((Path) event.context()).getFileName().toString());
+								}
+							}
+
+							if (!key.reset()) {
+								Log.warning("Media path " + directory + " cannot be watched anymore.");
+								break;
+							}
+
+							// Keep collecting, unless events have been arriving for too long.
+							if (System.currentTimeMillis() - firstChangeTime < MAX_BATCH_DELAY) continue;
+						}
+
+						// The directory has been quiet, handle the batch.
+						// Changes are kept, if the parser is busy with another analysis.
+						if (MediaFileParser.updateMediaFiles(changedFileNames, didOverflow)) {
+							changedFileNames.clear();
+							didOverflow = false;
+						}
+					}
+				} catch (InterruptedException e) {
+					Log.warning("Interrupted while watching media path " + directory + ".", e);
+				} catch (ClosedWatchServiceException e) {
+					// Watching has been stopped.
+				}
+				Log.info("Stopped watching media path " + directory + ".");
+			}
+		};
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	/**
+	 * Stops watching the current media directory.
+	 */
+	public static synchronized void stop() {
+		if (watchService == null) return;
+
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			Log.error("Could not close the media path watcher.", e);
+		}
+		watchService = null;
+		watchedPath = null;
+	}
+}
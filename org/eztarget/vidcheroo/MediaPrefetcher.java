@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads the start of the media files in the lookahead queues of the media selectors,
+ * so that the operating system has them cached when a player opens them on the beat.
+ * Outputs request a prefetch after every pre-roll; the request never blocks and the reading happens
+ * on a daemon thread of low priority. Files that have been read recently are not read again.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class MediaPrefetcher {
+
+	/**
+	 * Number of bytes that are read from the start of every file
+	 */
+	private static final int PREFETCH_LENGTH = 256 * 1024;
+
+	/**
+	 * Size of the read buffer in bytes
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Number of media selectors whose requests can wait at the same time; further requests are dropped
+	 */
+	private static final int MAX_PENDING_SELECTORS = 8;
+
+	/**
+	 * Number of upcoming files that are read per media selector
+	 */
+	private static final int MAX_UPCOMING_FILES = 8;
+
+	/**
+	 * Number of prefetched paths that are remembered
+	 */
+	private static final int RECENT_PATH_COUNT = 32;
+
+	/**
+	 * Media selectors whose upcoming files have changed; empty slots are null
+	 */
+	private static final AtomicReferenceArray<MediaSelector> pendingSelectors =
+			new AtomicReferenceArray<MediaSelector>(MAX_PENDING_SELECTORS);
+
+	/**
+	 * Lock for starting the prefetch thread
+	 */
+	private static final Object THREAD_LOCK = new Object();
+
+	/**
+	 * Prefetch thread; null until the first request
+	 */
+	private static volatile Thread prefetchThread = null;
+
+	/**
+	 * Upcoming files of the selector that is being handled; only used by the prefetch thread
+	 */
+	private static final MediaFile[] upcomingFiles = new MediaFile[MAX_UPCOMING_FILES];
+
+	/**
+	 * Ring of the recently prefetched paths; only used by the prefetch thread
+	 */
+	private static final String[] recentPaths = new String[RECENT_PATH_COUNT];
+
+	/**
+	 * Number of prefetched files, used as position in recentPaths; only used by the prefetch thread
+	 */
+	private static long prefetchedCount = 0l;
+
+	/**
+	 * Reused read buffer; only used by the prefetch thread
+	 */
+	private static final byte[] buffer = new byte[BUFFER_SIZE];
+
+	/**
+	 * Asks the prefetch thread to read the upcoming files of a media selector. May be called from any thread; never blocks.
+	 * @param selector Media selector whose lookahead queue has changed
+	 */
+	static void request(MediaSelector selector) {
+		if (selector == null) return;
+
+		int freeSlot = -1;
+		for (int i = 0; i < MAX_PENDING_SELECTORS; i++) {
+			MediaSelector pendingSelector = pendingSelectors.get(i);
+			if (pendingSelector == selector) {
+				freeSlot = -1;
+				break;
+			}
+			if (pendingSelector == null && freeSlot < 0) freeSlot = i;
+		}
+		// A lost race only skips one prefetch.
+		if (freeSlot >= 0) pendingSelectors.compareAndSet(freeSlot, null, selector);
+
+		LockSupport.unpark(getPrefetchThread());
+	}
+
+	/**
+	 * Only the first call takes a lock.
+	 * @return Prefetch thread; started if it is not running yet
+	 */
+	private static Thread getPrefetchThread() {
+		Thread thread = prefetchThread;
+		if (thread != null) return thread;
+
+		synchronized (THREAD_LOCK) {
+			if (prefetchThread == null) {
+				thread = new Thread("Vidcheroo Prefetcher") {
+					public void run() {
+						while (true) {
+							boolean didPrefetch = false;
+							for (int i = 0; i < MAX_PENDING_SELECTORS; i++) {
+								MediaSelector selector = pendingSelectors.getAndSet(i, null);
+								if (selector == null) continue;
+								prefetch(selector);
+								didPrefetch = true;
+							}
+							if (!didPrefetch) LockSupport.park(this);
+						}
+					}
+				};
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.start();
+				prefetchThread = thread;
+			}
+			return prefetchThread;
+		}
+	}
+
+	/*
+	 * PREFETCH THREAD
+	 */
+
+	/**
+	 * Reads the start of every upcoming file of a media selector that has not been read recently.
+	 * @param selector Media selector
+	 */
+	private static void prefetch(MediaSelector selector) {
+		int count = selector.getUpcomingFiles(upcomingFiles);
+		for (int i = 0; i < count; i++) {
+			String path = upcomingFiles[i].path;
+			upcomingFiles[i] = null;
+			if (isRecent(path)) continue;
+
+			recentPaths[(int) (prefetchedCount++ % RECENT_PATH_COUNT)] = path;
+			read(path);
+		}
+	}
+
+	/**
+	 * @param path Path of a media file
+	 * @return True, if the file is one of the recently prefetched files
+	 */
+	private static boolean isRecent(String path) {
+		for (String recentPath : recentPaths) {
+			if (path.equals(recentPath)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the first PREFETCH_LENGTH bytes of a file and discards them.
+	 * @param path Path of a media file
+	 */
+	private static void read(String path) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(path, "r");
+			int remaining = PREFETCH_LENGTH;
+			while (remaining > 0) {
+				int readLength = file.read(buffer, 0, Math.min(remaining, BUFFER_SIZE));
+				if (readLength < 0) break;
+				remaining -= readLength;
+			}
+		} catch (IOException e) {
+			// The player reports files that cannot be opened.
+			if (Log.isDebug()) Log.debug("Could not prefetch " + path + ".");
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					// Nothing has been written.
+				}
+			}
+		}
+	}
+}
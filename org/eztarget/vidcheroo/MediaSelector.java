@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Chooses the media files that are played next.
+ * In shuffle mode, every file is played once in random order before any file is repeated.
+ * In the weighted modes, files are drawn with the alias method in constant time,
+ * either proportional to their length or preferring files that have been played less often.
+ * In all modes, the last few choices are not chosen again; the window is at most half of all files.
+ * The next choices are kept in a lookahead queue, so that the MediaPrefetcher can read them ahead;
+ * a choice counts as played once next() has returned it, so choices that a rebuild discards can be chosen again.
+ * Files that are appended to the current source, e.g. while streaming an analysis, extend the tables
+ * without discarding the lookahead queue.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class MediaSelector {
+
+	/**
+	 * Selection mode: Every file once per round, in random order
+	 */
+	public static final String MODE_SHUFFLE = "shuffle";
+
+	/**
+	 * Selection mode: Longer files are chosen more often
+	 */
+	public static final String MODE_LENGTH = "length";
+
+	/**
+	 * Selection mode: Files that have been played less often are chosen more often
+	 */
+	public static final String MODE_PLAYS = "plays";
+
+	/**
+	 * Weight of files whose length could not be determined, i.e. an assumed length in ms
+	 */
+	private static final long DEFAULT_LENGTH_WEIGHT = 10000l;
+
+	/**
+	 * Number of redraws after which a recently played file is accepted in weighted modes
+	 */
+	private static final int MAX_REDRAWS = 16;
+
+	/**
+	 * Current selection mode
+	 */
+	private final String mode;
+
+	/**
+	 * Number of recently played files that are not chosen again
+	 */
+	private final int recentWindow;
+
+	/**
+	 * Number of choices that are kept ahead
+	 */
+	private final int lookahead;
+
+	/**
+	 * Random number generator of all choices
+	 */
+	private final Random random;
+
+	/**
+	 * List or array that the tables have been built for
+	 */
+	private Object source = null;
+
+	/**
+	 * Number of files in the source that the tables cover
+	 */
+	private int sourceSize = 0;
+
+	/**
+	 * Files of the source, if it is a list
+	 */
+	private List<MediaFile> fileList = null;
+
+	/**
+	 * Files of the source, if it is an array
+	 */
+	private MediaFile[] fileArray = null;
+
+	/**
+	 * Shuffle mode: Random order of file indices of the current round; the first sourceSize entries are used
+	 */
+	private int[] bag = new int[0];
+
+	/**
+	 * Shuffle mode: Position of the next index in the bag
+	 */
+	private int bagPosition = 0;
+
+	/**
+	 * Weighted modes: Probability of keeping the drawn column instead of its alias
+	 */
+	private double[] aliasProbabilities = new double[0];
+
+	/**
+	 * Weighted modes: Alternative index per column
+	 */
+	private int[] aliases = new int[0];
+
+	/**
+	 * Weighted modes: Number of files that the alias table covers; later files are drawn from the tail
+	 */
+	private int aliasSize = 0;
+
+	/**
+	 * Weighted modes: Total weight of the files in the alias table when it has been built
+	 */
+	private double aliasWeight = 0d;
+
+	/**
+	 * Weighted modes: Running total weight of the files behind the alias table, as of when they were appended
+	 */
+	private double tailWeight = 0d;
+
+	/**
+	 * Weighted modes: Running total weight up to and including every file behind the alias table
+	 */
+	private double[] tailWeightSums = new double[0];
+
+	/**
+	 * Play count mode: Number of draws since the alias table has been built
+	 */
+	private int drawsSinceBuild = 0;
+
+	/**
+	 * Ring of the files that next() returned recently, in the order of playback
+	 */
+	private final MediaFile[] recentFiles;
+
+	/**
+	 * Number of files that next() returned, used as position in recentFiles
+	 */
+	private long playedCount = 0l;
+
+	/**
+	 * Ring of the choices that have been made but not yet returned by next()
+	 */
+	private final MediaFile[] upcomingFiles;
+
+	/**
+	 * Position of the oldest choice in upcomingFiles
+	 */
+	private int upcomingStart = 0;
+
+	/**
+	 * Number of choices in upcomingFiles
+	 */
+	private int upcomingCount = 0;
+
+	/**
+	 * Constructor
+	 * @param mode MODE_SHUFFLE, MODE_LENGTH or MODE_PLAYS; unknown values are treated as MODE_SHUFFLE
+	 * @param recentWindow Number of recently played files that are not chosen again
+	 * @param lookahead Number of choices that are kept ahead
+	 * @param seed Seed of the random number generator
+	 */
+	public MediaSelector(String mode, int recentWindow, int lookahead, long seed) {
+		if (MODE_LENGTH.equals(mode)) this.mode = MODE_LENGTH;
+		else if (MODE_PLAYS.equals(mode)) this.mode = MODE_PLAYS;
+		else this.mode = MODE_SHUFFLE;
+		this.recentWindow = Math.max(0, recentWindow);
+		this.lookahead = Math.max(0, lookahead);
+		this.random = new Random(seed);
+		recentFiles = new MediaFile[this.recentWindow + 1];
+		upcomingFiles = new MediaFile[this.lookahead + 1];
+	}
+
+	/**
+	 * Returns the next choice and chooses a new one for the end of the lookahead queue.
+	 * The tables are rebuilt if the source changed or shrank since the last call and extended if it grew.
+	 * @param source List or array that identifies the current set of files
+	 * @param files Files of the source
+	 * @return Next file to play; null if there are no files
+	 */
+	public synchronized MediaFile next(Object source, List<MediaFile> files) {
+		if (source != this.source || files.size() < sourceSize) rebuild(source, files, null, files.size());
+		else if (files.size() > sourceSize) extend(files.size());
+		return next();
+	}
+
+	/**
+	 * Like next(Object, List), but for the first entries of an array that is only appended to.
+	 * @param files Array that identifies the current set of files
+	 * @param fileCount Number of valid entries in the array
+	 * @return Next file to play; null if there are no files
+	 */
+	public synchronized MediaFile next(MediaFile[] files, int fileCount) {
+		if (files != this.source || fileCount < sourceSize) rebuild(files, null, files, fileCount);
+		else if (fileCount > sourceSize) extend(fileCount);
+		return next();
+	}
+
+	/**
+	 * @return Next file to play from the current tables; null if there are no files
+	 */
+	private MediaFile next() {
+		if (sourceSize == 0) return null;
+
+		while (upcomingCount <= lookahead) {
+			MediaFile choice = choose();
+			upcomingFiles[(upcomingStart + upcomingCount) % upcomingFiles.length] = choice;
+			upcomingCount++;
+		}
+
+		MediaFile mediaFile = upcomingFiles[upcomingStart];
+		upcomingFiles[upcomingStart] = null;
+		upcomingStart = (upcomingStart + 1) % upcomingFiles.length;
+		upcomingCount--;
+
+		recentFiles[(int) (playedCount++ % recentFiles.length)] = mediaFile;
+		mediaFile.playCount++;
+		return mediaFile;
+	}
+
+	/**
+	 * Copies the files that next() will return in this order, unless the files change.
+	 * @param destination Array that receives the files; its length limits their number
+	 * @return Number of copied files
+	 */
+	public synchronized int getUpcomingFiles(MediaFile[] destination) {
+		int count = Math.min(upcomingCount, destination.length);
+		for (int i = 0; i < count; i++) destination[i] = upcomingFiles[(upcomingStart + i) % upcomingFiles.length];
+		return count;
+	}
+
+	/**
+	 * Builds the tables of the current selection mode and empties the lookahead queue.
+	 * @param source List or array that identifies the current set of files
+	 * @param fileList Files of the source, if it is a list
+	 * @param fileArray Files of the source, if it is an array
+	 * @param fileCount Number of files in the source
+	 */
+	private void rebuild(Object source, List<MediaFile> fileList, MediaFile[] fileArray, int fileCount) {
+		this.source = source;
+		this.fileList = fileList;
+		this.fileArray = fileArray;
+		sourceSize = fileCount;
+		Arrays.fill(upcomingFiles, null);
+		upcomingStart = 0;
+		upcomingCount = 0;
+
+		if (mode == MODE_SHUFFLE) {
+			bag = new int[sourceSize];
+			for (int i = 0; i < sourceSize; i++) bag[i] = i;
+			shuffleBag();
+		} else {
+			buildAliasTable();
+		}
+	}
+
+	/**
+	 * Adds the files that have been appended to the source to the tables; the lookahead queue stays.
+	 * In shuffle mode, the new files join the rest of the current round.
+	 * In the weighted modes, they are drawn from the tail until the alias table is rebuilt.
+	 * @param fileCount New number of files in the source
+	 */
+	private void extend(int fileCount) {
+		int previousSize = sourceSize;
+		sourceSize = fileCount;
+		if (mode != MODE_SHUFFLE) {
+			int tailSize = fileCount - aliasSize;
+			if (tailWeightSums.length < tailSize) {
+				tailWeightSums = Arrays.copyOf(tailWeightSums, Math.max(tailSize, tailWeightSums.length * 2));
+			}
+			for (int i = previousSize; i < fileCount; i++) {
+				tailWeight += getWeight(getFile(i));
+				tailWeightSums[i - aliasSize] = tailWeight;
+			}
+			return;
+		}
+
+		if (bag.length < fileCount) bag = Arrays.copyOf(bag, Math.max(fileCount, bag.length * 2));
+		for (int i = previousSize; i < fileCount; i++) {
+			// Inside-out Fisher-Yates step over the positions that have not been played in this round.
+			int j = bagPosition + random.nextInt(i - bagPosition + 1);
+			bag[i] = bag[j];
+			bag[j] = i;
+		}
+	}
+
+	/**
+	 * @param index Index in the source
+	 * @return File of the source
+	 */
+	private MediaFile getFile(int index) {
+		return fileArray != null ? fileArray[index] : fileList.get(index);
+	}
+
+	/**
+	 * @return Chosen file that has not been played recently, if possible
+	 */
+	private MediaFile choose() {
+		if (mode == MODE_SHUFFLE) {
+			if (bagPosition >= sourceSize) shuffleBag();
+			return getFile(bag[bagPosition++]);
+		}
+
+		int rebuildDraws = Math.max(16, sourceSize / 8);
+		if (sourceSize - aliasSize > rebuildDraws || (mode == MODE_PLAYS && drawsSinceBuild >= rebuildDraws)) {
+			buildAliasTable();
+		}
+		drawsSinceBuild++;
+
+		MediaFile choice = null;
+		for (int i = 0; i <= MAX_REDRAWS; i++) {
+			choice = tailWeight > 0d ? draw() : drawFromAliasTable();
+			if (!isRecent(choice, getRecentLimit())) break;
+		}
+		return choice;
+	}
+
+	/*
+	 * SHUFFLE BAG
+	 */
+
+	/**
+	 * Starts a new round: Fisher-Yates shuffle of the bag.
+	 * Recent choices are moved away from the start of the round,
+	 * so that the distance to their previous choice is larger than the window.
+	 */
+	private void shuffleBag() {
+		for (int i = sourceSize - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int index = bag[i];
+			bag[i] = bag[j];
+			bag[j] = index;
+		}
+		bagPosition = 0;
+
+		// Position i must not repeat the last (limit - i) choices; positions from limit on are always allowed.
+		int limit = getRecentLimit();
+		for (int i = 0; i < limit; i++) {
+			if (!isRecent(getFile(bag[i]), limit - i)) continue;
+
+			for (int j = limit; j < sourceSize; j++) {
+				if (isRecent(getFile(bag[j]), limit - i)) continue;
+				int index = bag[i];
+				bag[i] = bag[j];
+				bag[j] = index;
+				break;
+			}
+		}
+	}
+
+	/*
+	 * ALIAS METHOD
+	 */
+
+	/**
+	 * @param mediaFile File
+	 * @return Relative weight of the file in the current mode
+	 */
+	private double getWeight(MediaFile mediaFile) {
+		if (mode == MODE_LENGTH) return mediaFile.length > 0l ? mediaFile.length : DEFAULT_LENGTH_WEIGHT;
+		return 1d / (1d + mediaFile.playCount);
+	}
+
+	/**
+	 * Vose's alias method: Splits the weights into equally likely columns of at most two files each.
+	 */
+	private void buildAliasTable() {
+		int n = sourceSize;
+		aliasProbabilities = new double[n];
+		aliases = new int[n];
+		aliasSize = n;
+		aliasWeight = 0d;
+		tailWeight = 0d;
+		drawsSinceBuild = 0;
+		if (n == 0) return;
+
+		double totalWeight = 0d;
+		for (int i = 0; i < n; i++) {
+			aliasProbabilities[i] = getWeight(getFile(i));
+			totalWeight += aliasProbabilities[i];
+		}
+		aliasWeight = totalWeight;
+
+		// Scale, so that the average column is exactly 1, and sort into columns below and above.
+		int[] small = new int[n], large = new int[n];
+		int smallCount = 0, largeCount = 0;
+		for (int i = 0; i < n; i++) {
+			aliasProbabilities[i] = aliasProbabilities[i] * n / totalWeight;
+			if (aliasProbabilities[i] < 1d) small[smallCount++] = i;
+			else large[largeCount++] = i;
+		}
+
+		// Fill every small column with the remainder of a large one.
+		while (smallCount > 0 && largeCount > 0) {
+			int less = small[--smallCount];
+			int more = large[--largeCount];
+			aliases[less] = more;
+			aliasProbabilities[more] = aliasProbabilities[more] + aliasProbabilities[less] - 1d;
+			if (aliasProbabilities[more] < 1d) small[smallCount++] = more;
+			else large[largeCount++] = more;
+		}
+
+		// Rounding leftovers are full columns.
+		while (largeCount > 0) aliasProbabilities[large[--largeCount]] = 1d;
+		while (smallCount > 0) aliasProbabilities[small[--smallCount]] = 1d;
+	}
+
+	/**
+	 * @return File drawn from the alias table in constant time
+	 */
+	private MediaFile drawFromAliasTable() {
+		int column = random.nextInt(aliasSize);
+		return getFile(random.nextDouble() < aliasProbabilities[column] ? column : aliases[column]);
+	}
+
+	/**
+	 * Draws from the alias table or, in proportion to their weight, from the files behind it.
+	 * Files behind the table are found by binary search in their running weight totals.
+	 * @return Drawn file
+	 */
+	private MediaFile draw() {
+		double position = random.nextDouble() * (aliasWeight + tailWeight);
+		if (position < aliasWeight) return drawFromAliasTable();
+
+		position -= aliasWeight;
+		int low = 0, high = sourceSize - aliasSize - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (tailWeightSums[middle] > position) high = middle;
+			else low = middle + 1;
+		}
+		return getFile(aliasSize + low);
+	}
+
+	/*
+	 * RECENT FILES
+	 */
+
+	/**
+	 * @return Number of recent choices that are not chosen again; at most half of all files
+	 */
+	private int getRecentLimit() {
+		return Math.min(recentWindow, (sourceSize - 1) / 2);
+	}
+
+	/**
+	 * @param mediaFile Candidate
+	 * @param depth Number of recent choices that are compared, the upcoming ones first and then the played ones
+	 * @return True, if the file is one of the recent choices
+	 */
+	private boolean isRecent(MediaFile mediaFile, int depth) {
+		int upcomingLimit = Math.min(depth, upcomingCount);
+		for (int i = 1; i <= upcomingLimit; i++) {
+			if (isSameFile(upcomingFiles[(upcomingStart + upcomingCount - i) % upcomingFiles.length], mediaFile)) return true;
+		}
+
+		int playedLimit = (int) Math.min(depth - upcomingLimit, playedCount);
+		for (int i = 1; i <= playedLimit; i++) {
+			if (isSameFile(recentFiles[(int) ((playedCount - i) % recentFiles.length)], mediaFile)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param recentFile Recent choice
+	 * @param mediaFile Candidate
+	 * @return True, if both are the same file, also if one of them has been analysed again
+	 */
+	private static boolean isSameFile(MediaFile recentFile, MediaFile mediaFile) {
+		return recentFile == mediaFile || recentFile.path.equals(mediaFile.path);
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.Synthesizer;
+
+/**
+ * Follows the MIDI clock of a mixer or DJ software: 24 clock ticks per quarter note plus Start, Stop and Continue.
+ * Switches happen on clock ticks; every note length is a whole number of ticks, e.g. 6 ticks for 1/16th notes.
+ * The tempo is measured over the last quarter note of ticks and smoothed, so that single late ticks do not move it.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class MidiClock implements Receiver {
+
+	/**
+	 * MIDI clock ticks per quarter note
+	 */
+	public static final int TICKS_PER_QUARTER_NOTE = 24;
+
+	/**
+	 * System real-time messages
+	 */
+	private static final int STATUS_CLOCK = 0xF8;
+	private static final int STATUS_START = 0xFA;
+	private static final int STATUS_CONTINUE = 0xFB;
+	private static final int STATUS_STOP = 0xFC;
+
+	/**
+	 * Weight of a new tick interval in the smoothed interval, between 0 and 1
+	 */
+	private static final double SMOOTHING = 0.1d;
+
+	/**
+	 * Tick intervals longer than this multiple of the smoothed interval restart the measurement, e.g. after a pause
+	 */
+	private static final double MAX_INTERVAL_RATIO = 4d;
+
+	/**
+	 * Tempo difference in BPM below which the measured tempo is not passed on
+	 */
+	private static final float TEMPO_TOLERANCE = 0.5f;
+
+	/**
+	 * Clock of the configured input device; null if none is open
+	 */
+	private static MidiClock instance = null;
+
+	/**
+	 * Opened input device
+	 */
+	private static MidiDevice device = null;
+
+	/**
+	 * True while a device is followed; written under the class lock, read without it on the Engine's play thread
+	 */
+	private static volatile boolean isDeviceOpen = false;
+
+	/**
+	 * Scheduler that is triggered on switch ticks; null to trigger the scheduler of the Engine's play thread
+	 */
+	private final BeatScheduler scheduler;
+
+	/**
+	 * Note length multiplier if a scheduler is given, see NoteLength class
+	 */
+	private final float tempoMultiplier;
+
+	/**
+	 * Times in ns of the last ticks, used as a ring
+	 */
+	private final long[] tickTimes = new long[TICKS_PER_QUARTER_NOTE + 1];
+
+	/**
+	 * Number of ticks since the last Start; only written by the MIDI device thread
+	 */
+	private volatile long tickCount = 0l;
+
+	/**
+	 * Number of ticks in tickTimes since the measurement was (re-)started
+	 */
+	private int measuredTickCount = 0;
+
+	/**
+	 * Smoothed length of one tick in ns; 0 until measured. Only written by the MIDI device thread
+	 */
+	private volatile double smoothedTickNanos = 0d;
+
+	/**
+	 * True between Start or Continue and Stop
+	 */
+	private volatile boolean isRunning = false;
+
+	/**
+	 * Constructor
+	 * Switches and transport messages are passed on to the Engine.
+	 */
+	private MidiClock() {
+		this(null, 1f);
+	}
+
+	/**
+	 * Constructor
+	 * Only triggers the given scheduler; transport messages and tempo are not passed on to the Engine.
+	 * Used with a local clock source, e.g. the software Sequencer.
+	 * @param scheduler Scheduler that is triggered on switch ticks
+	 * @param tempoMultiplier Note length multiplier, see NoteLength class
+	 */
+	public MidiClock(BeatScheduler scheduler, float tempoMultiplier) {
+		this.scheduler = scheduler;
+		this.tempoMultiplier = tempoMultiplier;
+	}
+
+	/**
+	 * Opens the first MIDI input device whose name contains the given text and follows its clock.
+	 * @param deviceName Part of the device name, case-insensitive
+	 * @return True, if a device was opened
+	 */
+	public static synchronized boolean start(String deviceName) {
+		stop();
+
+		String name = deviceName.toLowerCase();
+		for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+			if (!info.getName().toLowerCase().contains(name)) continue;
+			try {
+				MidiDevice candidate = MidiSystem.getMidiDevice(info);
+				if (candidate instanceof Sequencer || candidate instanceof Synthesizer) continue;
+				if (candidate.getMaxTransmitters() == 0) continue;
+
+				candidate.open();
+				instance = new MidiClock();
+				candidate.getTransmitter().setReceiver(instance);
+				device = candidate;
+				isDeviceOpen = true;
+				Log.info("Following MIDI clock of " + info.getName() + ".");
+				return true;
+			} catch (MidiUnavailableException e) {
+				Log.warning("Could not open MIDI device " + info.getName() + ".", e);
+			}
+		}
+
+		Log.error("Could not find MIDI input " + deviceName + ".");
+		return false;
+	}
+
+	/**
+	 * Closes the input device.
+	 */
+	public static synchronized void stop() {
+		isDeviceOpen = false;
+		if (device != null) {
+			device.close();
+			device = null;
+		}
+		instance = null;
+	}
+
+	/**
+	 * Does not lock, as the play thread asks for every switch.
+	 * @return True, if a MIDI input device is followed; switches then only happen on its ticks
+	 */
+	public static boolean isOpen() {
+		return isDeviceOpen;
+	}
+
+	/**
+	 * @param tempoMultiplier Note length multiplier, see NoteLength class
+	 * @return Number of clock ticks per switch, at least 1
+	 */
+	public static int getTicksPerSwitch(float tempoMultiplier) {
+		return Math.max(1, Math.round(TICKS_PER_QUARTER_NOTE / tempoMultiplier));
+	}
+
+	/*
+	 * RECEIVER
+	 */
+
+	/**
+	 * Called by the MIDI device thread for every message.
+	 * @param message MIDI message
+	 * @param timeStamp Device time stamp in microseconds; not used, the arrival time is measured instead
+	 */
+	@Override
+	public void send(MidiMessage message, long timeStamp) {
+		long nanos = System.nanoTime();
+		if (message.getLength() != 1) return;
+
+		switch (message.getStatus()) {
+		case STATUS_CLOCK:
+			handleTick(nanos);
+			break;
+		case STATUS_START:
+			// The next tick is the first beat.
+			tickCount = 0l;
+			measuredTickCount = 0;
+			isRunning = true;
+			if (scheduler == null) Engine.post(CommandQueue.COMMAND_PLAY, 0f);
+			break;
+		case STATUS_CONTINUE:
+			measuredTickCount = 0;
+			isRunning = true;
+			if (scheduler == null) Engine.post(CommandQueue.COMMAND_PLAY, 0f);
+			break;
+		case STATUS_STOP:
+			isRunning = false;
+			if (scheduler == null) Engine.pause();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Measures the tempo and triggers a switch on every multiple of the current note length.
+	 * The first tick after Start is the start of the first switch, not a switch.
+	 * @param nanos Arrival time of the tick
+	 */
+	private void handleTick(long nanos) {
+		measureTempo(nanos);
+		if (!isRunning) return;
+
+		long tick = tickCount++;
+		if (tick == 0l) return;
+
+		float multiplier = scheduler == null ? Engine.getTempoMultiplier() : tempoMultiplier;
+		if (tick % getTicksPerSwitch(multiplier) == 0l) {
+			if (scheduler != null) scheduler.trigger(nanos);
+			else Engine.triggerSwitch(nanos);
+		}
+
+		// Pass the tempo on once per quarter note, after the switch.
+		if (scheduler == null && tick % TICKS_PER_QUARTER_NOTE == 0l) {
+			float tempo = getTempo();
+			if (tempo >= ConfigurationHandler.MIN_TEMPO && tempo <= ConfigurationHandler.MAX_TEMPO
+					&& Math.abs(tempo - ConfigurationHandler.getTempo()) >= TEMPO_TOLERANCE) {
+				Engine.setTempo(tempo);
+			}
+		}
+	}
+
+	/**
+	 * Averages the tick interval over the last quarter note and smoothes the result.
+	 * @param nanos Arrival time of the tick
+	 */
+	private void measureTempo(long nanos) {
+		int window = tickTimes.length;
+		if (measuredTickCount > 0) {
+			long interval = nanos - tickTimes[(measuredTickCount - 1) % window];
+			if (smoothedTickNanos > 0d && interval > smoothedTickNanos * MAX_INTERVAL_RATIO) measuredTickCount = 0;
+		}
+		tickTimes[measuredTickCount % window] = nanos;
+		measuredTickCount++;
+		if (measuredTickCount < 2) return;
+
+		int intervals = Math.min(measuredTickCount, window) - 1;
+		long oldest = tickTimes[(measuredTickCount - 1 - intervals) % window];
+		double tickNanos = (double) (nanos - oldest) / intervals;
+
+		if (smoothedTickNanos <= 0d) smoothedTickNanos = tickNanos;
+		else smoothedTickNanos += (tickNanos - smoothedTickNanos) * SMOOTHING;
+	}
+
+	/**
+	 * @return Smoothed tempo in BPM; 0 until at least two ticks have been received
+	 */
+	public float getTempo() {
+		double tickNanos = smoothedTickNanos;
+		if (tickNanos <= 0d) return 0f;
+		return (float) (60e9d / (tickNanos * TICKS_PER_QUARTER_NOTE));
+	}
+
+	/**
+	 * @return Number of ticks since the last Start
+	 */
+	public long getTickCount() {
+		return tickCount;
+	}
+
+	/**
+	 * Nothing to release; the device is closed by stop().
+	 */
+	@Override
+	public void close() {
+	}
+}
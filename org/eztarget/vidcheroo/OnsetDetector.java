@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+/**
+ * Finds note onsets and the tempo in a stream of 8 bit mono samples, or in a complete recording of 16 bit mono samples.
+ * Every hop, a Hann-windowed FFT frame is compared to the previous one;
+ * the summed increase of all log-compressed magnitudes (spectral flux) above a moving average is the onset strength.
+ * The tempo is the lag with the strongest autocorrelation of this onset strength,
+ * weighted towards 120 BPM and reinforced by the autocorrelation at twice the lag.
+ * All buffers are allocated in the constructor; processing does not allocate.
+ * Not thread-safe; all methods have to be called from the analysis thread, except getTempo() and getOnsetCount().
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class OnsetDetector {
+
+	/**
+	 * Number of samples in one FFT frame; a power of two
+	 */
+	private static final int FRAME_SIZE = 1024;
+
+	/**
+	 * Number of new samples between two frames
+	 */
+	private static final int HOP_SIZE = FRAME_SIZE / 2;
+
+	/**
+	 * Number of onset strength values that are used for tempo estimation, about 6 s at 44.1 kHz
+	 */
+	private static final int TEMPO_HISTORY = 512;
+
+	/**
+	 * Number of frames between two tempo estimations, about 1 s at 44.1 kHz
+	 */
+	private static final int TEMPO_INTERVAL = 86;
+
+	/**
+	 * Number of previous frames whose average flux is the adaptive threshold
+	 */
+	private static final int THRESHOLD_WINDOW = 16;
+
+	/**
+	 * Factor of the average flux that a peak has to exceed to count as an onset
+	 */
+	private static final double THRESHOLD_MULTIPLIER = 1.5d;
+
+	/**
+	 * Factor of linear magnitudes before log compression
+	 */
+	private static final double LOG_COMPRESSION = 100d;
+
+	/**
+	 * Tempo in BPM that is preferred if several tempi are equally likely
+	 */
+	private static final double PREFERRED_TEMPO = 120d;
+
+	/**
+	 * Width of the tempo preference in octaves
+	 */
+	private static final double PREFERENCE_WIDTH = 1d;
+
+	/**
+	 * Lowest ratio of the strongest autocorrelation to the signal energy that is accepted as a tempo
+	 */
+	private static final double MIN_CONFIDENCE = 0.1d;
+
+	/**
+	 * Highest relative difference of two successive estimations that are accepted as the same tempo
+	 */
+	private static final double MAX_TEMPO_DEVIATION = 0.03d;
+
+	/**
+	 * Onset strength frames per second
+	 */
+	private final double frameRate;
+
+	/**
+	 * Lowest and highest tempo that can be detected
+	 */
+	private final float minTempo, maxTempo;
+
+	/**
+	 * Shortest and longest beat length in frames
+	 */
+	private final int minLag, maxLag;
+
+	/**
+	 * Hann window
+	 */
+	private final double[] window = new double[FRAME_SIZE];
+
+	/**
+	 * Last FRAME_SIZE samples; new samples are appended at the end
+	 */
+	private final double[] samples = new double[FRAME_SIZE];
+
+	/**
+	 * Number of new samples since the last frame
+	 */
+	private int hopFill = 0;
+
+	/**
+	 * FFT input and output
+	 */
+	private final double[] real = new double[FRAME_SIZE], imaginary = new double[FRAME_SIZE];
+
+	/**
+	 * FFT twiddle factors
+	 */
+	private final double[] cosTable = new double[FRAME_SIZE / 2], sinTable = new double[FRAME_SIZE / 2];
+
+	/**
+	 * Bit-reversed index of every FFT input position
+	 */
+	private final int[] bitReversal = new int[FRAME_SIZE];
+
+	/**
+	 * Log-compressed magnitudes of the previous frame
+	 */
+	private final double[] previousMagnitudes = new double[FRAME_SIZE / 2 + 1];
+
+	/**
+	 * Ring of the raw flux of the last THRESHOLD_WINDOW frames
+	 */
+	private final double[] fluxHistory = new double[THRESHOLD_WINDOW];
+
+	/**
+	 * Sum of all values in fluxHistory
+	 */
+	private double fluxHistorySum = 0d;
+
+	/**
+	 * Ring of the onset strength, i.e. flux above the threshold, of the last TEMPO_HISTORY frames
+	 */
+	private final double[] onsetStrength = new double[TEMPO_HISTORY];
+
+	/**
+	 * Autocorrelation of the onset strength per lag, up to twice the longest beat
+	 */
+	private final double[] autocorrelation;
+
+	/**
+	 * Tempo preference weight per lag
+	 */
+	private final double[] lagWeights;
+
+	/**
+	 * Number of processed frames
+	 */
+	private long frameCount = 0l;
+
+	/**
+	 * Onset strength of the last two frames for peak picking
+	 */
+	private double lastStrength = 0d, secondLastStrength = 0d;
+
+	/**
+	 * Previous, not yet confirmed tempo estimation
+	 */
+	private double candidateTempo = 0d;
+
+	/**
+	 * Last confirmed tempo in BPM; 0 until a tempo has been found
+	 */
+	private volatile float tempo = 0f;
+
+	/**
+	 * Number of detected onsets
+	 */
+	private volatile long onsetCount = 0l;
+
+	/**
+	 * Constructor
+	 * @param sampleRate Samples per second
+	 * @param minTempo Lowest tempo in BPM that can be detected
+	 * @param maxTempo Highest tempo in BPM that can be detected
+	 */
+	public OnsetDetector(float sampleRate, float minTempo, float maxTempo) {
+		this.frameRate = sampleRate / HOP_SIZE;
+		this.minTempo = minTempo;
+		this.maxTempo = maxTempo;
+		minLag = (int) Math.floor(60d * frameRate / maxTempo);
+		maxLag = Math.min((int) Math.ceil(60d * frameRate / minTempo), TEMPO_HISTORY / 4 - 1);
+
+		for (int i = 0; i < FRAME_SIZE; i++) {
+			window[i] = 0.5d - 0.5d * Math.cos(2d * Math.PI * i / FRAME_SIZE);
+		}
+
+		for (int i = 0; i < FRAME_SIZE / 2; i++) {
+			cosTable[i] = Math.cos(2d * Math.PI * i / FRAME_SIZE);
+			sinTable[i] = Math.sin(2d * Math.PI * i / FRAME_SIZE);
+		}
+
+		int bits = Integer.numberOfTrailingZeros(FRAME_SIZE);
+		for (int i = 0; i < FRAME_SIZE; i++) {
+			bitReversal[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+
+		autocorrelation = new double[2 * maxLag + 2];
+		lagWeights = new double[maxLag + 2];
+		double preferredLag = 60d * frameRate / PREFERRED_TEMPO;
+		for (int lag = 1; lag < lagWeights.length; lag++) {
+			double octaves = Math.log(lag / preferredLag) / Math.log(2d) / PREFERENCE_WIDTH;
+			lagWeights[lag] = Math.exp(-0.5d * octaves * octaves);
+		}
+	}
+
+	/**
+	 * Appends samples and analyses every completed frame.
+	 * @param audioData Signed 8 bit mono samples
+	 * @param length Number of valid samples at the start of audioData
+	 * @return True, if a new tempo has been confirmed
+	 */
+	public boolean process(byte[] audioData, int length) {
+		boolean didConfirmTempo = false;
+		for (int i = 0; i < length; i++) {
+			samples[FRAME_SIZE - HOP_SIZE + hopFill] = audioData[i] / 128d;
+			hopFill++;
+
+			if (hopFill == HOP_SIZE) {
+				if (processFrame()) didConfirmTempo = true;
+				System.arraycopy(samples, HOP_SIZE, samples, 0, FRAME_SIZE - HOP_SIZE);
+				hopFill = 0;
+			}
+		}
+		return didConfirmTempo;
+	}
+
+	/**
+	 * Calculates the onset strength of the current frame and updates onsets and tempo.
+	 * @return True, if a new tempo has been confirmed
+	 */
+	private boolean processFrame() {
+		double strength = computeOnsetStrength();
+		onsetStrength[(int) (frameCount % TEMPO_HISTORY)] = strength;
+
+		// The previous frame is an onset if it is a local maximum above the threshold.
+		if (lastStrength > 0d && lastStrength >= secondLastStrength && lastStrength > strength) onsetCount++;
+		secondLastStrength = lastStrength;
+		lastStrength = strength;
+
+		frameCount++;
+		if (frameCount >= TEMPO_HISTORY / 2 && frameCount % TEMPO_INTERVAL == 0) return estimateTempo();
+		return false;
+	}
+
+	/**
+	 * Offline analysis: calculates the onset strength of consecutive frames of a complete recording.
+	 * A few frames before firstFrame are analysed without being stored, so that the threshold has settled.
+	 * Frame n ends with the samples from n * HOP_SIZE to (n + 1) * HOP_SIZE.
+	 * @param audioData Signed 16 bit mono samples of the complete recording
+	 * @param firstFrame Index of the first frame that is stored
+	 * @param endFrame Index after the last frame that is stored
+	 * @param strengths Receives the onset strength of every frame at the frame's index
+	 */
+	public void computeOnsetStrengths(short[] audioData, int firstFrame, int endFrame, double[] strengths) {
+		int warmUpFrame = Math.max(0, firstFrame - THRESHOLD_WINDOW - 1);
+		for (int frame = warmUpFrame; frame < endFrame; frame++) {
+			int start = (frame + 1) * HOP_SIZE - FRAME_SIZE;
+			for (int i = 0; i < FRAME_SIZE; i++) {
+				int index = start + i;
+				samples[i] = index >= 0 && index < audioData.length ? audioData[index] / 32768d : 0d;
+			}
+
+			double strength = computeOnsetStrength();
+			frameCount++;
+			if (frame >= firstFrame) strengths[frame] = strength;
+		}
+	}
+
+	/**
+	 * Calculates the spectral flux of the current frame above the adaptive threshold.
+	 * @return Onset strength, 0 or higher
+	 */
+	private double computeOnsetStrength() {
+		for (int i = 0; i < FRAME_SIZE; i++) {
+			int target = bitReversal[i];
+			real[target] = samples[i] * window[i];
+			imaginary[target] = 0d;
+		}
+		transform();
+
+		double flux = 0d;
+		for (int bin = 0; bin <= FRAME_SIZE / 2; bin++) {
+			double magnitude = Math.log1p(LOG_COMPRESSION * Math.sqrt(real[bin] * real[bin] + imaginary[bin] * imaginary[bin]));
+			double increase = magnitude - previousMagnitudes[bin];
+			if (increase > 0d) flux += increase;
+			previousMagnitudes[bin] = magnitude;
+		}
+
+		// Adaptive threshold: average flux of the previous frames.
+		double threshold = THRESHOLD_MULTIPLIER * fluxHistorySum / THRESHOLD_WINDOW;
+		int historyIndex = (int) (frameCount % THRESHOLD_WINDOW);
+		fluxHistorySum += flux - fluxHistory[historyIndex];
+		fluxHistory[historyIndex] = flux;
+
+		return Math.max(0d, flux - threshold);
+	}
+
+	/**
+	 * In-place iterative radix-2 FFT of real and imaginary, whose input has already been bit-reversed
+	 */
+	private void transform() {
+		for (int size = 2; size <= FRAME_SIZE; size <<= 1) {
+			int halfSize = size >>> 1;
+			int tableStep = FRAME_SIZE / size;
+			for (int start = 0; start < FRAME_SIZE; start += size) {
+				for (int k = 0; k < halfSize; k++) {
+					double cos = cosTable[k * tableStep];
+					double sin = sinTable[k * tableStep];
+					int even = start + k;
+					int odd = even + halfSize;
+					double oddReal = real[odd] * cos + imaginary[odd] * sin;
+					double oddImaginary = imaginary[odd] * cos - real[odd] * sin;
+					real[odd] = real[even] - oddReal;
+					imaginary[odd] = imaginary[even] - oddImaginary;
+					real[even] += oddReal;
+					imaginary[even] += oddImaginary;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the most likely beat length in the onset strength history.
+	 * A tempo is only confirmed if two successive estimations agree.
+	 * @return True, if a new tempo has been confirmed
+	 */
+	private boolean estimateTempo() {
+		int historyLength = (int) Math.min(frameCount, TEMPO_HISTORY);
+		int newest = (int) ((frameCount - 1) % TEMPO_HISTORY);
+
+		double energy = 0d;
+		for (int i = 0; i < historyLength; i++) energy += onsetStrength[i] * onsetStrength[i];
+		if (energy <= 0d) return false;
+		energy /= historyLength;
+
+		for (int lag = minLag; lag < autocorrelation.length; lag++) {
+			double sum = 0d;
+			for (int i = 0; i < historyLength - lag; i++) {
+				int index = newest - i;
+				if (index < 0) index += TEMPO_HISTORY;
+				int lagIndex = index - lag;
+				if (lagIndex < 0) lagIndex += TEMPO_HISTORY;
+				sum += onsetStrength[index] * onsetStrength[lagIndex];
+			}
+			autocorrelation[lag] = sum / (historyLength - lag);
+		}
+
+		int bestLag = 0;
+		double bestScore = 0d;
+		for (int lag = minLag; lag <= maxLag; lag++) {
+			double score = getScore(lag);
+			if (score > bestScore) {
+				bestScore = score;
+				bestLag = lag;
+			}
+		}
+		if (bestLag == 0 || autocorrelation[bestLag] / energy < MIN_CONFIDENCE) return false;
+
+		// Parabolic interpolation between the neighbouring lags.
+		double exactLag = bestLag;
+		if (bestLag > minLag && bestLag < maxLag) {
+			double previous = getScore(bestLag - 1);
+			double next = getScore(bestLag + 1);
+			double curvature = previous - 2d * bestScore + next;
+			if (curvature < 0d) exactLag += 0.5d * (previous - next) / curvature;
+		}
+
+		double estimatedTempo = 60d * frameRate / exactLag;
+		while (estimatedTempo < minTempo) estimatedTempo *= 2d;
+		while (estimatedTempo > maxTempo) estimatedTempo /= 2d;
+
+		boolean isConfirmed = candidateTempo > 0d
+				&& Math.abs(estimatedTempo - candidateTempo) <= candidateTempo * MAX_TEMPO_DEVIATION;
+		candidateTempo = estimatedTempo;
+		if (!isConfirmed) return false;
+
+		tempo = (float) estimatedTempo;
+		return true;
+	}
+
+	/**
+	 * @param lag Beat length in frames
+	 * @return Weighted autocorrelation at the lag plus half of the one at twice the lag
+	 */
+	private double getScore(int lag) {
+		return lagWeights[lag] * (autocorrelation[lag] + 0.5d * autocorrelation[2 * lag]);
+	}
+
+	/**
+	 * @return Last confirmed tempo in BPM; 0 until a tempo has been found
+	 */
+	public float getTempo() {
+		return tempo;
+	}
+
+	/**
+	 * @return Number of detected onsets
+	 */
+	public long getOnsetCount() {
+		return onsetCount;
+	}
+
+	/**
+	 * @param sampleCount Number of samples of a complete recording
+	 * @return Number of onset strength frames of the recording
+	 */
+	public static int getFrameCount(int sampleCount) {
+		return sampleCount / HOP_SIZE;
+	}
+
+	/**
+	 * @return Number of samples between two onset strength frames
+	 */
+	public static int getHopSize() {
+		return HOP_SIZE;
+	}
+
+	/**
+	 * @return Number of onset strength frames per second
+	 */
+	public double getFrameRate() {
+		return frameRate;
+	}
+}
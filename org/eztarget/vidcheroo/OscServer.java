@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.eztarget.vidcheroo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+
+/**
+ * Receives Open Sound Control messages over UDP, e.g. from a lighting desk, and passes them on to the Engine.
+ * A selector thread reads the datagrams from a non-blocking channel into one reused buffer
+ * and decodes them in place, without allocating; the commands are posted to the Engine right away
+ * and pings are answered on the same thread.
+ *
+ * Addresses, each with an optional numeric argument (f, i, d, h, T or F):
+ * /vidcheroo/play, /vidcheroo/pause, /vidcheroo/cut and /vidcheroo/reload are ignored if their argument is 0,
+ * so that buttons that send 1 on press and 0 on release only trigger once.
+ * /vidcheroo/tempo takes the BPM, /vidcheroo/length the NoteLength index.
+ * /vidcheroo/ping is answered with /vidcheroo/pong and the same argument.
+ * Bundles are unpacked and executed right away; their time tags are ignored.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class OscServer {
+
+	/**
+	 * Largest datagram that is read; longer ones are truncated by the channel and ignored
+	 */
+	private static final int MAX_PACKET_SIZE = 8192;
+
+	/**
+	 * Nesting depth of bundles after which their content is ignored
+	 */
+	private static final int MAX_BUNDLE_DEPTH = 8;
+
+	/**
+	 * "#bundle" followed by a null byte
+	 */
+	private static final byte[] BUNDLE_TAG = toOscString("#bundle");
+
+	/**
+	 * Length of the bundle tag and the time tag at the start of a bundle
+	 */
+	private static final int BUNDLE_HEADER_LENGTH = 16;
+
+	/**
+	 * Null-terminated addresses per command, indexed by CommandQueue command type
+	 */
+	private static final byte[][] ADDRESSES = new byte[CommandQueue.COMMAND_PING + 1][];
+	static {
+		ADDRESSES[CommandQueue.COMMAND_PLAY] = toOscString("/vidcheroo/play");
+		ADDRESSES[CommandQueue.COMMAND_PAUSE] = toOscString("/vidcheroo/pause");
+		ADDRESSES[CommandQueue.COMMAND_TEMPO] = toOscString("/vidcheroo/tempo");
+		ADDRESSES[CommandQueue.COMMAND_NOTE_LENGTH] = toOscString("/vidcheroo/length");
+		ADDRESSES[CommandQueue.COMMAND_CUT] = toOscString("/vidcheroo/cut");
+		ADDRESSES[CommandQueue.COMMAND_RELOAD] = toOscString("/vidcheroo/reload");
+		ADDRESSES[CommandQueue.COMMAND_PING] = toOscString("/vidcheroo/ping");
+	}
+
+	/**
+	 * Null-terminated address of ping answers
+	 */
+	private static final byte[] PONG_ADDRESS = toOscString("/vidcheroo/pong");
+
+	/**
+	 * Position of the argument in ping answers, after the padded address and the type tags ",f"
+	 */
+	private static final int PONG_VALUE_OFFSET = getPaddedLength(PONG_ADDRESS.length) + 4;
+
+	/**
+	 * Server of the Engine; null if none is running
+	 */
+	private static OscServer instance = null;
+
+	/**
+	 * If false, commands are only counted and pings answered, e.g. for benchmarks
+	 */
+	private final boolean isDrivingEngine;
+
+	/**
+	 * Reused datagram buffer of the selector thread
+	 */
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+
+	/**
+	 * Reused ping answer of the selector thread
+	 */
+	private final ByteBuffer pongBuffer = ByteBuffer.allocateDirect(PONG_VALUE_OFFSET + 4);
+
+	/**
+	 * Sender of the datagram that is being decoded; only used by the selector thread
+	 */
+	private SocketAddress datagramSender = null;
+
+	/**
+	 * Non-blocking UDP channel
+	 */
+	private DatagramChannel channel;
+
+	/**
+	 * Selector that waits for incoming datagrams
+	 */
+	private Selector selector;
+
+	/**
+	 * Thread that reads and decodes datagrams
+	 */
+	private Thread selectorThread;
+
+	/**
+	 * Set to let the selector thread finish
+	 */
+	private volatile boolean isStopping = false;
+
+	/**
+	 * Number of decoded commands; only written by the selector thread
+	 */
+	private volatile long commandCount = 0l;
+
+	/**
+	 * Number of messages with unknown addresses or malformed content; only written by the selector thread
+	 */
+	private volatile long ignoredCount = 0l;
+
+	/**
+	 * Number of commands that the Engine did not accept because its queue was full; only written by the selector thread
+	 */
+	private volatile long droppedCount = 0l;
+
+	/**
+	 * Constructor
+	 * The server does not receive anything before open() is called.
+	 * @param isDrivingEngine If false, commands are only counted and pings answered
+	 */
+	OscServer(boolean isDrivingEngine) {
+		this.isDrivingEngine = isDrivingEngine;
+		pongBuffer.put(PONG_ADDRESS);
+		pongBuffer.position(getPaddedLength(PONG_ADDRESS.length));
+		pongBuffer.put((byte) ',').put((byte) 'f').put((byte) 0).put((byte) 0);
+	}
+
+	/**
+	 * Starts receiving OSC messages for the Engine; a running server is stopped first.
+	 * @param host Address of the local interface, e.g. 127.0.0.1 for local control only or 0.0.0.0 for all interfaces
+	 * @param port UDP port
+	 * @return True, if the server is running
+	 */
+	public static synchronized boolean start(String host, int port) {
+		stop();
+		OscServer server = new OscServer(true);
+		try {
+			server.open(new InetSocketAddress(host, port));
+		} catch (IOException e) {
+			Log.error("Could not open OSC port " + host + ":" + port + ".", e);
+			return false;
+		}
+		instance = server;
+		Log.info("Receiving OSC messages on " + host + ":" + port + ".");
+		return true;
+	}
+
+	/**
+	 * Stops the server of the Engine.
+	 */
+	public static synchronized void stop() {
+		if (instance == null) return;
+		instance.close();
+		instance = null;
+	}
+
+	/**
+	 * Binds the channel and starts the selector thread.
+	 * @param address Local address; port 0 for any free port
+	 * @throws IOException
+	 */
+	void open(SocketAddress address) throws IOException {
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.bind(address);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+
+		selectorThread = new Thread("Vidcheroo OSC") {
+			public void run() {
+				try {
+					while (!isStopping) {
+						selector.select();
+						selector.selectedKeys().clear();
+						receive();
+					}
+				} catch (IOException e) {
+					if (!isStopping) {
+						Log.error("Could not receive OSC messages.", e);
+					}
+				}
+			}
+		};
+		selectorThread.setDaemon(true);
+		selectorThread.setPriority(Thread.MAX_PRIORITY);
+		selectorThread.start();
+	}
+
+	/**
+	 * Stops the selector thread and closes the channel.
+	 */
+	void close() {
+		isStopping = true;
+		selector.wakeup();
+		try {
+			selectorThread.join();
+			selector.close();
+			channel.close();
+		} catch (InterruptedException e) {
+			Log.warning("Interrupted while stopping the OSC server.", e);
+		} catch (IOException e) {
+			Log.error("Could not close the OSC port.", e);
+		}
+	}
+
+	/**
+	 * @return Local UDP port of the channel
+	 * @throws IOException
+	 */
+	int getLocalPort() throws IOException {
+		return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+	}
+
+	/*
+	 * SELECTOR THREAD
+	 */
+
+	/**
+	 * Reads and decodes all waiting datagrams.
+	 * @throws IOException
+	 */
+	private void receive() throws IOException {
+		while (true) {
+			receiveBuffer.clear();
+			SocketAddress sender = channel.receive(receiveBuffer);
+			if (sender == null) return;
+
+			receiveBuffer.flip();
+			datagramSender = sender;
+			decode(receiveBuffer, 0, receiveBuffer.limit(), 0);
+		}
+	}
+
+	/**
+	 * Decodes a message or bundle in place and passes its commands on.
+	 * @param packet Datagram
+	 * @param start Index of the first byte
+	 * @param end Index after the last byte
+	 * @param depth Number of enclosing bundles
+	 * @return True, if at least one command has been passed on
+	 */
+	boolean decode(ByteBuffer packet, int start, int end, int depth) {
+		if (!matches(packet, start, end, BUNDLE_TAG)) return decodeMessage(packet, start, end);
+		if (depth >= MAX_BUNDLE_DEPTH || end - start < BUNDLE_HEADER_LENGTH) {
+			ignoredCount++;
+			return false;
+		}
+
+		boolean didDispatch = false;
+		int position = start + BUNDLE_HEADER_LENGTH;
+		while (end - position >= 4) {
+			int size = packet.getInt(position);
+			position += 4;
+			if (size <= 0 || size > end - position || (size & 3) != 0) {
+				ignoredCount++;
+				break;
+			}
+			if (decode(packet, position, position + size, depth + 1)) didDispatch = true;
+			position += size;
+		}
+		return didDispatch;
+	}
+
+	/**
+	 * Reads the address and the first argument of a message and passes its command on.
+	 * @param packet Datagram
+	 * @param start Index of the first byte
+	 * @param end Index after the last byte
+	 * @return True, if a command has been passed on
+	 */
+	private boolean decodeMessage(ByteBuffer packet, int start, int end) {
+		int command = CommandQueue.NONE;
+		for (int i = 0; i < ADDRESSES.length; i++) {
+			if (ADDRESSES[i] != null && matches(packet, start, end, ADDRESSES[i])) {
+				command = i;
+				break;
+			}
+		}
+		if (command == CommandQueue.NONE) {
+			ignoredCount++;
+			return false;
+		}
+
+		// Type tags are optional in old OSC versions; without them there is no argument.
+		boolean hasValue = false;
+		float value = 0f;
+		int tagsStart = start + getPaddedLength(ADDRESSES[command].length);
+		if (tagsStart < end && packet.get(tagsStart) == ',') {
+			int tagsEnd = tagsStart + 1;
+			while (tagsEnd < end && packet.get(tagsEnd) != 0) tagsEnd++;
+			int argumentsStart = tagsStart + getPaddedLength(tagsEnd - tagsStart + 1);
+			int available = end - argumentsStart;
+
+			byte tag = tagsEnd > tagsStart + 1 ? packet.get(tagsStart + 1) : 0;
+			if (tag == 'f' && available >= 4) {
+				value = packet.getFloat(argumentsStart);
+				hasValue = true;
+			} else if (tag == 'i' && available >= 4) {
+				value = packet.getInt(argumentsStart);
+				hasValue = true;
+			} else if (tag == 'd' && available >= 8) {
+				value = (float) packet.getDouble(argumentsStart);
+				hasValue = true;
+			} else if (tag == 'h' && available >= 8) {
+				value = packet.getLong(argumentsStart);
+				hasValue = true;
+			} else if (tag == 'T' || tag == 'F') {
+				value = tag == 'T' ? 1f : 0f;
+				hasValue = true;
+			}
+		}
+
+		switch (command) {
+		case CommandQueue.COMMAND_TEMPO:
+		case CommandQueue.COMMAND_NOTE_LENGTH:
+		case CommandQueue.COMMAND_PING:
+			if (!hasValue) {
+				ignoredCount++;
+				return false;
+			}
+			break;
+		default:
+			// Button release
+			if (hasValue && value == 0f) return false;
+			break;
+		}
+
+		dispatch(command, value);
+		return true;
+	}
+
+	/**
+	 * @param packet Datagram
+	 * @param start Index of the first byte
+	 * @param end Index after the last byte
+	 * @param oscString Null-terminated string
+	 * @return True, if the packet starts with the string
+	 */
+	private static boolean matches(ByteBuffer packet, int start, int end, byte[] oscString) {
+		if (end - start < oscString.length) return false;
+		for (int i = 0; i < oscString.length; i++) {
+			if (packet.get(start + i) != oscString[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param length Length in bytes
+	 * @return Length rounded up to a multiple of 4, as all OSC strings and arguments are aligned
+	 */
+	private static int getPaddedLength(int length) {
+		return (length + 3) & ~3;
+	}
+
+	/**
+	 * @param text ASCII text
+	 * @return Text with a null byte at the end
+	 */
+	private static byte[] toOscString(String text) {
+		byte[] ascii = text.getBytes(Charset.forName("US-ASCII"));
+		byte[] oscString = new byte[ascii.length + 1];
+		System.arraycopy(ascii, 0, oscString, 0, ascii.length);
+		return oscString;
+	}
+
+	/**
+	 * Passes a command on to the Engine; the Engine queue never blocks.
+	 * @param command Command type, see CommandQueue
+	 * @param value Command value
+	 */
+	private void dispatch(int command, float value) {
+		commandCount++;
+		if (command == CommandQueue.COMMAND_PING) {
+			answerPing(value);
+			return;
+		}
+		if (!isDrivingEngine) return;
+
+		switch (command) {
+		case CommandQueue.COMMAND_PLAY:
+		case CommandQueue.COMMAND_PAUSE:
+		case CommandQueue.COMMAND_CUT:
+		case CommandQueue.COMMAND_RELOAD:
+		case CommandQueue.COMMAND_TEMPO:
+			if (!Engine.post(command, value)) droppedCount++;
+			break;
+		case CommandQueue.COMMAND_NOTE_LENGTH:
+			int noteLengthIndex = Math.round(value);
+			if (noteLengthIndex >= 0 && noteLengthIndex < NoteLength.tempoMultipliers.length) {
+				if (!Engine.post(command, noteLengthIndex)) droppedCount++;
+			} else {
+				Log.warning("Ignoring OSC note length " + value + ".");
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Sends /vidcheroo/pong with the ping argument back to the sender of the datagram that is being decoded.
+	 * @param value Ping argument
+	 */
+	private void answerPing(float value) {
+		SocketAddress sender = datagramSender;
+		if (sender == null) return;
+
+		pongBuffer.putFloat(PONG_VALUE_OFFSET, value);
+		pongBuffer.clear();
+		try {
+			channel.send(pongBuffer, sender);
+		} catch (IOException e) {
+			Log.warning("Could not answer OSC ping from " + sender + ".", e);
+		}
+	}
+
+	/**
+	 * @return Number of commands that have been passed on
+	 */
+	public long getCommandCount() {
+		return commandCount;
+	}
+
+	/**
+	 * @return Number of messages with unknown addresses or malformed content
+	 */
+	public long getIgnoredCount() {
+		return ignoredCount;
+	}
+
+	/**
+	 * @return Number of commands that were dropped because the Engine queue was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.eztarget.vidcheroo;
+
+/**
+ * Shows the media files of one output; implemented by the media frame.
+ * Only called by the engine thread.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public interface OutputPlayer {
+
+	/**
+	 * Opens the next media file, skips to the start time and waits for playPreparedMedia().
+	 * @param mediaPath Absolute path to a media file
+	 * @param startTime Value in ms at which to skip to when the playback begins
+	 */
+	void prepareMediaFilePath(String mediaPath, long startTime);
+
+	/**
+	 * Shows the prepared media file.
+	 * @return True, if a prepared media file is shown
+	 */
+	boolean playPreparedMedia();
+
+	/**
+	 * Pauses the visible media file.
+	 */
+	void pause();
+
+	/**
+	 * Stops all media files.
+	 */
+	void stop();
+}
@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only binary journal of a session: the random seed, every cut with its beat deadline,
+ * file and start time, tempo and note length changes, key presses, play and pause.
+ * Recording only writes a few primitive values into a preallocated ring and never blocks or allocates;
+ * a writer thread encodes and appends the entries in the background.
+ * If the ring is full, entries are dropped and counted.
+ *
+ * File layout (big-endian): magic, version (ints), seed, wall clock time of the start in ms (longs),
+ * then entries of a type byte, the time since the previous entry in ns (signed variable-length integer)
+ * and a type-specific payload. Files are written once per path, before their first cut.
+ * A journal that ends in the middle of an entry, e.g. after a crash, is read up to the last complete entry.
+ *
+ * Only the cuts of the main output are recorded. A session with more than one output, see screen_outputs,
+ * cannot be reproduced from its journal, so the Engine refuses to replay while more than one output exists.
+ * Replays show the recorded files, so the recorded seed is only informational.
+ *
+ * Usage: java -cp bin org.eztarget.vidcheroo.SessionJournal session.vcsj prints a journal.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class SessionJournal {
+
+	/**
+	 * Extension of journal files
+	 */
+	public static final String FILE_EXTENSION = ".vcsj";
+
+	/**
+	 * Entry type: Journal ID and path of a media file; payload: ID, path
+	 */
+	public static final byte TYPE_FILE = 1;
+
+	/**
+	 * Entry type: A media file was shown; payload: file ID, start time in ms, lateness in ns or -1 for manual cuts
+	 */
+	public static final byte TYPE_CUT = 2;
+
+	/**
+	 * Entry type: Tempo change; payload: BPM
+	 */
+	public static final byte TYPE_TEMPO = 3;
+
+	/**
+	 * Entry type: Note length change; payload: NoteLength index
+	 */
+	public static final byte TYPE_NOTE_LENGTH = 4;
+
+	/**
+	 * Entry type: Key press; payload: key code
+	 */
+	public static final byte TYPE_KEY = 5;
+
+	/**
+	 * Entry type: Playback started
+	 */
+	public static final byte TYPE_PLAY = 6;
+
+	/**
+	 * Entry type: Playback paused
+	 */
+	public static final byte TYPE_PAUSE = 7;
+
+	/**
+	 * "VCSJ"
+	 */
+	private static final int MAGIC = 0x5643534A;
+
+	/**
+	 * Version of the journal layout
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Number of entries that can wait for the writer thread
+	 */
+	private static final int RING_SIZE = 4096;
+
+	/**
+	 * Time in ns that the writer thread sleeps while the ring is empty
+	 */
+	private static final long WRITE_INTERVAL = 50000000l;
+
+	/**
+	 * Journal of the current session; null if none is recorded
+	 */
+	private static volatile SessionJournal current = null;
+
+	/**
+	 * Sequence numbers of the ring slots
+	 */
+	private final SlotRing ring = new SlotRing(RING_SIZE);
+
+	/**
+	 * Ring slots: entry type
+	 */
+	private final byte[] types = new byte[RING_SIZE];
+
+	/**
+	 * Ring slots: System.nanoTime() of the entry
+	 */
+	private final long[] times = new long[RING_SIZE];
+
+	/**
+	 * Ring slots: first numeric payload value
+	 */
+	private final long[] values = new long[RING_SIZE];
+
+	/**
+	 * Ring slots: second numeric payload value
+	 */
+	private final long[] secondValues = new long[RING_SIZE];
+
+	/**
+	 * Ring slots: media file path of cuts; references existing strings
+	 */
+	private final String[] paths = new String[RING_SIZE];
+
+	/**
+	 * Journal file
+	 */
+	private final File file;
+
+	/**
+	 * Encodes the entries on the writer thread
+	 */
+	private final DataOutputStream output;
+
+	/**
+	 * Journal IDs of the files that have been written; only used by the writer thread
+	 */
+	private final HashMap<String, Integer> fileIds = new HashMap<String, Integer>();
+
+	/**
+	 * Time stamp in ns of the previously written entry, starting with the journal start; only used by the writer thread
+	 */
+	private long previousNanos;
+
+	/**
+	 * Thread that appends the entries
+	 */
+	private final Thread writerThread;
+
+	/**
+	 * Set to let the writer thread write the remaining entries and finish
+	 */
+	private volatile boolean isClosing = false;
+
+	/**
+	 * Constructor
+	 * Writes the header and starts the writer thread.
+	 * @param file Journal file, will be replaced
+	 * @param seed Random seed of the session
+	 * @throws IOException
+	 */
+	private SessionJournal(File file, long seed) throws IOException {
+		this.file = file;
+
+		previousNanos = System.nanoTime();
+		output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		output.writeInt(MAGIC);
+		output.writeInt(VERSION);
+		output.writeLong(seed);
+		output.writeLong(System.currentTimeMillis());
+
+		writerThread = new Thread("Vidcheroo Journal") {
+			public void run() {
+				try {
+					while (!isClosing) {
+						if (!writeEntries()) LockSupport.parkNanos(WRITE_INTERVAL);
+					}
+					writeEntries();
+				} catch (IOException e) {
+					Log.error("Could not write session journal " + SessionJournal.this.file + ".", e);
+				} finally {
+					try {
+						output.close();
+					} catch (IOException e) {
+						Log.error("Could not close session journal " + SessionJournal.this.file + ".", e);
+					}
+				}
+			}
+		};
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Starts recording a new journal; a running journal is closed first.
+	 * @param file Journal file, will be replaced
+	 * @param seed Random seed of the session
+	 */
+	public static synchronized void start(File file, long seed) {
+		stop();
+		try {
+			current = new SessionJournal(file, seed);
+			Log.info("Recording session journal " + file + ".");
+		} catch (IOException e) {
+			Log.error("Could not create session journal " + file + ".", e);
+		}
+	}
+
+	/**
+	 * Writes the remaining entries and closes the journal.
+	 */
+	public static synchronized void stop() {
+		SessionJournal journal = current;
+		if (journal == null) return;
+		current = null;
+
+		journal.isClosing = true;
+		LockSupport.unpark(journal.writerThread);
+		try {
+			journal.writerThread.join();
+		} catch (InterruptedException e) {
+			Log.warning("Interrupted while waiting for the session journal.", e);
+		}
+		Log.info(
+				"Closed session journal " + journal.file + "."
+				+ (journal.ring.getDroppedCount() > 0l ? " Dropped entries: " + journal.ring.getDroppedCount() : "")
+				);
+	}
+
+	/*
+	 * RECORDING
+	 */
+
+	/**
+	 * @param nanos System.nanoTime() at which the media file was shown
+	 * @param path Path of the media file
+	 * @param startTime Value in ms at which the media file starts
+	 * @param beatDeadline System.nanoTime() of the beat that caused the cut; 0 for manual cuts
+	 */
+	public static void recordCut(long nanos, String path, long startTime, long beatDeadline) {
+		SessionJournal journal = current;
+		if (journal != null) journal.record(TYPE_CUT, nanos, startTime, beatDeadline, path);
+	}
+
+	/**
+	 * @param tempo New tempo in BPM
+	 */
+	public static void recordTempo(float tempo) {
+		SessionJournal journal = current;
+		if (journal != null) journal.record(TYPE_TEMPO, System.nanoTime(), Float.floatToIntBits(tempo), 0l, null);
+	}
+
+	/**
+	 * @param noteLengthIndex Index of the new note length in NoteLength class
+	 */
+	public static void recordNoteLength(int noteLengthIndex) {
+		SessionJournal journal = current;
+		if (journal != null) journal.record(TYPE_NOTE_LENGTH, System.nanoTime(), noteLengthIndex, 0l, null);
+	}
+
+	/**
+	 * @param keyCode Numeric value of the pressed key
+	 */
+	public static void recordKey(int keyCode) {
+		SessionJournal journal = current;
+		if (journal != null) journal.record(TYPE_KEY, System.nanoTime(), keyCode, 0l, null);
+	}
+
+	/**
+	 * @param isPlaying True when playback starts, false when it is paused
+	 */
+	public static void recordPlayback(boolean isPlaying) {
+		SessionJournal journal = current;
+		if (journal != null) journal.record(isPlaying ? TYPE_PLAY : TYPE_PAUSE, System.nanoTime(), 0l, 0l, null);
+	}
+
+	/**
+	 * Claims a ring slot, fills it and publishes it to the writer thread.
+	 * Any number of threads may record at the same time.
+	 * @param type Entry type
+	 * @param nanos Time stamp in ns
+	 * @param value First payload value
+	 * @param secondValue Second payload value
+	 * @param path Media file path or null
+	 */
+	private void record(byte type, long nanos, long value, long secondValue, String path) {
+		int slot = ring.claim();
+		if (slot < 0) return;
+
+		types[slot] = type;
+		times[slot] = nanos;
+		values[slot] = value;
+		secondValues[slot] = secondValue;
+		paths[slot] = path;
+		ring.publish(slot);
+	}
+
+	/*
+	 * WRITING
+	 */
+
+	/**
+	 * Encodes all published entries in order.
+	 * @return True, if at least one entry was written
+	 * @throws IOException
+	 */
+	private boolean writeEntries() throws IOException {
+		boolean didWrite = false;
+		while (true) {
+			int slot = ring.peek();
+			if (slot < 0) break;
+
+			byte type = types[slot];
+			long nanos = times[slot];
+			long value = values[slot];
+			long secondValue = secondValues[slot];
+			String path = paths[slot];
+			paths[slot] = null;
+			ring.release();
+
+			writeEntry(type, nanos, value, secondValue, path);
+			didWrite = true;
+		}
+		if (didWrite) output.flush();
+		return didWrite;
+	}
+
+	/**
+	 * @param type Entry type
+	 * @param nanos Time stamp in ns
+	 * @param value First payload value
+	 * @param secondValue Second payload value
+	 * @param path Media file path or null
+	 * @throws IOException
+	 */
+	private void writeEntry(byte type, long nanos, long value, long secondValue, String path) throws IOException {
+		Integer fileId = null;
+		if (type == TYPE_CUT) {
+			fileId = fileIds.get(path);
+			if (fileId == null) {
+				fileId = fileIds.size();
+				fileIds.put(path, fileId);
+				output.writeByte(TYPE_FILE);
+				writeVarLong(output, 0l);
+				writeVarLong(output, fileId);
+				output.writeUTF(path);
+			}
+		}
+
+		output.writeByte(type);
+		// Entries of different threads may be slightly out of order.
+		writeVarLong(output, nanos - previousNanos);
+		previousNanos = nanos;
+
+		switch (type) {
+		case TYPE_CUT:
+			writeVarLong(output, fileId);
+			writeVarLong(output, value);
+			writeVarLong(output, secondValue == 0l ? -1l : nanos - secondValue);
+			break;
+		case TYPE_TEMPO:
+			output.writeFloat(Float.intBitsToFloat((int) value));
+			break;
+		case TYPE_NOTE_LENGTH:
+		case TYPE_KEY:
+			writeVarLong(output, value);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Writes a signed value in 1 to 10 bytes; small absolute values use fewer bytes.
+	 * @param output Target stream
+	 * @param value Any value
+	 * @throws IOException
+	 */
+	private static void writeVarLong(DataOutputStream output, long value) throws IOException {
+		// Zig-zag: move the sign into the lowest bit.
+		long bits = (value << 1) ^ (value >> 63);
+		while ((bits & ~0x7Fl) != 0l) {
+			output.writeByte((int) (bits & 0x7F) | 0x80);
+			bits >>>= 7;
+		}
+		output.writeByte((int) bits);
+	}
+
+	/**
+	 * @param input Source stream
+	 * @return Value written by writeVarLong()
+	 * @throws IOException
+	 */
+	private static long readVarLong(DataInputStream input) throws IOException {
+		long bits = 0l;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = input.readUnsignedByte();
+			bits |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return (bits >>> 1) ^ -(bits & 1l);
+		}
+		throw new IOException("Invalid variable-length value.");
+	}
+
+	/*
+	 * READING
+	 */
+
+	/**
+	 * One decoded journal entry
+	 */
+	public static class Entry {
+
+		/**
+		 * Entry type, one of the TYPE constants
+		 */
+		public byte type;
+
+		/**
+		 * Time in ns since the journal start
+		 */
+		public long time;
+
+		/**
+		 * Path of the media file of cuts
+		 */
+		public String path;
+
+		/**
+		 * Cuts: start time in ms; note length: NoteLength index; key: key code
+		 */
+		public long value;
+
+		/**
+		 * Cuts: time in ns by which the cut was later than its beat; -1 for manual cuts
+		 */
+		public long lateness;
+
+		/**
+		 * Tempo changes: BPM
+		 */
+		public float tempo;
+
+		@Override
+		public String toString() {
+			String seconds = String.format("%12.6f", time / 1e9d);
+			switch (type) {
+			case TYPE_CUT:
+				return seconds + " CUT " + path + " @" + value + "ms"
+						+ (lateness < 0l ? " manual" : " late=" + lateness / 1000l + "us");
+			case TYPE_TEMPO:
+				return seconds + " TEMPO " + tempo;
+			case TYPE_NOTE_LENGTH:
+				return seconds + " NOTE_LENGTH " + value;
+			case TYPE_KEY:
+				return seconds + " KEY " + value;
+			case TYPE_PLAY:
+				return seconds + " PLAY";
+			case TYPE_PAUSE:
+				return seconds + " PAUSE";
+			default:
+				return seconds + " ?" + type;
+			}
+		}
+	}
+
+	/**
+	 * Reads a journal up to its last complete entry.
+	 * @param journalFile Journal file
+	 * @param seed Array of at least one element that receives the random seed; may be null
+	 * @return Entries in the order of the file; file entries are resolved into the paths of cuts
+	 * @throws IOException if the file cannot be read or is not a journal
+	 */
+	public static List<Entry> read(File journalFile, long[] seed) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+		try {
+			if (input.readInt() != MAGIC) throw new IOException(journalFile + " is not a session journal.");
+			if (input.readInt() != VERSION) throw new IOException("Unsupported journal version in " + journalFile + ".");
+			long journalSeed = input.readLong();
+			if (seed != null) seed[0] = journalSeed;
+			input.readLong();
+
+			ArrayList<Entry> entries = new ArrayList<Entry>();
+			ArrayList<String> filePaths = new ArrayList<String>();
+			long time = 0l;
+			try {
+				while (true) {
+					Entry entry = new Entry();
+					entry.type = input.readByte();
+					time += readVarLong(input);
+					entry.time = time;
+
+					switch (entry.type) {
+					case TYPE_FILE:
+						int fileId = (int) readVarLong(input);
+						String path = input.readUTF();
+						if (fileId != filePaths.size()) throw new IOException("Invalid file ID in " + journalFile + ".");
+						filePaths.add(path);
+						continue;
+					case TYPE_CUT:
+						entry.path = filePaths.get((int) readVarLong(input));
+						entry.value = readVarLong(input);
+						entry.lateness = readVarLong(input);
+						break;
+					case TYPE_TEMPO:
+						entry.tempo = input.readFloat();
+						break;
+					case TYPE_NOTE_LENGTH:
+					case TYPE_KEY:
+						entry.value = readVarLong(input);
+						break;
+					case TYPE_PLAY:
+					case TYPE_PAUSE:
+						break;
+					default:
+						throw new IOException("Unknown journal entry type " + entry.type + " in " + journalFile + ".");
+					}
+					entries.add(entry);
+				}
+			} catch (EOFException e) {
+				// The last entry may be incomplete.
+			}
+			return entries;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * MAIN METHOD
+	 *
+	 * @param args Path of a journal file
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: SessionJournal <journal file>");
+			return;
+		}
+
+		try {
+			long[] seed = new long[1];
+			List<Entry> entries = read(new File(args[0]), seed);
+			System.out.println("Random seed: " + seed[0]);
+			for (Entry entry : entries) System.out.println(entry);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
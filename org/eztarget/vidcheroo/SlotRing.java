@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.eztarget.vidcheroo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sequence numbers of a lock-free ring of preallocated slots from any number of producer threads to one consumer thread.
+ * The payload lives in arrays of the owner that are indexed by slot, so that neither side allocates:
+ * a producer claims a slot, fills the arrays and publishes the slot;
+ * the consumer peeks at the oldest published slot, reads the arrays and releases the slot.
+ * If the ring is full, claims fail and are counted.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class SlotRing {
+
+	/**
+	 * Number of slots; a power of 2
+	 */
+	private final int capacity;
+
+	/**
+	 * Per slot: sequence number at which the slot can be claimed (sequence), read (sequence + 1)
+	 * or claimed again (sequence + capacity)
+	 */
+	private final AtomicLongArray slotSequences;
+
+	/**
+	 * Next sequence number that a producer claims
+	 */
+	private final AtomicLong claimSequence = new AtomicLong();
+
+	/**
+	 * Next sequence number that the consumer reads; only used by the consumer
+	 */
+	private long readSequence = 0l;
+
+	/**
+	 * Number of claims that failed because the ring was full
+	 */
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param capacity Number of slots; rounded up to a power of 2
+	 */
+	public SlotRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.capacity = size;
+		slotSequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) slotSequences.set(i, i);
+	}
+
+	/**
+	 * @return Number of slots; the length of the owner's payload arrays
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Claims the next slot. Any number of threads may claim at the same time.
+	 * The claiming thread fills the payload of the slot and then calls publish().
+	 * @return Slot index; -1 if the ring was full
+	 */
+	public int claim() {
+		while (true) {
+			long sequence = claimSequence.get();
+			int slot = (int) sequence & (capacity - 1);
+			long slotSequence = slotSequences.get(slot);
+			if (slotSequence < sequence) {
+				// The consumer has not released this slot yet.
+				droppedCount.incrementAndGet();
+				return -1;
+			}
+			if (slotSequence == sequence && claimSequence.compareAndSet(sequence, sequence + 1)) return slot;
+		}
+	}
+
+	/**
+	 * Makes a filled slot visible to the consumer.
+	 * @param slot Slot index returned by claim()
+	 */
+	public void publish(int slot) {
+		// Nobody else changes a claimed slot. Ordered store: the consumer sees the payload before the new sequence.
+		slotSequences.lazySet(slot, slotSequences.get(slot) + 1);
+	}
+
+	/**
+	 * Only the consumer may call this.
+	 * @return Index of the oldest published slot; -1 if no slot is published
+	 */
+	public int peek() {
+		int slot = (int) readSequence & (capacity - 1);
+		if (slotSequences.get(slot) != readSequence + 1) return -1;
+		return slot;
+	}
+
+	/**
+	 * Hands the slot returned by the last peek() back to the producers. Only the consumer may call this.
+	 */
+	public void release() {
+		slotSequences.lazySet((int) readSequence & (capacity - 1), readSequence + capacity);
+		readSequence++;
+	}
+
+	/**
+	 * Only the consumer may call this.
+	 * @return True, if no published slot is waiting
+	 */
+	public boolean isEmpty() {
+		return peek() < 0;
+	}
+
+	/**
+	 * May be called from any thread.
+	 * @param sequence Sequence number of a claim, counted from 0
+	 * @return True, if the consumer has released this claim and all earlier ones
+	 */
+	public boolean isReleased(long sequence) {
+		return slotSequences.get((int) sequence & (capacity - 1)) >= sequence + capacity;
+	}
+
+	/**
+	 * @return Number of successful claims so far
+	 */
+	public long getClaimCount() {
+		return claimSequence.get();
+	}
+
+	/**
+	 * @return Number of claims that failed because the ring was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+/**
+ * Immutable state of the control frame as seen by the Engine at one point in time.
+ * Any thread may publish a new snapshot; the control frame only shows the latest one, on the EDT.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public final class StatusSnapshot {
+
+	/**
+	 * Text of the bottom status label
+	 */
+	public final String statusText;
+
+	/**
+	 * Enable flag of the play, pause and full-screen buttons
+	 */
+	public final boolean isPlayControlEnabled;
+
+	/**
+	 * Enable flag of the path and refresh buttons
+	 */
+	public final boolean isPathControlEnabled;
+
+	/**
+	 * Enable flag of the whole control frame
+	 */
+	public final boolean isFrameEnabled;
+
+	/**
+	 * True, if the media frames should be visible; they are created when they are shown first
+	 */
+	public final boolean isOutputVisible;
+
+	/**
+	 * Tempo in BPM of the tempo text field
+	 */
+	public final float tempo;
+
+	/**
+	 * Number of tempo updates; the tempo text field is rewritten whenever this changes,
+	 * also if the tempo stayed the same, e.g. after an invalid input
+	 */
+	public final long tempoRevision;
+
+	/**
+	 * Highlighted note length button, see NoteLength class; -1 if none is highlighted
+	 */
+	public final int noteLengthIndex;
+
+	/**
+	 * Constructor
+	 * @param statusText Text of the bottom status label
+	 * @param isPlayControlEnabled Enable flag of the play, pause and full-screen buttons
+	 * @param isPathControlEnabled Enable flag of the path and refresh buttons
+	 * @param isFrameEnabled Enable flag of the whole control frame
+	 * @param isOutputVisible True, if the media frames should be visible
+	 * @param tempo Tempo in BPM of the tempo text field
+	 * @param tempoRevision Number of tempo updates
+	 * @param noteLengthIndex Highlighted note length button; -1 if none is highlighted
+	 */
+	public StatusSnapshot(
+			String statusText,
+			boolean isPlayControlEnabled,
+			boolean isPathControlEnabled,
+			boolean isFrameEnabled,
+			boolean isOutputVisible,
+			float tempo,
+			long tempoRevision,
+			int noteLengthIndex
+			) {
+		this.statusText = statusText;
+		this.isPlayControlEnabled = isPlayControlEnabled;
+		this.isPathControlEnabled = isPathControlEnabled;
+		this.isFrameEnabled = isFrameEnabled;
+		this.isOutputVisible = isOutputVisible;
+		this.tempo = tempo;
+		this.tempoRevision = tempoRevision;
+		this.noteLengthIndex = noteLengthIndex;
+	}
+}
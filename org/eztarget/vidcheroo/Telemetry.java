@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+/**
+ * Telemetry of the Engine, the media parser and the beat detector.
+ * Counters are exposed through JMX, see TelemetryMXBean.
+ * Cuts, file probes and detector frames are also emitted as JDK Flight Recorder events if the JDK supports them,
+ * so that stalls can be correlated with GC and I/O in a recording, e.g. started with -XX:StartFlightRecording.
+ * The begin methods return an event handle, or null if no recording wants the event;
+ * it is passed to the matching end method, which also updates the counters.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public class Telemetry implements TelemetryMXBean {
+
+	/**
+	 * Name under which the MBean is registered
+	 */
+	public static final String OBJECT_NAME = "org.eztarget.vidcheroo:type=Telemetry";
+
+	/**
+	 * True, if the JDK has the Flight Recorder event API; the FlightEvents class is only loaded then
+	 */
+	private static final boolean IS_FLIGHT_RECORDER_AVAILABLE = isClassAvailable("jdk.jfr.Event");
+
+	/**
+	 * Number of cut times that are kept for the cuts per minute; a power of 2
+	 */
+	private static final int CUT_TIMES_CAPACITY = 4096;
+
+	/**
+	 * Length of one minute in ns
+	 */
+	private static final long MINUTE_NANOS = 60000000000l;
+
+	/**
+	 * Ring of the times in ns of the last cuts; only written by the engine thread
+	 */
+	private static final long[] cutTimes = new long[CUT_TIMES_CAPACITY];
+
+	/**
+	 * Number of cuts; only written by the engine thread
+	 */
+	private static volatile long cutCount = 0l;
+
+	/**
+	 * Number of forced switches; only written by the engine thread
+	 */
+	private static volatile long forcedSwitchCount = 0l;
+
+	/**
+	 * Number of probed files since the start
+	 */
+	private static long probedFileCount = 0l;
+
+	/**
+	 * Number of probed files of the current or last analysis
+	 */
+	private static long parseFileCount = 0l;
+
+	/**
+	 * Time in ns at which the current or last analysis started
+	 */
+	private static long parseStartNanos = 0l;
+
+	/**
+	 * Time in ns at which the last file probe of the current or last analysis ended
+	 */
+	private static long parseEndNanos = 0l;
+
+	/**
+	 * Registers the MBean with the platform MBean server.
+	 */
+	public static void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Telemetry(), new ObjectName(OBJECT_NAME));
+			Log.info(
+					"Registered " + OBJECT_NAME + "."
+					+ (IS_FLIGHT_RECORDER_AVAILABLE ? " Flight Recorder events are available." : "")
+					);
+		} catch (Exception e) {
+			Log.warning("Could not register " + OBJECT_NAME + ".", e);
+		}
+	}
+
+	/**
+	 * @param className Fully qualified class name
+	 * @return True, if the class can be loaded
+	 */
+	private static boolean isClassAvailable(String className) {
+		try {
+			Class.forName(className, false, Telemetry.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	/*
+	 * EVENTS
+	 */
+
+	/**
+	 * Called by the engine thread right before an output shows its next file.
+	 * @return Event handle; null if no recording wants cut events
+	 */
+	public static Object beginCut() {
+		return IS_FLIGHT_RECORDER_AVAILABLE ? FlightEvents.beginCut() : null;
+	}
+
+	/**
+	 * Counts a cut and commits its event. Only called by the engine thread.
+	 * @param event Handle returned by beginCut()
+	 * @param output Output that has just shown its next file
+	 * @param latencyNanos Time in ns from the beat or clock tick to the play call; -1 for manual cuts
+	 * @param isForced True, if the cut happened before the next beat because the clip was ending
+	 */
+	public static void endCut(Object event, MediaOutput output, long latencyNanos, boolean isForced) {
+		long count = cutCount;
+		cutTimes[(int) count & (CUT_TIMES_CAPACITY - 1)] = output.switchNanos;
+		cutCount = count + 1l;
+		if (isForced) forcedSwitchCount++;
+
+		if (event != null) {
+			FlightEvents.endCut(
+					event,
+					output.getNumber(),
+					output.mediaFile.path,
+					output.startTime,
+					latencyNanos,
+					isForced
+					);
+		}
+	}
+
+	/**
+	 * Starts the measurement of the parse throughput; called when an analysis starts.
+	 */
+	public static synchronized void beginParse() {
+		parseFileCount = 0l;
+		parseStartNanos = System.nanoTime();
+		parseEndNanos = parseStartNanos;
+	}
+
+	/**
+	 * Called by an analyser thread right before a file is probed.
+	 * @return Event handle; null if no recording wants file probe events
+	 */
+	public static Object beginFileProbe() {
+		return IS_FLIGHT_RECORDER_AVAILABLE ? FlightEvents.beginFileProbe() : null;
+	}
+
+	/**
+	 * Counts a probed file and commits its event.
+	 * @param event Handle returned by beginFileProbe()
+	 * @param file Probed file with its length and keyframe times
+	 */
+	public static void endFileProbe(Object event, MediaFile file) {
+		synchronized (Telemetry.class) {
+			probedFileCount++;
+			parseFileCount++;
+			parseEndNanos = System.nanoTime();
+		}
+
+		if (event != null) {
+			FlightEvents.endFileProbe(
+					event,
+					file.path,
+					file.length,
+					file.keyframeTimes == null ? 0 : file.keyframeTimes.length
+					);
+		}
+	}
+
+	/**
+	 * Called by the audio analysis thread right before a block is analysed.
+	 * @return Event handle; null if no recording wants detector frame events
+	 */
+	public static Object beginDetectorFrame() {
+		return IS_FLIGHT_RECORDER_AVAILABLE ? FlightEvents.beginDetectorFrame() : null;
+	}
+
+	/**
+	 * Commits the event of an analysed audio block.
+	 * @param event Handle returned by beginDetectorFrame()
+	 * @param length Number of analysed bytes
+	 * @param rmsLevel Input level of the block, see BeatDetector
+	 * @param didConfirmTempo True, if the block confirmed a tempo
+	 * @param tempo Tempo of the onset detector in BPM
+	 */
+	public static void endDetectorFrame(Object event, int length, int rmsLevel, boolean didConfirmTempo, float tempo) {
+		if (event != null) FlightEvents.endDetectorFrame(event, length, rmsLevel, didConfirmTempo, tempo);
+	}
+
+	/*
+	 * MBEAN ATTRIBUTES
+	 */
+
+	@Override
+	public int getCutsPerMinute() {
+		long count = cutCount;
+		long since = System.nanoTime() - MINUTE_NANOS;
+		int cuts = 0;
+		// Read backwards until a cut is older than a minute; the ring is only overwritten by much newer cuts.
+		while (cuts < Math.min(count, CUT_TIMES_CAPACITY)) {
+			if (cutTimes[(int) (count - 1l - cuts) & (CUT_TIMES_CAPACITY - 1)] - since < 0l) break;
+			cuts++;
+		}
+		return cuts;
+	}
+
+	@Override
+	public long getCutCount() {
+		return cutCount;
+	}
+
+	@Override
+	public long getForcedSwitchCount() {
+		return forcedSwitchCount;
+	}
+
+	@Override
+	public long getAverageCutLatencyMicros() {
+		return LatencyMonitor.BEAT_TO_CALL.getMean() / 1000l;
+	}
+
+	@Override
+	public long getP99CutLatencyMicros() {
+		return LatencyMonitor.BEAT_TO_CALL.getValueAtPercentile(99d) / 1000l;
+	}
+
+	@Override
+	public long getMaxCutLatencyMicros() {
+		return LatencyMonitor.BEAT_TO_CALL.getMax() / 1000l;
+	}
+
+	@Override
+	public float getTempo() {
+		return ConfigurationHandler.getTempo();
+	}
+
+	@Override
+	public String getNoteLength() {
+		int index = Engine.getNoteLengthIndex();
+		return index < 0 ? "" : NoteLength.readableNoteLengths[index];
+	}
+
+	@Override
+	public int getLibrarySize() {
+		return MediaFileParser.getFileListLength();
+	}
+
+	@Override
+	public long getProbedFileCount() {
+		synchronized (Telemetry.class) {
+			return probedFileCount;
+		}
+	}
+
+	@Override
+	public double getParseFilesPerSecond() {
+		synchronized (Telemetry.class) {
+			long nanos = parseEndNanos - parseStartNanos;
+			return nanos <= 0l ? 0d : parseFileCount * 1e9d / nanos;
+		}
+	}
+
+	@Override
+	public long getDetectorOverrunCount() {
+		return BeatDetector.getOverrunCount();
+	}
+
+	@Override
+	public long getDroppedLogRecordCount() {
+		return Log.getDroppedCount();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Easy Target
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.eztarget.vidcheroo;
+
+/**
+ * Live counters of the Engine, the media parser and the beat detector, for JMX clients such as JConsole.
+ * Registered as org.eztarget.vidcheroo:type=Telemetry.
+ *
+ * @author michel@easy-target.org
+ *
+ */
+public interface TelemetryMXBean {
+
+	/**
+	 * @return Number of cuts of all outputs during the last minute
+	 */
+	public int getCutsPerMinute();
+
+	/**
+	 * @return Number of cuts of all outputs since the start
+	 */
+	public long getCutCount();
+
+	/**
+	 * @return Number of cuts that happened before the next beat because the clip was ending
+	 */
+	public long getForcedSwitchCount();
+
+	/**
+	 * @return Average time in us from a beat to the play call of the main output
+	 */
+	public long getAverageCutLatencyMicros();
+
+	/**
+	 * @return 99th percentile of the time in us from a beat to the play call of the main output
+	 */
+	public long getP99CutLatencyMicros();
+
+	/**
+	 * @return Highest time in us from a beat to the play call of the main output
+	 */
+	public long getMaxCutLatencyMicros();
+
+	/**
+	 * @return Current tempo in BPM
+	 */
+	public float getTempo();
+
+	/**
+	 * @return Current note length, e.g. "1/16"; empty if none has been selected
+	 */
+	public String getNoteLength();
+
+	/**
+	 * @return Number of available media files
+	 */
+	public int getLibrarySize();
+
+	/**
+	 * @return Number of probed files since the start
+	 */
+	public long getProbedFileCount();
+
+	/**
+	 * @return Probed files per second during the current or last analysis
+	 */
+	public double getParseFilesPerSecond();
+
+	/**
+	 * @return Number of audio blocks that the beat detector dropped because its analysis fell behind
+	 */
+	public long getDetectorOverrunCount();
+
+	/**
+	 * @return Number of log records that were dropped because the log ring was full
+	 */
+	public long getDroppedLogRecordCount();
+}